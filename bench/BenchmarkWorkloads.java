@@ -0,0 +1,150 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Workloads measured by the JMH benchmarks in bench/jmh. JMH requires
+ * benchmark classes in a named package, which can't refer to classes in the
+ * default package, so the benchmarks look up their workload by name with
+ * create() once and then only call it through Callable.
+ *
+ * @author Thomas Fischl
+ */
+public class BenchmarkWorkloads {
+
+    /**
+     * Create workload
+     *
+     * @param name Name of workload
+     * @param size Size parameter in bytes, meaning depends on workload
+     * @return Workload, every call runs it once
+     * @throws Exception Error while preparing workload
+     */
+    public static Callable<Object> create(String name, final int size) throws Exception {
+
+        if (name.equals("HexParser.read")) {
+            final File hexfile = SimulatedFlashBenchmark.createHexFile(size, 1);
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    DeviceMemory dm = new DeviceMemory(size, 4 * 1024);
+                    FileReader reader = new FileReader(hexfile);
+                    try {
+                        HexParser.read(reader, dm);
+                    } finally {
+                        reader.close();
+                    }
+                    return dm;
+                }
+            };
+        }
+
+        if (name.equals("HexParser.readFile")) {
+            final File hexfile = SimulatedFlashBenchmark.createHexFile(size, 1);
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    DeviceMemory dm = new DeviceMemory(size, 4 * 1024);
+                    HexParser.read(hexfile, dm);
+                    return dm;
+                }
+            };
+        }
+
+        final byte[] content = new byte[size];
+        new Random(1).nextBytes(content);
+
+        if (name.equals("DeviceMemory.writeMemoryData")) {
+            return new Callable<Object>() {
+                public Object call() {
+                    DeviceMemory dm = new DeviceMemory(size, 4 * 1024);
+                    for (int i = 0; i < content.length; i++) {
+                        dm.writeMemoryData(i, content[i]);
+                    }
+                    return dm;
+                }
+            };
+        }
+
+        final DeviceMemory dm = new DeviceMemory(size, 4 * 1024);
+        for (int i = 0; i < content.length; i++) {
+            dm.writeMemoryData(i, content[i]);
+        }
+
+        if (name.equals("DeviceMemory.getSector")) {
+            return new Callable<Object>() {
+                public Object call() {
+                    int sum = 0;
+                    for (int s = dm.getWroteSectorMin(); s <= dm.getWroteSectorMax(); s++) {
+                        sum += dm.getSector(s).length;
+                    }
+                    return sum;
+                }
+            };
+        }
+
+        if (name.equals("DeviceMemory.insertChecksum")) {
+            return new Callable<Object>() {
+                public Object call() {
+                    dm.insertChecksum();
+                    return dm;
+                }
+            };
+        }
+
+        final USBtinSDO sdo = new USBtinSDO(new DownloadResponderTransport());
+
+        if (name.equals("USBtinSDO.writeExpedited")) {
+            final byte[] address = new byte[]{0x00, 0x08, 0x00, 0x10};
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    sdo.writeExpedited(LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS, 0x00, address);
+                    return sdo;
+                }
+            };
+        }
+
+        if (name.equals("USBtinSDO.writeSegmented")) {
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    sdo.writeSegmented(LPCFlash.OBJ_IDX_PROGRAM_DATA, LPCFlash.OBJ_SUB_PROGRAM_AREA, content);
+                    return sdo;
+                }
+            };
+        }
+
+        if (name.equals("LPCFlash.flash")) {
+            File hexfile = SimulatedFlashBenchmark.createHexFile(size, 1);
+            final LPCFlash lpcflash = new LPCFlash();
+            final FlashImage image = lpcflash.loadImage(hexfile.getPath(), LPCFlash.GoMode.NO, 0);
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    // simulator without bus timing: host side cost only
+                    lpcflash.flashImage("sim:realtime=0", image, new int[]{USBtinSDO.DEFAULT_NODE_ID});
+                    return image;
+                }
+            };
+        }
+
+        throw new IllegalArgumentException("unknown workload: " + name);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+
+/**
+ * Loopback transport which acknowledges every SDO download request of the
+ * default node immediately in the sending thread. The responses are
+ * preallocated, so the transport itself doesn't allocate; the initiate
+ * response gets index and subindex of the request copied in, as the SDO
+ * client only accepts an answer to the object it requested.
+ *
+ * @author Thomas Fischl
+ */
+public class DownloadResponderTransport extends LoopbackTransport {
+
+    /** Responses indexed by command byte */
+    protected final CANMessage[] responses = new CANMessage[0x100];
+
+    /**
+     * Construct responder
+     */
+    public DownloadResponderTransport() {
+        int[] commands = {0x20, 0x30, 0x60};
+        for (int c : commands) {
+            responses[c] = new CANMessage(USBtinSDO.SDO_RESPONSE_ID, new byte[]{(byte) c, 0, 0, 0, 0, 0, 0, 0});
+        }
+    }
+
+    @Override
+    protected void handle(CANMessage msg) {
+        int cmd = msg.getData()[0] & 0xff;
+        if ((cmd & 0xe0) == 0x20) {
+            CANMessage response = responses[0x60];
+            System.arraycopy(msg.getData(), 1, response.getData(), 1, 3);
+            deliver(response);
+        } else {
+            deliver(responses[(cmd & 0x10) != 0 ? 0x30 : 0x20]);
+        }
+    }
+}
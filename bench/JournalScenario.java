@@ -0,0 +1,142 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Checks resuming with the journal against the bootloader simulator: the
+ * flash process of image A is interrupted after two verified sectors, image
+ * B is flashed completely, then A is flashed again. A must not resume with
+ * the sectors verified before, as they hold B now. Afterwards an
+ * interrupted flash process of B is resumed with the journal read from its
+ * file.
+ *
+ * @author Thomas Fischl
+ */
+public class JournalScenario {
+
+    /**
+     * Flash engine on one simulator for all sessions, which can be
+     * interrupted after a given sector was verified
+     */
+    static class InterruptibleFlash extends LPCFlash {
+
+        /** Simulated board, kept over all sessions */
+        final LPCBootloaderSimulator simulator = new LPCBootloaderSimulator();
+
+        /** Sector after which the flash process is interrupted or -1 */
+        int interruptAfter = -1;
+
+        @Override
+        protected CANTransport createTransport(String port) {
+            return simulator;
+        }
+
+        @Override
+        protected void journalSector(String serial, FlashImage image, int sector, String prefix) {
+            super.journalSector(serial, image, sector, prefix);
+            if (sector == interruptAfter) {
+                throw new IllegalStateException("interrupted after sector " + sector);
+            }
+        }
+    }
+
+    /**
+     * Compare simulated flash with image
+     *
+     * @param flash Simulated flash content
+     * @param image Image
+     * @return true if all written sectors match
+     */
+    static boolean matches(byte[] flash, FlashImage image) {
+        DeviceMemory dm = image.getMemory();
+        for (int s = dm.nextWrittenSector(0); s >= 0; s = dm.nextWrittenSector(s + 1)) {
+            byte[] sector = dm.getSector(s);
+            int a = dm.getSectorStartAddress(s);
+            if (!Arrays.equals(sector, Arrays.copyOfRange(flash, a, a + sector.length))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run scenario
+     *
+     * @param args the command line arguments
+     * @throws Exception Error while running scenario
+     */
+    public static void main(String[] args) throws Exception {
+
+        String port = "sim:realtime=0";
+        File journalFile = File.createTempFile("canflasher", ".journal");
+        journalFile.delete();
+        journalFile.deleteOnExit();
+
+        InterruptibleFlash lpcflash = new InterruptibleFlash();
+        lpcflash.setJournal(new FlashJournal(journalFile));
+        lpcflash.addListener(new LPCFlashListener() {
+            public void outputMessage(String message) {
+                if (message.startsWith("Resume") || message.contains("already verified")) {
+                    System.out.print(message);
+                }
+            }
+        });
+        FlashImage imageA = lpcflash.loadImage(SimulatedFlashBenchmark.createHexFile(5 * 4096, 1).getPath(), LPCFlash.GoMode.NO, 0);
+        FlashImage imageB = lpcflash.loadImage(SimulatedFlashBenchmark.createHexFile(5 * 4096, 2).getPath(), LPCFlash.GoMode.NO, 0);
+        int[] nodeIds = new int[]{USBtinSDO.DEFAULT_NODE_ID};
+
+        lpcflash.interruptAfter = 1;
+        try {
+            lpcflash.flashImage(port, imageA, nodeIds);
+            System.out.println("image A: not interrupted");
+            System.exit(1);
+        } catch (IllegalStateException ex) {
+            System.out.println("image A: " + ex.getMessage());
+        }
+        lpcflash.interruptAfter = -1;
+        lpcflash.flashImage(port, imageB, nodeIds);
+        System.out.println("image B: flashed");
+        lpcflash.flashImage(port, imageA, nodeIds);
+
+        boolean ok = matches(lpcflash.simulator.getNode(USBtinSDO.DEFAULT_NODE_ID).getFlash(), imageA);
+        System.out.println("image A again: flash " + (ok ? "verified" : "MISMATCH"));
+        if (!ok) {
+            System.exit(1);
+        }
+
+        lpcflash.interruptAfter = 1;
+        try {
+            lpcflash.flashImage(port, imageB, nodeIds);
+        } catch (IllegalStateException ex) {
+            System.out.println("image B: " + ex.getMessage());
+        }
+        lpcflash.interruptAfter = -1;
+        lpcflash.setJournal(new FlashJournal(journalFile));
+        lpcflash.flashImage(port, imageB, nodeIds);
+
+        ok = matches(lpcflash.simulator.getNode(USBtinSDO.DEFAULT_NODE_ID).getFlash(), imageB);
+        System.out.println("image B resumed: flash " + (ok ? "verified" : "MISMATCH"));
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
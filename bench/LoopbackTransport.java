@@ -0,0 +1,102 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * CAN transport for benchmarks: frames sent by the SDO layer are passed to
+ * handle(), responses are injected with deliver().
+ *
+ * @author Thomas Fischl
+ */
+public abstract class LoopbackTransport implements CANTransport {
+
+    /** Listeners for received messages */
+    protected final CopyOnWriteArrayList<CANMessageListener> listeners = new CopyOnWriteArrayList<CANMessageListener>();
+
+    /**
+     * Handle frame sent by the SDO layer
+     *
+     * @param canmsg Sent frame
+     */
+    protected abstract void handle(CANMessage canmsg);
+
+    /**
+     * Deliver frame to all listeners
+     *
+     * @param canmsg Received frame
+     */
+    public void deliver(CANMessage canmsg) {
+        for (CANMessageListener listener : listeners) {
+            listener.receiveCANMessage(canmsg);
+        }
+    }
+
+    @Override
+    public void send(CANMessage canmsg) {
+        handle(canmsg);
+    }
+
+    @Override
+    public void connect(String portName) {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void openCANChannel(int baudrate, USBtin.OpenMode mode) {
+    }
+
+    @Override
+    public void closeCANChannel() {
+    }
+
+    @Override
+    public void setFilter(FilterChain[] fc) {
+    }
+
+    @Override
+    public void addMessageListener(CANMessageListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeMessageListener(CANMessageListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String getFirmwareVersion() {
+        return "loopback";
+    }
+
+    @Override
+    public String getHardwareVersion() {
+        return "loopback";
+    }
+
+    @Override
+    public String getSerialNumber() {
+        return "0000";
+    }
+}
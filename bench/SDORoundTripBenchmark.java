@@ -0,0 +1,190 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016-2017  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+
+/**
+ * Measures the host side overhead of one SDO round trip. The CAN adapter is
+ * replaced by a thread which answers every request immediately, so the
+ * result is the wake-up latency of the response path only.
+ *
+ * @author Thomas Fischl
+ */
+public class SDORoundTripBenchmark {
+
+    /** Round trips per measurement */
+    static final int ROUNDTRIPS = 50000;
+
+    /** Count of measurements */
+    static final int RUNS = 5;
+
+    /**
+     * Thread answering each request with an SDO download response
+     */
+    static class Responder extends Thread {
+
+        /** Listener to deliver responses to */
+        CANMessageListener target;
+
+        /** Pending request or null */
+        volatile CANMessage request = null;
+
+        /** Stop flag */
+        volatile boolean running = true;
+
+        Responder() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                CANMessage req = request;
+                if (req == null) {
+                    Thread.yield();
+                    continue;
+                }
+                request = null;
+                target.receiveCANMessage(new CANMessage(USBtinSDO.SDO_RESPONSE_ID,
+                        new byte[]{0x60, req.getData()[1], req.getData()[2], req.getData()[3], 0, 0, 0, 0}));
+            }
+        }
+    }
+
+    /**
+     * Transport which passes requests to the responder
+     */
+    static class ResponderTransport extends LoopbackTransport {
+
+        final Responder responder = new Responder();
+
+        ResponderTransport() {
+            responder.target = new CANMessageListener() {
+                public void receiveCANMessage(CANMessage canmsg) {
+                    deliver(canmsg);
+                }
+            };
+        }
+
+        @Override
+        protected void handle(CANMessage canmsg) {
+            responder.request = canmsg;
+        }
+    }
+
+    /**
+     * Previous implementation: shared field with wait/notify and
+     * millisecond deadlines
+     */
+    static class LegacySDO extends USBtin implements CANMessageListener {
+
+        CANMessage receivedMsg = null;
+        final Object syncObj = new Object();
+        Responder responder = new Responder();
+
+        LegacySDO() {
+            responder.target = this;
+            addMessageListener(this);
+        }
+
+        @Override
+        public void send(CANMessage msg) {
+            responder.request = msg;
+        }
+
+        @Override
+        public void receiveCANMessage(CANMessage canmsg) {
+            synchronized (syncObj) {
+                receivedMsg = canmsg;
+                syncObj.notify();
+            }
+        }
+
+        public CANMessage transmit(CANMessage msg, int expected) throws USBtinException {
+            receivedMsg = null;
+            this.send(msg);
+            long timeout = 1000;
+            try {
+                synchronized (syncObj) {
+                    long starttime = System.currentTimeMillis();
+                    while ((System.currentTimeMillis() - starttime) < timeout) {
+                        if ((receivedMsg != null) && (receivedMsg.getData().length >= 1)) {
+                            if (receivedMsg.getData()[0] == expected) {
+                                return receivedMsg;
+                            } else {
+                                throw new USBtinException("not expected answer");
+                            }
+                        }
+                        syncObj.wait(timeout);
+                    }
+                    throw new USBtinException("sdo_transmit: timeout");
+                }
+            } catch (InterruptedException ie) {
+                throw new USBtinException("sdo_transmit: interrupted exception ");
+            }
+        }
+    }
+
+    /**
+     * Run benchmark
+     *
+     * @param args the command line arguments
+     * @throws Exception Error while running benchmark
+     */
+    public static void main(String[] args) throws Exception {
+
+        CANMessage request = new CANMessage(USBtinSDO.SDO_REQUEST_ID,
+                new byte[]{0x23, 0x15, 0x50, 0x00, 0x00, 0x08, 0x00, 0x10});
+
+        LegacySDO legacy = new LegacySDO();
+        legacy.responder.start();
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDTRIPS; i++) {
+                legacy.transmit(request, 0x60);
+            }
+            report("legacy (wait/notify)", run, System.nanoTime() - start);
+        }
+        legacy.responder.running = false;
+
+        ResponderTransport transport = new ResponderTransport();
+        USBtinSDO sdo = new USBtinSDO(transport);
+        transport.responder.start();
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDTRIPS; i++) {
+                sdo.transmit(request, 0x60);
+            }
+            report("mailbox (spsc)", run, System.nanoTime() - start);
+        }
+        transport.responder.running = false;
+    }
+
+    /**
+     * Print result of one measurement
+     *
+     * @param name Name of implementation
+     * @param run Run number
+     * @param nanos Elapsed time
+     */
+    static void report(String name, int run, long nanos) {
+        System.out.println(String.format("%-22s run %d: %8.0f ns/roundtrip", name, run, (double) nanos / ROUNDTRIPS));
+    }
+}
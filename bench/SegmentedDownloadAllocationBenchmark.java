@@ -0,0 +1,124 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016-2017  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures heap allocation of a segmented download of one 4 KB sector.
+ * Responses are answered synchronously with preallocated frames, so only
+ * allocations of the SDO layer itself are counted.
+ *
+ * @author Thomas Fischl
+ */
+public class SegmentedDownloadAllocationBenchmark {
+
+    /** Sectors per measurement */
+    static final int SECTORS = 2000;
+
+    /**
+     * SDO layer with previous implementation of segmented download
+     */
+    static class LegacySDO extends USBtinSDO {
+
+        LegacySDO(CANTransport transport) {
+            super(transport);
+        }
+
+        /**
+         * Previous implementation with new frame per segment
+         */
+        void writeSegmentedLegacy(int obj_idx, int sub_idx, byte[] data) throws USBtinException {
+            int bytesleft = data.length;
+            CANMessage msg = new CANMessage(SDO_REQUEST_ID, new byte[]{0x21, (byte) (obj_idx & 0xff), (byte) ((obj_idx >> 8) & 0xff), (byte) sub_idx, (byte) (bytesleft & 0xff), (byte) ((bytesleft >> 8) & 0xff), 0x00, 0x00});
+            transmit(msg, 0x60);
+            boolean toggle = false;
+            int pos = 0;
+            while (bytesleft > 0) {
+                int sendbyte = bytesleft;
+                if (sendbyte > 7) sendbyte = 7;
+                byte[] msgdata = new byte[8];
+                if (bytesleft > 7) msgdata[0] = 0;
+                else msgdata[0] = (byte) (((7 - bytesleft) << 1) | 0x01);
+                if (toggle) msgdata[0] |= 0x10;
+                for (int i = 0; i < sendbyte; i++) {
+                    msgdata[1 + i] = data[pos];
+                    pos++;
+                }
+                bytesleft -= sendbyte;
+                msg = new CANMessage(SDO_REQUEST_ID, msgdata);
+                transmit(msg, toggle ? 0x30 : 0x20);
+                toggle = !toggle;
+            }
+        }
+    }
+
+    /**
+     * Get allocated bytes of current thread
+     *
+     * @return Allocated bytes
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Run benchmark
+     *
+     * @param args the command line arguments
+     * @throws Exception Error while running benchmark
+     */
+    public static void main(String[] args) throws Exception {
+
+        LegacySDO sdo = new LegacySDO(new DownloadResponderTransport());
+        byte[] sector = new byte[4096];
+        int frames = (sector.length + 6) / 7 + 1;
+
+        for (int run = 0; run < 3; run++) {
+            long before = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < SECTORS; i++) {
+                sdo.writeSegmentedLegacy(LPCFlash.OBJ_IDX_PROGRAM_DATA, LPCFlash.OBJ_SUB_PROGRAM_AREA, sector);
+            }
+            report("legacy", System.nanoTime() - start, allocatedBytes() - before, frames);
+
+            before = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < SECTORS; i++) {
+                sdo.writeSegmented(LPCFlash.OBJ_IDX_PROGRAM_DATA, LPCFlash.OBJ_SUB_PROGRAM_AREA, sector);
+            }
+            report("current", System.nanoTime() - start, allocatedBytes() - before, frames);
+        }
+    }
+
+    /**
+     * Print result of one measurement
+     *
+     * @param name Name of implementation
+     * @param nanos Elapsed time
+     * @param bytes Allocated bytes
+     * @param frames Frames per sector
+     */
+    static void report(String name, long nanos, long bytes, int frames) {
+        System.out.println(String.format("%-14s %7.1f ns/frame %8.1f bytes/frame %9d bytes/sector",
+                name, (double) nanos / SECTORS / frames, (double) bytes / SECTORS / frames, bytes / SECTORS));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016-2017  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import jssc.SerialPortEvent;
+
+/**
+ * Measures SDO requests per second through the serial send path. USBtin is
+ * replaced by a pseudo-terminal: "script" allocates it, the benchmark opens
+ * the slave side like a USBtin port and a thread on the master side answers
+ * SLCAN commands like USBtin does, with an SDO response for each request.
+ * Each read of the stand-in costs a fixed latency, like a USB transfer.
+ *
+ * Linux or macOS only, as "script" is needed to allocate the terminal.
+ *
+ * @author Thomas Fischl
+ */
+public class SerialBatchBenchmark {
+
+    /** Requests per node and measurement */
+    static final int REQUESTS = 500;
+
+    /** Latency of one transfer of the stand-in (ns), one USB full-speed frame */
+    static final long LATENCY = 1000000;
+
+    /** Node IDs of concurrent SDO clients */
+    static final int[] NODES = {0x10, 0x11, 0x12, 0x13};
+
+    /**
+     * USBtin stand-in on the master side of the pseudo-terminal
+     */
+    static class Adapter extends Thread {
+
+        /** Process holding the terminal */
+        final Process process;
+
+        /** Name of slave side */
+        final String portName;
+
+        /** Count of reads with at least one frame */
+        volatile long transfers = 0;
+
+        /** Count of frames */
+        volatile long frames = 0;
+
+        Adapter() throws IOException {
+            process = new ProcessBuilder("script", "-q", "-c", "stty raw -echo; tty; exec sleep 86400", "/dev/null").start();
+            InputStream in = process.getInputStream();
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("can't allocate pseudo-terminal");
+                }
+                if (c != '\r') sb.append((char) c);
+            }
+            portName = sb.toString().trim();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            InputStream in = process.getInputStream();
+            OutputStream out = process.getOutputStream();
+            byte[] buffer = new byte[4096];
+            StringBuilder line = new StringBuilder();
+            StringBuilder reply = new StringBuilder();
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    long count = frames;
+                    for (int i = 0; i < n; i++) {
+                        if (buffer[i] == '\r') {
+                            handle(line.toString(), reply);
+                            line.setLength(0);
+                        } else {
+                            line.append((char) buffer[i]);
+                        }
+                    }
+                    if (frames > count) transfers++;
+                    if (reply.length() > 0) {
+                        LockSupport.parkNanos(LATENCY);
+                        out.write(reply.toString().getBytes());
+                        out.flush();
+                        reply.setLength(0);
+                    }
+                }
+            } catch (IOException ex) {
+                // terminal closed
+            }
+        }
+
+        /**
+         * Answer one SLCAN line
+         *
+         * @param line Line without CR
+         * @param reply Answers to send
+         */
+        void handle(String line, StringBuilder reply) {
+            if (line.isEmpty()) {
+                return;
+            }
+            switch (line.charAt(0)) {
+                case 'V':
+                case 'v':
+                    reply.append(line.charAt(0)).append("0107\r");
+                    break;
+                case 'N':
+                    reply.append("NB001\r");
+                    break;
+                case 't':
+                    frames++;
+                    reply.append("z\r");
+                    int id = Integer.parseInt(line.substring(1, 4), 16);
+                    int nodeId = id - USBtinSDO.SDO_REQUEST_BASE;
+                    if ((nodeId >= 1) && (nodeId <= 127)) {
+                        // download response with index and subindex of request
+                        reply.append(String.format("t%03x860%s00000000\r", USBtinSDO.SDO_RESPONSE_BASE + nodeId, line.substring(7, 13)));
+                    }
+                    break;
+                default:
+                    reply.append('\r');
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Previous implementation: one frame per serial write, each written
+     * after the acknowledge of the one before
+     */
+    static class LegacyTransport extends USBtin implements CANTransport {
+
+        @Override
+        public void send(CANMessage canmsg) throws USBtinException {
+            synchronized (fifoTX) {
+                super.send(canmsg);
+            }
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent event) {
+            synchronized (fifoTX) {
+                super.serialEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Run benchmark
+     *
+     * @param args the command line arguments
+     * @throws Exception Error while running benchmark
+     */
+    public static void main(String[] args) throws Exception {
+
+        Adapter adapter = new Adapter();
+        adapter.start();
+        System.out.println("Stand-in on " + adapter.portName + ", " + (LATENCY / 1000) + " us per transfer");
+
+        try {
+            for (int nodes : new int[]{1, NODES.length}) {
+                run("legacy", new LegacyTransport(), nodes, adapter);
+                for (int batchSize : new int[]{1, 2, 4, 8}) {
+                    USBtinTransport transport = new USBtinTransport();
+                    transport.setBatchSize(batchSize);
+                    run("batch " + batchSize, transport, nodes, adapter);
+                }
+            }
+        } finally {
+            adapter.process.destroy();
+        }
+    }
+
+    /**
+     * Run one measurement: every node gets REQUESTS expedited writes from
+     * its own thread. A request which times out while waiting for the
+     * serial path is sent again and counted.
+     *
+     * @param name Name of configuration
+     * @param transport Transport to measure
+     * @param nodes Count of concurrent nodes
+     * @param adapter Stand-in
+     * @throws Exception Error while running measurement
+     */
+    static void run(String name, CANTransport transport, int nodes, Adapter adapter) throws Exception {
+
+        transport.connect(adapter.portName);
+        transport.openCANChannel(500000, USBtin.OpenMode.ACTIVE);
+        USBtinSDO sdo = new USBtinSDO(transport);
+
+        final Exception[] errors = new Exception[nodes];
+        final int[] timeouts = new int[nodes];
+        Thread[] workers = new Thread[nodes];
+        for (int n = 0; n < nodes; n++) {
+            final int index = n;
+            final SDOClient client = sdo.getClient(NODES[n]);
+            workers[n] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < REQUESTS; i++) {
+                            try {
+                                client.writeExpedited(0x5015, 0, new byte[]{0x00, 0x08, 0x00, 0x10});
+                            } catch (SDOTimeoutException ex) {
+                                if (++timeouts[index] > REQUESTS / 10) throw ex;
+                                i--;
+                            }
+                        }
+                    } catch (Exception ex) {
+                        errors[index] = ex;
+                    }
+                }
+            });
+        }
+
+        long transfers = adapter.transfers;
+        long frames = adapter.frames;
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        transfers = adapter.transfers - transfers;
+        frames = adapter.frames - frames;
+
+        transport.closeCANChannel();
+        transport.disconnect();
+        int timeoutCount = 0;
+        for (int n = 0; n < nodes; n++) {
+            if (errors[n] != null) throw errors[n];
+            timeoutCount += timeouts[n];
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-8s %d node%s: %7.0f requests/s, %.2f frames per write, %d timeouts",
+                name, nodes, nodes == 1 ? " " : "s", REQUESTS * nodes * 1e9 / elapsed, (double) frames / transfers, timeoutCount));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times complete flash runs of LPCFlash against the bootloader simulator
+ * and checks the simulated flash content afterwards.
+ *
+ * Arguments: [image size in bytes] [simulator port]
+ *
+ * @author Thomas Fischl
+ */
+public class SimulatedFlashBenchmark {
+
+    /**
+     * Write random image of given size as HEX file
+     *
+     * @param size Image size in bytes
+     * @param seed Random seed
+     * @return Temporary HEX file
+     * @throws IOException Error while writing file
+     */
+    static File createHexFile(int size, long seed) throws IOException {
+
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+
+        File file = File.createTempFile("canflasher", ".hex");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (int address = 0; address < size; address += 16) {
+                if ((address & 0xffff) == 0 && address != 0) {
+                    // extended linear address record
+                    int upper = address >>> 16;
+                    writer.write(String.format(":02000004%04X%02X\n", upper, (-(6 + (upper >> 8) + (upper & 0xff))) & 0xff));
+                }
+                int length = Math.min(16, size - address);
+                int offset = address & 0xffff;
+                int sum = length + (offset >> 8) + (offset & 0xff);
+                StringBuilder line = new StringBuilder(String.format(":%02X%04X00", length, offset));
+                for (int i = 0; i < length; i++) {
+                    line.append(String.format("%02X", data[address + i]));
+                    sum += data[address + i] & 0xff;
+                }
+                line.append(String.format("%02X\n", (-sum) & 0xff));
+                writer.write(line.toString());
+            }
+            writer.write(":00000001FF\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Run benchmark
+     *
+     * @param args the command line arguments
+     * @throws Exception Error while running benchmark
+     */
+    public static void main(String[] args) throws Exception {
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1024;
+        final String port = args.length > 1 ? args[1] : "sim:latency=1000";
+
+        File hexfile = createHexFile(size, 1);
+
+        final LPCBootloaderSimulator[] simulator = new LPCBootloaderSimulator[1];
+        LPCFlash lpcflash = new LPCFlash() {
+            @Override
+            protected CANTransport createTransport(String p) {
+                simulator[0] = new LPCBootloaderSimulator();
+                return simulator[0];
+            }
+        };
+        final StringBuilder log = new StringBuilder();
+        lpcflash.addListener(new LPCFlashListener() {
+            public void outputMessage(String message) {
+                log.append(message);
+            }
+        });
+
+        FlashImage image = lpcflash.loadImage(hexfile.getPath(), LPCFlash.GoMode.NO, 0);
+
+        long start = System.nanoTime();
+        lpcflash.flashImage(port, image, new int[]{USBtinSDO.DEFAULT_NODE_ID});
+        long elapsed = System.nanoTime() - start;
+
+        DeviceMemory dm = image.getMemory();
+        byte[] flash = simulator[0].getNode(USBtinSDO.DEFAULT_NODE_ID).getFlash();
+        boolean ok = true;
+        for (int s = dm.getWroteSectorMin(); s <= dm.getWroteSectorMax(); s++) {
+            byte[] sector = dm.getSector(s);
+            int a = dm.getSectorStartAddress(s);
+            ok &= Arrays.equals(sector, Arrays.copyOfRange(flash, a, a + sector.length));
+        }
+
+        System.out.println(String.format("%s: %d bytes image, %d frames sent, %.3f s, %.0f bytes/s, flash %s",
+                port, size, simulator[0].getFramesSent(), elapsed / 1e9, size * 1e9 / elapsed, ok ? "verified" : "MISMATCH"));
+        if (!ok) {
+            System.out.print(log);
+            System.exit(1);
+        }
+    }
+}
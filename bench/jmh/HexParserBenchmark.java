@@ -0,0 +1,65 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jmh;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmark of HEX file parsing on small and large images
+ *
+ * @author Thomas Fischl
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HexParserBenchmark {
+
+    /** Size in bytes */
+    @Param({"32768", "4194304"})
+    public int size;
+
+    /** Workload of read() */
+    Callable<Object> read;
+
+    /** Workload of readFile() */
+    Callable<Object> readFile;
+
+    @Setup
+    public void setup() throws Exception {
+        read = Workload.create("HexParser.read", size);
+        readFile = Workload.create("HexParser.readFile", size);
+    }
+
+    @Benchmark
+    public Object read() throws Exception {
+        return read.call();
+    }
+
+    @Benchmark
+    public Object readFile() throws Exception {
+        return readFile.call();
+    }
+}
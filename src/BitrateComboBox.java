@@ -0,0 +1,81 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Selection of the CAN bitrate: automatic detection or one of the USBtin
+ * presets, e.g. "500 kbit/s".
+ *
+ * @author Thomas Fischl
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class BitrateComboBox extends javax.swing.JComboBox {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Item of automatic detection by listening to the bus */
+    public static final String AUTO = "Auto";
+
+    /** Item of automatic detection with probe requests on a quiet bus */
+    public static final String AUTO_PROBE = "Auto, probe";
+
+    /**
+     * Construct selection with all presets of USBtin
+     */
+    public BitrateComboBox() {
+        super(createItems());
+    }
+
+    /**
+     * Create items: automatic modes, then presets fastest first
+     *
+     * @return Items of selection
+     */
+    protected static String[] createItems() {
+        String[] items = new String[LPCFlash.BITRATES.length + 2];
+        items[0] = AUTO;
+        items[1] = AUTO_PROBE;
+        for (int i = 0; i < LPCFlash.BITRATES.length; i++) {
+            items[i + 2] = (LPCFlash.BITRATES[i] / 1000) + " kbit/s";
+        }
+        return items;
+    }
+
+    /**
+     * Get selected bitrate
+     *
+     * @return Bitrate in bits/second or LPCFlash.BITRATE_AUTO
+     */
+    public int getBitrate() {
+        String item = String.valueOf(getSelectedItem());
+        if (item.equals(AUTO) || item.equals(AUTO_PROBE)) {
+            return LPCFlash.BITRATE_AUTO;
+        }
+        return Integer.parseInt(item.split(" ")[0]) * 1000;
+    }
+
+    /**
+     * Check if automatic detection may send probe requests
+     *
+     * @return true if probe requests are allowed on a quiet bus
+     */
+    public boolean isActiveProbe() {
+        return AUTO_PROBE.equals(getSelectedItem());
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016-2017  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Command line entry point for headless test stations. It drives LPCFlash
+ * directly and never touches Swing or AWT, so neither the window toolkit
+ * nor the preferences are initialized.
+ *
+ * The log goes to stderr. The last line on stdout is a status line with
+ * key=value pairs, e.g.
+ * "status=ok code=0 mode=flash nodes=1 bytes=30720 time=13.712".
+ *
+ * @author Thomas Fischl
+ */
+public class CANFlasherCLI implements LPCFlashListener {
+
+    /** Exit code: success */
+    public static final int EXIT_OK = 0;
+
+    /** Exit code: invalid command line */
+    public static final int EXIT_USAGE = 1;
+
+    /** Exit code: image file can't be read or parsed */
+    public static final int EXIT_FILE = 2;
+
+    /** Exit code: error while talking to USBtin or nodes */
+    public static final int EXIT_DEVICE = 3;
+
+    /** Exit code: flash content differs from image */
+    public static final int EXIT_VERIFY = 4;
+
+    /** Usage text */
+    protected static final String USAGE =
+            "Usage: java -cp CANFlasherUTNL.jar CANFlasherCLI [options]\n"
+            + "  --port <name>        USBtin port, e.g. /dev/ttyACM0, COM3 or sim\n"
+            + "  --file <name>        image file to flash or verify (HEX, S-record, ELF or binary)\n"
+            + "  --base <address>     load address of binary image files (default 0)\n"
+            + "  --go <mode>          code jump after flashing: none, address or reset (default none)\n"
+            + "  --exec <address>     execution address for --go address (default 0x200)\n"
+            + "  --node <ids>         comma separated node IDs (default 0x7D)\n"
+            + "  --bitrate <rate>     bitrate in bits/second, auto to listen for the bus bitrate or\n"
+            + "                       probe to send probe requests on a quiet bus too (default 100000)\n"
+            + "  --verify             compare flash with HEX file only, don't program\n"
+            + "  --readback <name>    read flash to file (.hex or binary), don't program\n"
+            + "  --start <address>    first address for --readback (default 0)\n"
+            + "  --length <bytes>     count of bytes for --readback (default 32768)\n"
+            + "  --plan               print SDO operations for HEX file, don't connect\n"
+            + "  --no-optimize        send all writes, even of values the bootloader holds\n"
+            + "  --address-increment  bootloader increments RAM write address, send it once\n"
+            + "                       per sector (not documented for LPC11C2x)\n"
+            + "  --blank-check        skip erase of blank sectors\n"
+            + "  --batch <frames>     frames written to USBtin without acknowledge (default " + USBtinTransport.DEFAULT_BATCH_SIZE + ")\n"
+            + "  --retries <count>    retries of failed transfers (default " + LPCFlash.DEFAULT_RETRIES + ")\n"
+            + "  --report <name>      write session report (.csv or JSON)\n"
+            + "  --journal <name>     resume interrupted flash processes with this journal\n"
+            + "  --cache <dir>        keep prepared images in this directory\n"
+            + "  --shadow <name>      skip sectors this device database knows as unchanged\n"
+            + "  --spot-check         read a sample of every skipped sector\n"
+            + "  --trace <name>       record all CAN frames to this ring file (see CANTraceReplay)\n"
+            + "  --quiet              no log output, status line only\n"
+            + "Exit codes: 0 ok, 1 usage, 2 file, 3 device, 4 verify mismatch\n";
+
+    /** Modes of operation */
+    public enum Mode {
+        FLASH, VERIFY, READBACK, PLAN
+    }
+
+    /** Stream for log messages or null */
+    protected final PrintStream log;
+
+    /**
+     * Construct command line runner
+     *
+     * @param log Stream for log messages or null for no log
+     */
+    public CANFlasherCLI(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Print out given message to log stream
+     *
+     * @param message Message to print out
+     */
+    @Override
+    public void outputMessage(String message) {
+        if (log != null) {
+            log.print(message);
+            log.flush();
+        }
+    }
+
+    /**
+     * Parse command line and run it
+     *
+     * @param args Command line arguments
+     * @param status Stream for status line
+     * @return Exit code
+     */
+    public int run(String[] args, PrintStream status) {
+
+        String port = null;
+        String file = null;
+        LPCFlash.GoMode gomode = LPCFlash.GoMode.NO;
+        int executionAddress = 0x200;
+        int[] nodeIds = new int[]{USBtinSDO.DEFAULT_NODE_ID};
+        Mode mode = Mode.FLASH;
+        String readbackFile = null;
+        int start = 0;
+        int length = LPCFlash.FLASH_SIZE;
+        String traceFile = null;
+        LPCFlash lpcflash = new LPCFlash();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--verify")) {
+                    mode = Mode.VERIFY;
+                } else if (arg.equals("--plan")) {
+                    mode = Mode.PLAN;
+                } else if (arg.equals("--no-optimize")) {
+                    lpcflash.setOptimizePlan(false);
+                } else if (arg.equals("--address-increment")) {
+                    lpcflash.setAddressIncrement(true);
+                } else if (arg.equals("--spot-check")) {
+                    lpcflash.setSpotCheck(true);
+                } else if (arg.equals("--blank-check")) {
+                    lpcflash.setBlankCheck(true);
+                } else if (arg.equals("--quiet")) {
+                    // handled in main()
+                } else if (arg.equals("--help")) {
+                    status.print(USAGE);
+                    return EXIT_OK;
+                } else if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of " + arg);
+                } else {
+                    String value = args[++i];
+                    if (arg.equals("--port")) {
+                        port = value;
+                    } else if (arg.equals("--file")) {
+                        file = value;
+                    } else if (arg.equals("--go")) {
+                        if (value.equals("none")) gomode = LPCFlash.GoMode.NO;
+                        else if (value.equals("address")) gomode = LPCFlash.GoMode.ADDRESS;
+                        else if (value.equals("reset")) gomode = LPCFlash.GoMode.INSERTRESET;
+                        else throw new IllegalArgumentException("invalid go mode: " + value);
+                    } else if (arg.equals("--base")) {
+                        lpcflash.setBinaryBase(Integer.decode(value));
+                    } else if (arg.equals("--exec")) {
+                        executionAddress = Integer.decode(value);
+                    } else if (arg.equals("--node")) {
+                        String[] nodeIdList = value.split(",");
+                        nodeIds = new int[nodeIdList.length];
+                        for (int n = 0; n < nodeIdList.length; n++) {
+                            nodeIds[n] = Integer.decode(nodeIdList[n].trim());
+                            if (nodeIds[n] < 1 || nodeIds[n] > 127) {
+                                throw new IllegalArgumentException("invalid node ID: " + nodeIds[n]);
+                            }
+                        }
+                    } else if (arg.equals("--bitrate")) {
+                        boolean auto = value.equals("auto") || value.equals("probe");
+                        lpcflash.setBitrate(auto ? LPCFlash.BITRATE_AUTO : Integer.parseInt(value));
+                        lpcflash.setActiveProbe(value.equals("probe"));
+                    } else if (arg.equals("--readback")) {
+                        mode = Mode.READBACK;
+                        readbackFile = value;
+                    } else if (arg.equals("--start")) {
+                        start = Integer.decode(value);
+                    } else if (arg.equals("--length")) {
+                        length = Integer.decode(value);
+                    } else if (arg.equals("--batch")) {
+                        lpcflash.setBatchSize(Integer.parseInt(value));
+                    } else if (arg.equals("--retries")) {
+                        lpcflash.setRetries(Integer.parseInt(value));
+                    } else if (arg.equals("--report")) {
+                        lpcflash.setReportFile(new File(value));
+                    } else if (arg.equals("--cache")) {
+                        lpcflash.setImageCache(new FlashImageCache(new File(value)));
+                    } else if (arg.equals("--shadow")) {
+                        lpcflash.setShadow(new DeviceShadow(new File(value)));
+                    } else if (arg.equals("--trace")) {
+                        traceFile = value;
+                    } else if (arg.equals("--journal")) {
+                        lpcflash.setJournal(new FlashJournal(new File(value)));
+                    } else {
+                        throw new IllegalArgumentException("unknown option: " + arg);
+                    }
+                }
+            }
+            if ((port == null) && (mode != Mode.PLAN)) {
+                throw new IllegalArgumentException("--port missing");
+            }
+            if ((mode != Mode.READBACK) && (file == null)) {
+                throw new IllegalArgumentException("--file missing");
+            }
+            if ((mode == Mode.READBACK) && (nodeIds.length != 1)) {
+                throw new IllegalArgumentException("--readback needs exactly one node");
+            }
+        } catch (IOException ex) {
+            return status(status, mode, EXIT_FILE, nodeIds.length, 0, 0, ex);
+        } catch (IllegalArgumentException ex) {
+            outputMessage(USAGE);
+            return status(status, mode, EXIT_USAGE, nodeIds.length, 0, 0, ex);
+        }
+
+        CANTrace trace = null;
+        if (traceFile != null) {
+            try {
+                trace = new CANTrace(new File(traceFile), CANTrace.DEFAULT_CAPACITY);
+            } catch (IOException ex) {
+                return status(status, mode, EXIT_FILE, nodeIds.length, 0, 0, ex);
+            }
+            lpcflash.setTrace(trace);
+        }
+
+        try {
+            return run(lpcflash, mode, port, file, gomode, executionAddress, nodeIds, readbackFile, start, length, status);
+        } finally {
+            if (trace != null) {
+                try {
+                    trace.close();
+                } catch (IOException ex) {
+                    outputMessage("Can't write CAN trace: " + ex.getMessage() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Run parsed command line
+     *
+     * @param lpcflash Flash engine with options set
+     * @param mode Mode of operation
+     * @param port USBtin port
+     * @param file Image file or null
+     * @param gomode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     * @param nodeIds Node IDs
+     * @param readbackFile File to read flash into or null
+     * @param start First address to read back
+     * @param length Count of bytes to read back
+     * @param status Stream for status line
+     * @return Exit code
+     */
+    protected int run(LPCFlash lpcflash, Mode mode, String port, String file, LPCFlash.GoMode gomode, int executionAddress,
+            int[] nodeIds, String readbackFile, int start, int length, PrintStream status) {
+
+        lpcflash.addListener(this);
+        long begin = System.nanoTime();
+
+        FlashImage image = null;
+        if (mode != Mode.READBACK) {
+            try {
+                image = lpcflash.loadImage(file, gomode, executionAddress);
+            } catch (Exception ex) {
+                // IOException or IllegalArgumentException of the parser
+                return status(status, mode, EXIT_FILE, nodeIds.length, 0, System.nanoTime() - begin, ex);
+            }
+        }
+
+        if (mode == Mode.PLAN) {
+            FlashPlan plan = lpcflash.createPlan(image);
+            status.print(plan);
+            outputMessage("Plan: " + plan.getSummary() + "\n");
+            outputMessage("Without optimizer: " + plan.getRequestCount(false) + " requests, "
+                    + plan.getRoundTrips(false) + " round trips\n");
+            long bytes = (long) image.getTransferSize() * nodeIds.length;
+            return status(status, mode, EXIT_OK, nodeIds.length, bytes, System.nanoTime() - begin, null);
+        }
+
+        try {
+            switch (mode) {
+                case FLASH:
+                    lpcflash.flashImage(port, image, nodeIds);
+                    break;
+                case VERIFY:
+                    lpcflash.verifyImage(port, image, nodeIds);
+                    break;
+                case READBACK:
+                    lpcflash.readBack(port, nodeIds[0], start, length, new File(readbackFile));
+                    break;
+            }
+        } catch (VerifyException ex) {
+            return status(status, mode, EXIT_VERIFY, nodeIds.length, lpcflash.getBytesTransferred(), System.nanoTime() - begin, ex);
+        } catch (IOException ex) {
+            return status(status, mode, EXIT_FILE, nodeIds.length, lpcflash.getBytesTransferred(), System.nanoTime() - begin, ex);
+        } catch (Exception ex) {
+            return status(status, mode, EXIT_DEVICE, nodeIds.length, lpcflash.getBytesTransferred(), System.nanoTime() - begin, ex);
+        }
+
+        return status(status, mode, EXIT_OK, nodeIds.length, lpcflash.getBytesTransferred(), System.nanoTime() - begin, null);
+    }
+
+    /**
+     * Print status line
+     *
+     * @param status Stream for status line
+     * @param mode Mode of operation
+     * @param code Exit code
+     * @param nodes Count of nodes
+     * @param bytes Count of bytes transferred to or from all nodes
+     * @param nanos Duration in nanoseconds
+     * @param error Error or null on success
+     * @return Exit code
+     */
+    protected int status(PrintStream status, Mode mode, int code, int nodes, long bytes, long nanos, Exception error) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("status=").append(error == null ? "ok" : "error");
+        sb.append(" code=").append(code);
+        sb.append(" mode=").append(mode.name().toLowerCase());
+        sb.append(" nodes=").append(nodes);
+        sb.append(" bytes=").append(bytes);
+        sb.append(String.format(Locale.ROOT, " time=%.3f", nanos / 1e9));
+        if (error != null) {
+            // quoted, so the message is one value
+            String message = String.valueOf(error.getMessage()).replace('"', '\'').replace('\n', ' ');
+            sb.append(" error=\"").append(message).append('"');
+        }
+        status.println(sb);
+        status.flush();
+        return code;
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+
+        boolean quiet = false;
+        for (String arg : args) {
+            if (arg.equals("--quiet")) quiet = true;
+        }
+
+        CANFlasherCLI cli = new CANFlasherCLI(quiet ? null : System.err);
+        int code = cli.run(args, System.out);
+
+        // receive thread of USBtin is no daemon
+        System.exit(code);
+    }
+}
@@ -20,9 +20,16 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.prefs.Preferences;
 import javax.swing.JFileChooser;
+import javax.swing.Timer;
 import javax.swing.text.DefaultCaret;
 import jssc.SerialPortList;
 
@@ -33,12 +40,46 @@ import jssc.SerialPortList;
  */
 public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListener {
 
+    /** Name of journal file in home directory */
+    static final String JOURNAL_FILENAME = ".canflasherutnl-journal";
+    
+    /** Name of device database file in home directory */
+    static final String SHADOW_FILENAME = ".canflasherutnl-devices";
+    
+    /** Name of image cache directory in home directory */
+    static final String CACHE_DIRNAME = ".canflasherutnl-cache";
+    
     /** File chooser dialog */
     final JFileChooser fc = new JFileChooser();
     
     /** Flash engine for LPC controller */
     LPCFlash lpcflash = new LPCFlash();
     
+    /** Device database, opened when skipping of unchanged sectors is enabled */
+    DeviceShadow shadow = null;
+    
+    /** Runs flash jobs one after another */
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    
+    /** Running flash job or null (accessed in event dispatch thread only) */
+    FlashJob job = null;
+    
+    /** Interval of progress bar updates in milliseconds */
+    static final int PROGRESS_INTERVAL = 250;
+    
+    /** Log messages waiting for the next update of the log window */
+    SwingLogBuffer logBuffer;
+    
+    /** Throughput of running job */
+    final ThroughputMeter meter = new ThroughputMeter();
+    
+    /** Updates progress bar while a job runs */
+    final Timer progressTimer = new Timer(PROGRESS_INTERVAL, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+            updateProgress();
+        }
+    });
+    
     /**
      * Creates new form CANFlasherUTNL
      */
@@ -47,22 +88,52 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
         
         DefaultCaret caret = (DefaultCaret) logTextArea.getCaret();
         caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+        logBuffer = new SwingLogBuffer(logTextArea);
         
         lpcflash.addListener(this);
+        lpcflash.addMetricsListener(meter);
         
         Preferences prefs = Preferences.userNodeForPackage(CANFlasherUTNL.class);
         serialPort.setSelectedItem(prefs.get("PORT", "COM1"));
         fileNameField.setText(prefs.get("FILENAME", ""));
         executionAddressField.setText(prefs.get("EXECUTIONADDRESS", "0x200"));
+        nodeIdField.setText(prefs.get("NODEIDS", "0x7D"));
+        blankCheckBox.setSelected(prefs.getBoolean("BLANKCHECK", false));
+        shadowCheckBox.setSelected(prefs.getBoolean("SHADOW", false));
+        bitrateBox.setSelectedItem(prefs.get("BITRATE", "100 kbit/s"));
+        
+        // resume interrupted flash processes
+        try {
+            lpcflash.setJournal(new FlashJournal(new File(System.getProperty("user.home"), JOURNAL_FILENAME)));
+        } catch (IOException ex) {
+            logTextArea.append("\n\nCan't open journal: " + ex.getMessage());
+        }
+        lpcflash.setImageCache(new FlashImageCache(new File(System.getProperty("user.home"), CACHE_DIRNAME)));
+        lpcflash.setSpotCheck(true);
     }
 
     /**
-     * Add output message to log window
+     * Add output message to log window. Called from the flash threads, the
+     * log window is updated once per frame.
      * @param message Message to print out
      */
     @Override
     public void outputMessage(String message) {
-        logTextArea.append(message);
+        logBuffer.append(message);
+    }
+    
+    /**
+     * Show progress and throughput of running job in progress bar
+     */
+    private void updateProgress() {
+        if (job == null) {
+            return;
+        }
+        long done = job.getBytesDone();
+        long total = job.getBytesTotal();
+        meter.sample(done, total);
+        progressBar.setValue(total > 0 ? (int) (done * progressBar.getMaximum() / total) : 0);
+        progressBar.setString(total > 0 ? meter.toString() : "");
     }
     
     
@@ -82,6 +153,8 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
         fileNameField = new javax.swing.JTextField();
         filebrowseButton = new javax.swing.JButton();
         uploadButton = new javax.swing.JButton();
+        verifyButton = new javax.swing.JButton();
+        progressBar = new javax.swing.JProgressBar();
         jScrollPane1 = new javax.swing.JScrollPane();
         logTextArea = new javax.swing.JTextArea();
         jLabel3 = new javax.swing.JLabel();
@@ -89,6 +162,12 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
         goModeJump = new javax.swing.JRadioButton();
         goModeInsertReset = new javax.swing.JRadioButton();
         executionAddressField = new javax.swing.JTextField();
+        jLabel4 = new javax.swing.JLabel();
+        nodeIdField = new javax.swing.JTextField();
+        blankCheckBox = new javax.swing.JCheckBox();
+        shadowCheckBox = new javax.swing.JCheckBox();
+        jLabel5 = new javax.swing.JLabel();
+        bitrateBox = new BitrateComboBox();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("CANFlasherUTNL v1.1.1");
@@ -113,6 +192,17 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
             }
         });
 
+        verifyButton.setText("Verify");
+        verifyButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                verifyButtonActionPerformed(evt);
+            }
+        });
+
+        progressBar.setMaximum(1000);
+        progressBar.setString("");
+        progressBar.setStringPainted(true);
+
         logTextArea.setEditable(false);
         logTextArea.setColumns(20);
         logTextArea.setRows(5);
@@ -133,6 +223,18 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
 
         executionAddressField.setText("0x200");
 
+        jLabel4.setText("Node IDs");
+
+        nodeIdField.setText("0x7D");
+
+        blankCheckBox.setText("Skip erase of blank sectors");
+
+        jLabel5.setText("Bitrate");
+
+        bitrateBox.setSelectedItem("100 kbit/s");
+
+        shadowCheckBox.setText("Skip unchanged sectors");
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -145,7 +247,9 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
                         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addComponent(jLabel2)
                             .addComponent(jLabel1)
-                            .addComponent(jLabel3))
+                            .addComponent(jLabel3)
+                            .addComponent(jLabel4)
+                            .addComponent(jLabel5))
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addGroup(layout.createSequentialGroup()
@@ -160,10 +264,21 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
                                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                                 .addComponent(executionAddressField, javax.swing.GroupLayout.PREFERRED_SIZE, 94, javax.swing.GroupLayout.PREFERRED_SIZE)
                                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
-                                .addComponent(goModeInsertReset))))
+                                .addComponent(goModeInsertReset))
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(nodeIdField, javax.swing.GroupLayout.PREFERRED_SIZE, 94, javax.swing.GroupLayout.PREFERRED_SIZE)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                                .addComponent(blankCheckBox))
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(bitrateBox, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                                .addComponent(shadowCheckBox))))
                     .addGroup(layout.createSequentialGroup()
                         .addComponent(uploadButton)
-                        .addGap(0, 0, Short.MAX_VALUE)))
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(verifyButton)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                        .addComponent(progressBar, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)))
                 .addContainerGap())
         );
         layout.setVerticalGroup(
@@ -186,8 +301,21 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
                         .addComponent(goModeJump)
                         .addComponent(executionAddressField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addComponent(goModeInsertReset)))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(jLabel4)
+                    .addComponent(nodeIdField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(blankCheckBox))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(jLabel5)
+                    .addComponent(bitrateBox, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(shadowCheckBox))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
-                .addComponent(uploadButton)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.CENTER)
+                    .addComponent(uploadButton)
+                    .addComponent(verifyButton)
+                    .addComponent(progressBar, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addGap(18, 18, 18)
                 .addComponent(jScrollPane1, javax.swing.GroupLayout.DEFAULT_SIZE, 220, Short.MAX_VALUE)
                 .addContainerGap())
@@ -220,41 +348,130 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
      * @param evt Action event
      */
     private void uploadButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_uploadButtonActionPerformed
+        startJob(false);
+    }//GEN-LAST:event_uploadButtonActionPerformed
+
+    /**
+     * Handle verify button event
+     * 
+     * @param evt Action event
+     */
+    private void verifyButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_verifyButtonActionPerformed
+        startJob(true);
+    }//GEN-LAST:event_verifyButtonActionPerformed
+
+    /**
+     * Save settings and submit flash job. While the job runs, the upload
+     * button cancels it.
+     * 
+     * @param verifyOnly true to compare flash content with HEX file only
+     */
+    private void startJob(final boolean verifyOnly) {
+
+        if (job != null) {
+            job.cancel(true);
+            return;
+        }
    
+        LPCFlash.GoMode gomode = LPCFlash.GoMode.NO;
+        int address = 0;
+
+        try {
+            if (goModeJump.isSelected()) {
+                gomode = LPCFlash.GoMode.ADDRESS;
+                if (executionAddressField.getText().startsWith("0x")) {
+                    address = Integer.parseInt(executionAddressField.getText().substring(2), 16);
+                } else {
+                    address = Integer.parseInt(executionAddressField.getText());
+                }
+            } else if (goModeInsertReset.isSelected()) {
+                gomode = LPCFlash.GoMode.INSERTRESET;
+            }
+        } catch (NumberFormatException ex) {
+            outputMessage("ERROR: invalid execution address: " + executionAddressField.getText() + "\n");
+            return;
+        }
+
+        // comma separated list of node IDs
+        String[] nodeIdList = nodeIdField.getText().split(",");
+        int[] nodeIds = new int[nodeIdList.length];
+        for (int i = 0; i < nodeIdList.length; i++) {
+            try {
+                nodeIds[i] = Integer.decode(nodeIdList[i].trim());
+            } catch (NumberFormatException ex) {
+                nodeIds[i] = 0;
+            }
+            if (nodeIds[i] < 1 || nodeIds[i] > 127) {
+                outputMessage("ERROR: invalid node ID: " + nodeIdList[i].trim() + "\n");
+                return;
+            }
+        }
+
         // clear log window
-        logTextArea.setText("");
+        logBuffer.clear();
         
         // save settings
         Preferences prefs = Preferences.userNodeForPackage(CANFlasherUTNL.class);
         prefs.put("PORT", (String)serialPort.getSelectedItem());
         prefs.put("FILENAME", (String)fileNameField.getText());
         prefs.put("EXECUTIONADDRESS", (String)executionAddressField.getText());
-                
-        // run flash engine within new thread
-        new Thread(new Runnable() {                                    
-            public void run() {
-              uploadButton.setEnabled(false);
-              
-              LPCFlash.GoMode gomode = LPCFlash.GoMode.NO;
-              int address = 0;
-              
-              if (goModeJump.isSelected()) {
-                  gomode = LPCFlash.GoMode.ADDRESS;
-                  if (executionAddressField.getText().substring(0, 2).equals("0x")) {
-                      address = Integer.parseInt(executionAddressField.getText().substring(2), 16);
-                  } else {
-                      address = Integer.parseInt(executionAddressField.getText());
-                  }
-              } else if (goModeInsertReset.isSelected()) {
-                  gomode = LPCFlash.GoMode.INSERTRESET;
-              }
-              
-              lpcflash.flash(serialPort.getSelectedItem().toString(), fileNameField.getText(), gomode, address);
-              uploadButton.setEnabled(true);
+        prefs.put("NODEIDS", nodeIdField.getText());
+        prefs.putBoolean("BLANKCHECK", blankCheckBox.isSelected());
+        prefs.putBoolean("SHADOW", shadowCheckBox.isSelected());
+        prefs.put("BITRATE", String.valueOf(bitrateBox.getSelectedItem()));
+
+        lpcflash.setBlankCheck(blankCheckBox.isSelected());
 
+        // skip sectors which hold the new content already, the spot check
+        // reads a sample in case the device was flashed by another tool
+        if (shadowCheckBox.isSelected() && (shadow == null)) {
+            try {
+                shadow = new DeviceShadow(new File(System.getProperty("user.home"), SHADOW_FILENAME));
+            } catch (IOException ex) {
+                outputMessage("Can't open device database: " + ex.getMessage() + "\n");
             }
-        }).start();
-    }//GEN-LAST:event_uploadButtonActionPerformed
+        }
+        lpcflash.setShadow(shadowCheckBox.isSelected() ? shadow : null);
+
+        lpcflash.setBitrate(bitrateBox.getBitrate());
+        lpcflash.setActiveProbe(bitrateBox.isActiveProbe());
+
+        // run flash engine within worker thread
+        String port = serialPort.getSelectedItem().toString();
+        if (verifyOnly) {
+            job = lpcflash.submitVerify(executor, port, fileNameField.getText(), gomode, address, nodeIds);
+        } else {
+            job = lpcflash.submitFlash(executor, port, fileNameField.getText(), gomode, address, nodeIds);
+        }
+        uploadButton.setText("Cancel");
+        verifyButton.setEnabled(false);
+        meter.reset();
+        progressBar.setValue(0);
+        progressBar.setString("");
+        progressTimer.start();
+
+        job.addListener(new FlashJobListener() {
+            public void jobFinished(final FlashJob finished) {
+                java.awt.EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        updateProgress();
+                        progressTimer.stop();
+                        Exception error = finished.getError();
+                        if (error == null) {
+                            outputMessage(verifyOnly ? "Verified.\n" : "Finished.\n");
+                        } else if (error instanceof CancellationException) {
+                            outputMessage("\nCancelled.\n");
+                        } else {
+                            outputMessage("ERROR: " + error.getMessage());
+                        }
+                        job = null;
+                        uploadButton.setText("Upload");
+                        verifyButton.setEnabled(true);
+                    }
+                });
+            }
+        });
+    }
 
     /**
      * @param args the command line arguments
@@ -292,6 +509,8 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private BitrateComboBox bitrateBox;
+    private javax.swing.JCheckBox blankCheckBox;
     private javax.swing.JTextField executionAddressField;
     private javax.swing.JTextField fileNameField;
     private javax.swing.JButton filebrowseButton;
@@ -302,9 +521,15 @@ public class CANFlasherUTNL extends javax.swing.JFrame implements LPCFlashListen
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
+    private javax.swing.JLabel jLabel4;
+    private javax.swing.JLabel jLabel5;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JTextArea logTextArea;
+    private javax.swing.JTextField nodeIdField;
+    private javax.swing.JProgressBar progressBar;
     private javax.swing.JComboBox serialPort;
+    private javax.swing.JCheckBox shadowCheckBox;
     private javax.swing.JButton uploadButton;
+    private javax.swing.JButton verifyButton;
     // End of variables declaration//GEN-END:variables
 }
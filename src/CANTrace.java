@@ -0,0 +1,299 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.CANMessage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recorder of CAN frames into a binary ring file. The file is preallocated
+ * and memory mapped when the trace is opened, so recording a frame is a few
+ * stores into memory without system calls. When the ring is full, the
+ * oldest frames are overwritten.
+ *
+ * File layout (big endian): header of HEADER_SIZE bytes with magic, record
+ * size, capacity, wall clock time of opening (ms) and count of frames
+ * recorded so far, followed by capacity records. A record holds the
+ * timestamp in nanoseconds since opening, COB-ID, flags, data length and
+ * 8 data bytes. The count is updated after the record is complete.
+ *
+ * Frames are recorded from the sending thread and the serial receive
+ * thread. No lock is taken: each frame reserves its slot with an atomic
+ * increment and fills it with absolute puts, which don't touch the state of
+ * the shared buffer. The count in the header follows the highest
+ * completed record; while recording, it may lag behind by a frame and a
+ * slower thread may still be filling a slot below it. close() writes the
+ * final count.
+ *
+ * @author Thomas Fischl
+ */
+public class CANTrace {
+
+    /** Magic number and version of trace files ("CTR1") */
+    protected static final int MAGIC = 0x43545231;
+
+    /** Size of file header */
+    protected static final int HEADER_SIZE = 32;
+
+    /** Size of one record */
+    protected static final int RECORD_SIZE = 24;
+
+    /** Position of frame count in header */
+    protected static final int COUNT_POSITION = 20;
+
+    /** Default count of records in ring */
+    public static final int DEFAULT_CAPACITY = 131072;
+
+    /** Record flag: frame was sent */
+    public static final int FLAG_TX = 0x01;
+
+    /** Record flag: extended frame */
+    public static final int FLAG_EXTENDED = 0x02;
+
+    /** Record flag: remote transmission request */
+    public static final int FLAG_RTR = 0x04;
+
+    /**
+     * Recorded CAN frame
+     */
+    public static class Frame {
+
+        /** Time since opening the trace in nanoseconds */
+        protected final long timestamp;
+
+        /** Record flags */
+        protected final int flags;
+
+        /** CAN message */
+        protected final CANMessage message;
+
+        /**
+         * Construct frame
+         *
+         * @param timestamp Time since opening the trace in nanoseconds
+         * @param flags Record flags
+         * @param message CAN message
+         */
+        public Frame(long timestamp, int flags, CANMessage message) {
+            this.timestamp = timestamp;
+            this.flags = flags;
+            this.message = message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public CANMessage getMessage() {
+            return message;
+        }
+
+        public boolean isSent() {
+            return (flags & FLAG_TX) != 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(isSent() ? "tx " : "rx ");
+            sb.append(String.format(message.isExtended() ? "%08X" : "%03X", message.getId()));
+            for (byte b : message.getData()) {
+                sb.append(String.format(" %02X", b & 0xff));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Random access file of trace */
+    protected final RandomAccessFile raf;
+
+    /** Mapped content of trace file */
+    protected final MappedByteBuffer buf;
+
+    /** Count of records in ring */
+    protected final int capacity;
+
+    /** Time of opening (System.nanoTime()) */
+    protected final long start;
+
+    /** Count of slots reserved so far */
+    protected final AtomicLong reserved = new AtomicLong();
+
+    /** Count of frames recorded so far: highest completed slot + 1 */
+    protected final AtomicLong count = new AtomicLong();
+
+    /**
+     * Create trace file with given capacity. An existing file is replaced.
+     *
+     * @param file Trace file
+     * @param capacity Count of records in ring
+     * @throws IOException Error while creating file
+     */
+    public CANTrace(File file, int capacity) throws IOException {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid trace capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            // write zeros instead of setLength(), so no block is allocated while recording
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer zeros = ByteBuffer.allocate(65536);
+            for (long pos = 0; pos < size; pos += zeros.capacity()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - pos));
+                while (zeros.hasRemaining()) {
+                    channel.write(zeros, pos + zeros.position());
+                }
+            }
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+
+        start = System.nanoTime();
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, RECORD_SIZE);
+        buf.putInt(8, capacity);
+        buf.putLong(12, System.currentTimeMillis());
+        buf.putLong(COUNT_POSITION, 0);
+    }
+
+    /**
+     * Record given frame. Safe to call from several threads without
+     * locking.
+     *
+     * @param sent true if the frame was sent, false if it was received
+     * @param canmsg CAN message
+     */
+    public void record(boolean sent, CANMessage canmsg) {
+
+        long n = reserved.getAndIncrement();
+        long timestamp = System.nanoTime() - start;
+        int pos = HEADER_SIZE + (int) (n % capacity) * RECORD_SIZE;
+        byte[] data = canmsg.getData();
+        int length = Math.min(data.length, 8);
+        int flags = (sent ? FLAG_TX : 0) | (canmsg.isExtended() ? FLAG_EXTENDED : 0) | (canmsg.isRtr() ? FLAG_RTR : 0);
+
+        buf.putLong(pos, timestamp);
+        buf.putInt(pos + 8, canmsg.getId());
+        buf.put(pos + 12, (byte) flags);
+        buf.put(pos + 13, (byte) length);
+        for (int i = 0; i < 8; i++) {
+            buf.put(pos + 16 + i, i < length ? data[i] : 0);
+        }
+
+        // advance count monotonically, a thread finishing an earlier slot later doesn't lower it
+        long c;
+        do {
+            c = count.get();
+            if (c > n) {
+                return;
+            }
+        } while (!count.compareAndSet(c, n + 1));
+        buf.putLong(COUNT_POSITION, n + 1);
+    }
+
+    /**
+     * Get count of frames recorded so far, including overwritten ones
+     *
+     * @return Count of frames
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Write recorded frames to disk and close trace file. Frames must not
+     * be recorded anymore.
+     *
+     * @throws IOException Error while writing file
+     */
+    public void close() throws IOException {
+        buf.putLong(COUNT_POSITION, count.get());
+        buf.force();
+        raf.close();
+    }
+
+    /**
+     * Read frames of given trace file, oldest first
+     *
+     * @param file Trace file
+     * @return Frames still in the ring
+     * @throws IOException Error while reading file or invalid file
+     */
+    public static List<Frame> read(File file) throws IOException {
+
+        // read into heap, a mapping would keep the file locked on Windows
+        ByteBuffer buf = ImageLoader.readFile(file);
+        if ((buf.limit() < HEADER_SIZE) || (buf.getInt(0) != MAGIC) || (buf.getInt(4) != RECORD_SIZE)) {
+            throw new IOException("no CAN trace file: " + file);
+        }
+        int capacity = buf.getInt(8);
+        long count = buf.getLong(COUNT_POSITION);
+        if ((capacity < 1) || (count < 0) || (HEADER_SIZE + (long) capacity * RECORD_SIZE > buf.limit())) {
+            throw new IOException("corrupted CAN trace file: " + file);
+        }
+
+        long first = Math.max(0, count - capacity);
+        List<Frame> frames = new ArrayList<Frame>((int) (count - first));
+        for (long n = first; n < count; n++) {
+            int pos = HEADER_SIZE + (int) (n % capacity) * RECORD_SIZE;
+            int flags = buf.get(pos + 12);
+            byte[] data = new byte[Math.min(buf.get(pos + 13) & 0xff, 8)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = buf.get(pos + 16 + i);
+            }
+            CANMessage canmsg = new CANMessage(buf.getInt(pos + 8), data,
+                    (flags & FLAG_EXTENDED) != 0, (flags & FLAG_RTR) != 0);
+            frames.add(new Frame(buf.getLong(pos), flags, canmsg));
+        }
+        return frames;
+    }
+
+    /**
+     * Get wall clock time the given trace file was opened for recording
+     *
+     * @param file Trace file
+     * @return Time in milliseconds since epoch
+     * @throws IOException Error while reading file
+     */
+    public static long getStartTime(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readInt();
+            in.readInt();
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+}
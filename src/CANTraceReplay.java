@@ -0,0 +1,304 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.CANMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Analyze a recorded CAN trace. The frames are replayed in recorded order;
+ * requests and responses are paired per node by their COB-ID like USBtinSDO
+ * does. The report lists the distribution of inter-frame gaps and round
+ * trip times, unanswered requests, aborts and stalls, i.e. gaps longer than
+ * a threshold together with the frame the bus was waiting for. The report
+ * depends on the trace only, so replaying a trace twice gives the same
+ * result.
+ *
+ * @author Thomas Fischl
+ */
+public class CANTraceReplay {
+
+    /** Usage text */
+    protected static final String USAGE =
+            "Usage: java -cp CANFlasherUTNL.jar CANTraceReplay [options] <trace file>\n"
+            + "  --stall <ms>         report gaps longer than this (default 50)\n"
+            + "  --stalls <count>     count of longest stalls to list (default 10)\n";
+
+    /**
+     * Gap longer than the stall threshold
+     */
+    protected static class Stall {
+
+        /** Duration of gap in nanoseconds */
+        protected final long gap;
+
+        /** Last frame before gap */
+        protected final CANTrace.Frame before;
+
+        /** First frame after gap */
+        protected final CANTrace.Frame after;
+
+        protected Stall(long gap, CANTrace.Frame before, CANTrace.Frame after) {
+            this.gap = gap;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /** Default stall threshold in nanoseconds */
+    public static final long DEFAULT_STALL = 50000000L;
+
+    /** Gaps longer than this are stalls (nanoseconds) */
+    protected final long stallThreshold;
+
+    /** Count of longest stalls to list */
+    protected final int stallCount;
+
+    /** Gaps between consecutive frames (nanoseconds) */
+    protected final List<Long> gaps = new ArrayList<Long>();
+
+    /** Round trip times per node (nanoseconds) */
+    protected final SortedMap<Integer, List<Long>> roundTrips = new TreeMap<Integer, List<Long>>();
+
+    /** Time of pending request per node or -1 */
+    protected final long[] pending = new long[128];
+
+    /** Count of requests without response per node */
+    protected final int[] unanswered = new int[128];
+
+    /** Count of aborts per node */
+    protected final int[] aborts = new int[128];
+
+    /** Gaps longer than the threshold in recorded order */
+    protected final List<Stall> stalls = new ArrayList<Stall>();
+
+    /** Count of sent and received frames */
+    protected int sent = 0, received = 0;
+
+    /** Count of received frames which are no SDO response */
+    protected int other = 0;
+
+    /** Timestamp of first and last frame */
+    protected long first = -1, last = -1;
+
+    /** Previous frame or null */
+    protected CANTrace.Frame previous = null;
+
+    /**
+     * Construct analyzer
+     *
+     * @param stallThreshold Gaps longer than this are stalls (nanoseconds)
+     * @param stallCount Count of longest stalls to list
+     */
+    public CANTraceReplay(long stallThreshold, int stallCount) {
+        this.stallThreshold = stallThreshold;
+        this.stallCount = stallCount;
+        Arrays.fill(pending, -1);
+    }
+
+    /**
+     * Replay given frames
+     *
+     * @param frames Frames in recorded order
+     */
+    public void replay(List<CANTrace.Frame> frames) {
+        for (CANTrace.Frame frame : frames) {
+            replay(frame);
+        }
+    }
+
+    /**
+     * Replay one frame
+     *
+     * @param frame Next frame of trace
+     */
+    public void replay(CANTrace.Frame frame) {
+
+        long t = frame.getTimestamp();
+        if (previous != null) {
+            long gap = t - previous.getTimestamp();
+            gaps.add(gap);
+            if (gap > stallThreshold) {
+                stalls.add(new Stall(gap, previous, frame));
+            }
+        } else {
+            first = t;
+        }
+        last = t;
+        previous = frame;
+
+        CANMessage canmsg = frame.getMessage();
+        byte[] data = canmsg.getData();
+        boolean abort = (data.length > 0) && (data[0] == (byte) 0x80);
+
+        if (frame.isSent()) {
+            sent++;
+            int nodeId = canmsg.getId() - USBtinSDO.SDO_REQUEST_BASE;
+            if (canmsg.isExtended() || (nodeId < 1) || (nodeId > 127)) {
+                return;
+            }
+            if (abort) {
+                // abort requests aren't answered
+                aborts[nodeId]++;
+                return;
+            }
+            if (pending[nodeId] >= 0) {
+                unanswered[nodeId]++;
+            }
+            pending[nodeId] = t;
+        } else {
+            received++;
+            int nodeId = canmsg.getId() - USBtinSDO.SDO_RESPONSE_BASE;
+            if (canmsg.isExtended() || (nodeId < 1) || (nodeId > 127)) {
+                other++;
+                return;
+            }
+            if (abort) {
+                aborts[nodeId]++;
+            }
+            if (pending[nodeId] >= 0) {
+                List<Long> list = roundTrips.get(nodeId);
+                if (list == null) {
+                    list = new ArrayList<Long>();
+                    roundTrips.put(nodeId, list);
+                }
+                list.add(t - pending[nodeId]);
+                pending[nodeId] = -1;
+            } else {
+                other++;
+            }
+        }
+    }
+
+    /**
+     * Format distribution of given durations
+     *
+     * @param values Durations in nanoseconds
+     * @return Count, minimum, percentiles and maximum in microseconds
+     */
+    protected static String distribution(List<Long> values) {
+
+        if (values.isEmpty()) {
+            return "none";
+        }
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "count %d, min %.0f, p50 %.0f, p90 %.0f, p99 %.0f, max %.0f us",
+                sorted.length, sorted[0] / 1e3, percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.9) / 1e3,
+                percentile(sorted, 0.99) / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+
+    /**
+     * Get percentile of sorted values
+     *
+     * @param sorted Sorted values
+     * @param q Quantile (0..1)
+     * @return Value below which the given share of values is
+     */
+    protected static long percentile(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))];
+    }
+
+    /**
+     * Print report of replayed frames
+     *
+     * @param out Stream to print to
+     */
+    public void report(PrintStream out) {
+
+        out.println(String.format(Locale.ROOT, "Frames: %d sent, %d received in %.3f s",
+                sent, received, first < 0 ? 0.0 : (last - first) / 1e9));
+        out.println("Inter-frame gaps: " + distribution(gaps));
+
+        for (Map.Entry<Integer, List<Long>> entry : roundTrips.entrySet()) {
+            int nodeId = entry.getKey();
+            out.println(String.format("Node 0x%02X round trips: ", nodeId) + distribution(entry.getValue()));
+        }
+        for (int nodeId = 1; nodeId < 128; nodeId++) {
+            int open = unanswered[nodeId] + (pending[nodeId] >= 0 ? 1 : 0);
+            if ((open > 0) || (aborts[nodeId] > 0)) {
+                out.println(String.format("Node 0x%02X: %d requests without response, %d aborts", nodeId, open, aborts[nodeId]));
+            }
+        }
+        if (other > 0) {
+            out.println("Other received frames: " + other);
+        }
+
+        // longest first, equal gaps in recorded order
+        List<Stall> longest = new ArrayList<Stall>(stalls);
+        Collections.sort(longest, new Comparator<Stall>() {
+            public int compare(Stall a, Stall b) {
+                return Long.valueOf(b.gap).compareTo(a.gap);
+            }
+        });
+        out.println(String.format(Locale.ROOT, "Stalls longer than %.0f ms: %d", stallThreshold / 1e6, stalls.size()));
+        for (int i = 0; i < Math.min(stallCount, longest.size()); i++) {
+            Stall stall = longest.get(i);
+            out.println(String.format(Locale.ROOT, "  %10.6f s  %8.1f ms  after %s  until %s",
+                    stall.before.getTimestamp() / 1e9, stall.gap / 1e6, stall.before, stall.after));
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+
+        long stall = DEFAULT_STALL;
+        int count = 10;
+        String file = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--stall") && (i + 1 < args.length)) {
+                    stall = (long) (Double.parseDouble(args[++i]) * 1e6);
+                } else if (args[i].equals("--stalls") && (i + 1 < args.length)) {
+                    count = Integer.parseInt(args[++i]);
+                } else if (!args[i].startsWith("--") && (file == null)) {
+                    file = args[i];
+                } else {
+                    throw new IllegalArgumentException("invalid argument: " + args[i]);
+                }
+            }
+            if (file == null) {
+                throw new IllegalArgumentException("trace file missing");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(CANFlasherCLI.EXIT_USAGE);
+        }
+
+        try {
+            List<CANTrace.Frame> frames = CANTrace.read(new File(file));
+            System.out.println("Trace " + file + " recorded " + new Date(CANTrace.getStartTime(new File(file))));
+            CANTraceReplay replay = new CANTraceReplay(stall, count);
+            replay.replay(frames);
+            replay.report(System.out);
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            System.exit(CANFlasherCLI.EXIT_FILE);
+        }
+    }
+}
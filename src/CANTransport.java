@@ -0,0 +1,112 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+
+/**
+ * Access to a CAN bus. The SDO layer sends and receives its frames through
+ * this interface, so it doesn't depend on a physical USBtin.
+ *
+ * @author Thomas Fischl
+ */
+public interface CANTransport {
+
+    /**
+     * Connect to the interface
+     *
+     * @param portName Name of port
+     * @throws USBtinException Error while connecting
+     */
+    public void connect(String portName) throws USBtinException;
+
+    /**
+     * Disconnect from the interface
+     *
+     * @throws USBtinException Error while closing connection
+     */
+    public void disconnect() throws USBtinException;
+
+    /**
+     * Open CAN channel
+     *
+     * @param baudrate Baudrate in bits/second
+     * @param mode CAN bus accessing mode
+     * @throws USBtinException Error while opening CAN channel
+     */
+    public void openCANChannel(int baudrate, USBtin.OpenMode mode) throws USBtinException;
+
+    /**
+     * Close CAN channel
+     *
+     * @throws USBtinException Error while closing CAN channel
+     */
+    public void closeCANChannel() throws USBtinException;
+
+    /**
+     * Set hardware acceptance filter
+     *
+     * @param fc Filter chains
+     * @throws USBtinException Error while setting filter
+     */
+    public void setFilter(FilterChain[] fc) throws USBtinException;
+
+    /**
+     * Send given CAN message. Must be safe to call from several threads.
+     *
+     * @param canmsg Message to send
+     * @throws USBtinException Error while sending message
+     */
+    public void send(CANMessage canmsg) throws USBtinException;
+
+    /**
+     * Add listener for received CAN messages
+     *
+     * @param listener Listener to add
+     */
+    public void addMessageListener(CANMessageListener listener);
+
+    /**
+     * Remove listener for received CAN messages
+     *
+     * @param listener Listener to remove
+     */
+    public void removeMessageListener(CANMessageListener listener);
+
+    /**
+     * Get firmware version string
+     *
+     * @return Firmware version
+     */
+    public String getFirmwareVersion();
+
+    /**
+     * Get hardware version string
+     *
+     * @return Hardware version
+     */
+    public String getHardwareVersion();
+
+    /**
+     * Get serial number string
+     *
+     * @return Serial number
+     */
+    public String getSerialNumber();
+}
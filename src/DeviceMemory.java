@@ -18,20 +18,163 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Represents the memory structure of a target device. A device consists of
  * memory regions which can be programmed.
+ * 
+ * Memory is stored sparse: one page per sector is allocated on the first
+ * write to it, unwritten sectors read as erased (0xFF). Written sectors of
+ * flash regions are tracked in a dirty bitmap, so callers can iterate the
+ * written sectors without scanning the whole address space. Data of other
+ * regions, e.g. RAM initializers, is accepted but not part of the sectors.
  *
  * @author Thomas Fischl
  */
 public class DeviceMemory {
 
+    /** Value of erased memory */
+    public static final byte ERASED = (byte) 0xff;
+
+    /** Block sizes accepted by the copy RAM to flash command */
+    protected static final int[] TRANSFER_SIZES = {256, 512, 1024, 4096};
+
+    /**
+     * Address range of device memory
+     */
+    public static class Region {
+
+        /** Name of region */
+        protected final String name;
+
+        /** First address */
+        protected final int start;
+
+        /** Size in bytes */
+        protected final int size;
+
+        /** Region is flash memory */
+        protected final boolean flash;
+
+        /**
+         * Construct region
+         * 
+         * @param name Name of region
+         * @param start First address
+         * @param size Size in bytes
+         * @param flash true for flash memory
+         */
+        public Region(String name, int start, int size, boolean flash) {
+            this.name = name;
+            this.start = start;
+            this.size = size;
+            this.flash = flash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isFlash() {
+            return flash;
+        }
+
+        /**
+         * Check if given address block lies in this region
+         * 
+         * @param address First address
+         * @param length Count of bytes
+         * @return true if block is completely in this region
+         */
+        public boolean contains(int address, int length) {
+            return (address >= start) && ((long) address + length <= (long) start + size);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s 0x%08X-0x%08X", name, start, start + size - 1);
+        }
+    }
+
     /**
-     * Represents target memory data
+     * Contiguous run of written sectors
      */
-    protected byte[] data;
+    public static class SectorRange {
+
+        /** First sector */
+        protected final int first;
+
+        /** Last sector */
+        protected final int last;
+
+        /**
+         * Construct sector range
+         * 
+         * @param first First sector
+         * @param last Last sector
+         */
+        public SectorRange(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        public int getFirst() {
+            return first;
+        }
+
+        public int getLast() {
+            return last;
+        }
+
+        /**
+         * Get count of sectors in this range
+         * 
+         * @return Count of sectors
+         */
+        public int getCount() {
+            return last - first + 1;
+        }
+
+        @Override
+        public String toString() {
+            return first == last ? Integer.toString(first) : first + "-" + last;
+        }
+    }
+
+    /**
+     * Allocated pages, one per written sector
+     */
+    protected final Map<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+
+    /**
+     * Sectors of flash regions with written data
+     */
+    protected final BitSet dirty = new BitSet();
+
+    /**
+     * Sectors of other regions with written data
+     */
+    protected final BitSet dataSectors = new BitSet();
+
+    /**
+     * Memory regions which accept data
+     */
+    protected final List<Region> regions = new ArrayList<Region>();
 
     /**
      * Size of one sector
@@ -49,7 +192,17 @@ public class DeviceMemory {
     protected int wroteMax;
 
     /**
-     * Get minimum written address
+     * Sector of last accessed page
+     */
+    protected int lastSector = -1;
+
+    /**
+     * Last accessed page
+     */
+    protected byte[] lastPage = null;
+
+    /**
+     * Get minimum written flash address
      *
      * @return Minimum written address
      */
@@ -58,7 +211,7 @@ public class DeviceMemory {
     }
 
     /**
-     * Get maximum written address
+     * Get maximum written flash address
      * 
      * @return Maximum written address
      */
@@ -95,17 +248,133 @@ public class DeviceMemory {
     }
 
     /**
-     * Construct target memory device
+     * Get size of one sector
      * 
-     * @param size Size of target memory
+     * @return Sector size in bytes
+     */
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    /**
+     * Construct target memory device with one flash region starting at
+     * address 0
+     * 
+     * @param size Size of flash memory
      * @param sectorSize Sector size
      */
     public DeviceMemory(int size, int sectorSize) {
-        this.data = new byte[size];
-        Arrays.fill(data, (byte) 0xff);
-        this.wroteMin = size;
+        this.wroteMin = Integer.MAX_VALUE;
         this.wroteMax = -1;
         this.sectorSize = sectorSize;
+        addRegion("flash", 0, size, true);
+    }
+
+    /**
+     * Add memory region which accepts data. Regions must be aligned to the
+     * sector size. Only data of flash regions is part of the written
+     * sectors.
+     * 
+     * @param name Name of region
+     * @param start First address
+     * @param size Size in bytes
+     * @param flash true for flash memory
+     * @return Added region
+     */
+    public final Region addRegion(String name, int start, int size, boolean flash) {
+        if ((start < 0) || (size < 0) || (start % sectorSize != 0) || (size % sectorSize != 0)) {
+            throw new IllegalArgumentException("region " + name + " not aligned to sectors");
+        }
+        Region region = new Region(name, start, size, flash);
+        regions.add(region);
+        return region;
+    }
+
+    /**
+     * Get memory regions
+     * 
+     * @return List of regions
+     */
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Get region of given address
+     * 
+     * @param address Address
+     * @return Region containing the address or null
+     */
+    public Region getRegion(int address) {
+        for (Region region : regions) {
+            if (region.contains(address, 1)) {
+                return region;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get regions other than flash which hold written data. Their data is
+     * not programmed.
+     * 
+     * @return List of regions
+     */
+    public List<Region> getDataRegions() {
+        List<Region> result = new ArrayList<Region>();
+        for (Region region : regions) {
+            if (!region.isFlash()) {
+                int first = region.getStart() / sectorSize;
+                int next = dataSectors.nextSetBit(first);
+                if ((next >= 0) && (next < first + region.getSize() / sectorSize)) {
+                    result.add(region);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get page of given sector for writing, allocate it if necessary
+     * 
+     * @param sector Sector identifier
+     * @param flash true if the sector is part of a flash region
+     * @return Page of sector
+     */
+    protected byte[] writablePage(int sector, boolean flash) {
+        if (sector == lastSector) {
+            return lastPage;
+        }
+        byte[] page = pages.get(sector);
+        if (page == null) {
+            page = new byte[sectorSize];
+            Arrays.fill(page, ERASED);
+            pages.put(sector, page);
+            if (flash) {
+                dirty.set(sector);
+            } else {
+                dataSectors.set(sector);
+            }
+        }
+        lastSector = sector;
+        lastPage = page;
+        return page;
+    }
+
+    /**
+     * Check if block can be written
+     * 
+     * @param address First address
+     * @param length Count of bytes
+     * @return Region of block
+     */
+    protected Region checkRange(int address, int length) {
+        for (Region region : regions) {
+            if (region.contains(address, length)) {
+                return region;
+            }
+        }
+        throw new IllegalArgumentException(String.format("address 0x%08X (%d bytes) outside of device memory", address, length));
     }
 
     /**
@@ -116,8 +385,13 @@ public class DeviceMemory {
      */
     public void writeMemoryData(int address, byte value) {
 
-        this.data[address] = value;
+        Region region = checkRange(address, 1);
+        int sector = address / sectorSize;
+        writablePage(sector, region.isFlash())[address - sector * sectorSize] = value;
 
+        if (!region.isFlash()) {
+            return;
+        }
         if (this.wroteMin > address) {
             this.wroteMin = address;
         }
@@ -127,30 +401,225 @@ public class DeviceMemory {
     }
 
     /**
-     * Get binary data of given sector
+     * Write block of bytes to the target memory
+     * 
+     * @param address Start address
+     * @param values Byte field with data
+     * @param offset Position of first byte in byte field
+     * @param length Count of bytes to write
+     */
+    public void writeMemoryData(int address, byte[] values, int offset, int length) {
+
+        if (length <= 0) {
+            return;
+        }
+
+        Region region = checkRange(address, length);
+
+        int a = address;
+        int end = address + length;
+        while (a < end) {
+            int sector = a / sectorSize;
+            int pageOffset = a - sector * sectorSize;
+            int n = Math.min(sectorSize - pageOffset, end - a);
+            System.arraycopy(values, offset, writablePage(sector, region.isFlash()), pageOffset, n);
+            offset += n;
+            a += n;
+        }
+
+        if (!region.isFlash()) {
+            return;
+        }
+        if (this.wroteMin > address) {
+            this.wroteMin = address;
+        }
+        if (this.wroteMax < end - 1) {
+            this.wroteMax = end - 1;
+        }
+    }
+
+    /**
+     * Write block of bytes from a buffer to the target memory. The bytes are
+     * copied page by page, e.g. straight from the buffer of a read file.
+     * 
+     * @param address Start address
+     * @param src Buffer with data, its position is advanced by length
+     * @param length Count of bytes to write
+     */
+    public void writeMemoryData(int address, java.nio.ByteBuffer src, int length) {
+
+        if (length <= 0) {
+            return;
+        }
+
+        Region region = checkRange(address, length);
+
+        int a = address;
+        int end = address + length;
+        while (a < end) {
+            int sector = a / sectorSize;
+            int pageOffset = a - sector * sectorSize;
+            int n = Math.min(sectorSize - pageOffset, end - a);
+            src.get(writablePage(sector, region.isFlash()), pageOffset, n);
+            a += n;
+        }
+
+        if (!region.isFlash()) {
+            return;
+        }
+        if (this.wroteMin > address) {
+            this.wroteMin = address;
+        }
+        if (this.wroteMax < end - 1) {
+            this.wroteMax = end - 1;
+        }
+    }
+
+    /**
+     * Read block of bytes from the target memory. Unwritten memory reads as
+     * erased.
+     * 
+     * @param address Start address
+     * @param values Byte field to fill
+     * @param offset Position of first byte in byte field
+     * @param length Count of bytes to read
+     */
+    public void readMemoryData(int address, byte[] values, int offset, int length) {
+
+        int a = address;
+        int end = address + length;
+        while (a < end) {
+            int sector = a / sectorSize;
+            int pageOffset = a - sector * sectorSize;
+            int n = Math.min(sectorSize - pageOffset, end - a);
+            byte[] page = pages.get(sector);
+            if (page == null) {
+                Arrays.fill(values, offset, offset + n, ERASED);
+            } else {
+                System.arraycopy(page, pageOffset, values, offset, n);
+            }
+            offset += n;
+            a += n;
+        }
+    }
+
+    /**
+     * Check if data was written to given sector
+     * 
+     * @param sector Sector identifier
+     * @return true if sector holds written data
+     */
+    public boolean isSectorWritten(int sector) {
+        return dirty.get(sector);
+    }
+
+    /**
+     * Get next written sector
+     * 
+     * @param sector First sector to check
+     * @return Next written sector starting with given one or -1 if there is
+     * none
+     */
+    public int nextWrittenSector(int sector) {
+        return dirty.nextSetBit(sector);
+    }
+
+    /**
+     * Get count of written sectors
+     * 
+     * @return Count of sectors holding written data
+     */
+    public int getWrittenSectorCount() {
+        return dirty.cardinality();
+    }
+
+    /**
+     * Get contiguous runs of written sectors in ascending order
+     * 
+     * @return List of sector ranges
+     */
+    public List<SectorRange> getWrittenSectorRanges() {
+        List<SectorRange> ranges = new ArrayList<SectorRange>();
+        int first = dirty.nextSetBit(0);
+        while (first >= 0) {
+            int last = dirty.nextClearBit(first) - 1;
+            ranges.add(new SectorRange(first, last));
+            first = dirty.nextSetBit(last + 1);
+        }
+        return ranges;
+    }
+
+    /**
+     * Get count of written bytes of given sector without trailing erased
+     * bytes
+     * 
+     * @param sector Sector identifier
+     * @return Count of bytes, 0 if the sector holds erased bytes only
+     */
+    public int getSectorDataLength(int sector) {
+
+        byte[] page = pages.get(sector);
+        int used = 0;
+        if (page != null) {
+            used = page.length;
+            while ((used > 0) && (page[used - 1] == ERASED)) {
+                used--;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Get count of bytes to transfer for given sector. Trailing erased bytes
+     * are dropped, the result is rounded up to the next block size the
+     * copy RAM to flash command accepts.
+     * 
+     * @param sector Sector identifier
+     * @return Count of bytes
+     */
+    public int getSectorLength(int sector) {
+
+        int used = getSectorDataLength(sector);
+        for (int size : TRANSFER_SIZES) {
+            if (size >= used) {
+                return Math.min(size, sectorSize);
+            }
+        }
+        return sectorSize;
+    }
+
+    /**
+     * Get binary data of given sector. Only the written part of the sector
+     * is returned, see getSectorLength().
      * 
      * @param sector Sector identifier
      * @return Data field of given sector
      */
     public byte[] getSector(int sector) {
-        
-        int lastaddress = ((sector + 1) * sectorSize) - 1;
-        
-        // TODO: optimize this, to get only written data. Be aware of alignment!
-        
-        //if (lastaddress > wroteMax) lastaddress = wroteMax;
-        
-        // 4 byte alignment
-        //while (lastaddress % 4 != 0) lastaddress ++;     
 
-        return Arrays.copyOfRange(data, sector * sectorSize, lastaddress + 1);
+        int length = getSectorLength(sector);
+        byte[] page = pages.get(sector);
+        if (page == null) {
+            page = new byte[length];
+            Arrays.fill(page, ERASED);
+            return page;
+        }
+        return Arrays.copyOf(page, length);
     }
 
     /**
-     * Calculate and set checksum
+     * Calculate and set checksum. The checksum is only inserted if the
+     * vector table was written.
      */
     public void insertChecksum() {
 
+        if (!dirty.get(0)) {
+            return;
+        }
+
+        byte[] data = new byte[0x20];
+        readMemoryData(0, data, 0, data.length);
+
         int checksum = 0;
 
         for (int i = 0; i < 7; i++) {
@@ -167,5 +636,7 @@ public class DeviceMemory {
         for (int i = 0; i < 4; i++) {
             data[0x1C + i] = (byte) ((checksum >> (i * 8)) & 0xff);
         }
+
+        writeMemoryData(0x1C, data, 0x1C, 4);
     }
 }
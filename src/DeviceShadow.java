@@ -0,0 +1,228 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local database of the flash content of devices, keyed by serial number.
+ * For every sector the hash of the content last written or erased by this
+ * tool is kept, so a reflash can skip sectors which hold the new content
+ * already.
+ *
+ * The database is an append-only file. Each line holds serial, identity
+ * (vendor, product code, revision and serial of the identity object), sector
+ * and hash, or "-" for a sector with unknown content. Sectors are marked
+ * unknown before they are erased, so an interrupted flash process never
+ * leaves a stale hash. A device with changed identity starts from scratch.
+ *
+ * @author Thomas Fischl
+ */
+public class DeviceShadow {
+
+    /** Marker of sector with unknown content */
+    protected static final String UNKNOWN = "-";
+
+    /** Database size in bytes which triggers rewriting on load */
+    protected static final long COMPACT_SIZE = 256 * 1024;
+
+    /**
+     * Known content of one device
+     */
+    protected static class Device {
+
+        /** Identity of device */
+        protected final String identity;
+
+        /** Hash of sector content by sector number */
+        protected final Map<Integer, String> hashes = new HashMap<Integer, String>();
+
+        /**
+         * Construct device entry
+         *
+         * @param identity Identity of device
+         */
+        protected Device(String identity) {
+            this.identity = identity;
+        }
+    }
+
+    /** Database file */
+    protected final File file;
+
+    /** Known devices by serial number */
+    protected final Map<String, Device> devices = new HashMap<String, Device>();
+
+    /**
+     * Open database. Existing entries are loaded, a missing file is created
+     * on first entry.
+     *
+     * @param file Database file
+     * @throws IOException Error while reading database
+     */
+    public DeviceShadow(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+            if (file.length() > COMPACT_SIZE) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Read entries of database file. Malformed lines, e.g. a partly written
+     * last line, are ignored.
+     *
+     * @throws IOException Error while reading
+     */
+    protected final void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    put(fields[0], fields[1], Integer.parseInt(fields[2]), fields[3]);
+                } catch (NumberFormatException ex) {
+                    // ignore malformed line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrite database with known sectors only
+     *
+     * @throws IOException Error while writing
+     */
+    protected final void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII");
+        try {
+            for (Map.Entry<String, Device> e : devices.entrySet()) {
+                Device device = e.getValue();
+                for (Map.Entry<Integer, String> h : device.hashes.entrySet()) {
+                    w.write(e.getKey() + " " + device.identity + " " + h.getKey() + " " + h.getValue() + "\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("can't replace device database " + file);
+        }
+    }
+
+    /**
+     * Append lines to database and force them to the disk
+     *
+     * @param lines Lines to append, each terminated by line end
+     * @throws IOException Error while writing
+     */
+    protected void append(String lines) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(lines.getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Update entry in memory
+     *
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param sector Sector number
+     * @param hash Hash of sector content or UNKNOWN
+     */
+    protected void put(String serial, String identity, int sector, String hash) {
+        Device device = devices.get(serial);
+        if ((device == null) || !device.identity.equals(identity)) {
+            device = new Device(identity);
+            devices.put(serial, device);
+        }
+        if (hash.equals(UNKNOWN)) {
+            device.hashes.remove(sector);
+        } else {
+            device.hashes.put(sector, hash);
+        }
+    }
+
+    /**
+     * Get known content hash of sector
+     *
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param sector Sector number
+     * @return Hash of sector content or null if unknown
+     */
+    public synchronized String getSectorHash(String serial, String identity, int sector) {
+        Device device = devices.get(serial);
+        if ((device == null) || !device.identity.equals(identity)) {
+            return null;
+        }
+        return device.hashes.get(sector);
+    }
+
+    /**
+     * Record content of sectors
+     *
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param first First sector
+     * @param last Last sector
+     * @param hashes Hash of content of each sector or null for unknown
+     *               content
+     * @throws IOException Error while writing database
+     */
+    public synchronized void setSectorHashes(String serial, String identity, int first, int last, String[] hashes) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int s = first; s <= last; s++) {
+            String hash = hashes == null ? UNKNOWN : hashes[s - first];
+            lines.append(serial).append(' ').append(identity).append(' ').append(s).append(' ').append(hash).append('\n');
+        }
+        append(lines.toString());
+        for (int s = first; s <= last; s++) {
+            put(serial, identity, s, hashes == null ? UNKNOWN : hashes[s - first]);
+        }
+    }
+
+    /**
+     * Record content of one sector
+     *
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param sector Sector number
+     * @param hash Hash of sector content
+     * @throws IOException Error while writing database
+     */
+    public void setSectorHash(String serial, String identity, int sector, String hash) throws IOException {
+        setSectorHashes(serial, identity, sector, sector, new String[]{hash});
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Load ELF executables. The loadable segments (PT_LOAD) of a 32 bit ELF
+ * file are copied to their physical (load) address, so initialized data
+ * ends up in flash behind the code like in a HEX file made by objcopy.
+ * Segments without file content (e.g. .bss) are skipped.
+ *
+ * @author Thomas Fischl
+ */
+public class ElfParser {
+
+    /** ELF magic number: 0x7F 'E' 'L' 'F' */
+    public static final byte[] MAGIC = {0x7f, 'E', 'L', 'F'};
+
+    public static final int ELFCLASS32 = 1;
+    public static final int ELFDATA2LSB = 1;
+    public static final int ELFDATA2MSB = 2;
+    public static final int PT_LOAD = 1;
+
+    /** Size of ELF32 file header */
+    protected static final int HEADER_SIZE = 52;
+
+    /** Size of ELF32 program header */
+    protected static final int PROGRAM_HEADER_SIZE = 32;
+
+    /**
+     * Check if given buffer starts with ELF magic number
+     *
+     * @param buf Content of file
+     * @return true if content is an ELF file
+     */
+    static boolean isElf(ByteBuffer buf) {
+
+        if (buf.remaining() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(buf.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy loadable segments from given buffer to device memory. Segment data
+     * is written in bulk straight from the buffer, e.g. a memory mapped file.
+     *
+     * @param buf Content of ELF file
+     * @param dm Target device memory
+     * @return Highest written address + 1
+     */
+    static int read(ByteBuffer buf, DeviceMemory dm) {
+
+        ByteBuffer elf = buf.slice();
+        if (!isElf(elf) || (elf.limit() < HEADER_SIZE)) {
+            throw new IllegalArgumentException("invalid ELF header");
+        }
+        if (elf.get(4) != ELFCLASS32) {
+            throw new IllegalArgumentException("only 32 bit ELF files are supported");
+        }
+        switch (elf.get(5)) {
+            case ELFDATA2LSB:
+                elf.order(ByteOrder.LITTLE_ENDIAN);
+                break;
+            case ELFDATA2MSB:
+                elf.order(ByteOrder.BIG_ENDIAN);
+                break;
+            default:
+                throw new IllegalArgumentException("invalid ELF data encoding");
+        }
+
+        long phoff = elf.getInt(28) & 0xffffffffL;
+        int phentsize = elf.getShort(42) & 0xffff;
+        int phnum = elf.getShort(44) & 0xffff;
+        if ((phnum > 0) && (phentsize < PROGRAM_HEADER_SIZE)) {
+            throw new IllegalArgumentException("invalid ELF program header size");
+        }
+        if (phoff + (long) phentsize * phnum > elf.limit()) {
+            throw new IllegalArgumentException("truncated ELF program headers");
+        }
+
+        int endAddress = 0;
+        for (int i = 0; i < phnum; i++) {
+
+            int ph = (int) phoff + i * phentsize;
+            int type = elf.getInt(ph);
+            long offset = elf.getInt(ph + 4) & 0xffffffffL;
+            int paddr = elf.getInt(ph + 12);
+            long filesz = elf.getInt(ph + 16) & 0xffffffffL;
+
+            if ((type != PT_LOAD) || (filesz == 0)) {
+                continue;
+            }
+            if (offset + filesz > elf.limit()) {
+                throw new IllegalArgumentException("truncated ELF segment " + i);
+            }
+
+            elf.position((int) offset);
+            dm.writeMemoryData(paddr, elf, (int) filesz);
+            if (paddr + (int) filesz > endAddress) endAddress = paddr + (int) filesz;
+        }
+
+        return endAddress;
+    }
+}
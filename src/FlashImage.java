@@ -0,0 +1,187 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory image prepared for flashing: parsed HEX data with inserted reset
+ * function and checksum, plus the GO command to issue afterwards. An image
+ * is not modified by flashing, so one image can be shared by several jobs.
+ *
+ * @author Thomas Fischl
+ */
+public class FlashImage {
+
+    /** Memory content */
+    protected final DeviceMemory memory;
+
+    /** Type of GO command after flash process */
+    protected final LPCFlash.GoMode goMode;
+
+    /** Address to jump to */
+    protected final int executionAddress;
+
+    /** SHA-256 of sector content (hex) or null if not computed yet */
+    protected String hash = null;
+
+    /** SHA-256 of erased sector (hex) or null if not computed yet */
+    protected String erasedHash = null;
+
+    /**
+     * Construct flash image
+     *
+     * @param memory Memory content with checksum
+     * @param goMode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     */
+    public FlashImage(DeviceMemory memory, LPCFlash.GoMode goMode, int executionAddress) {
+        this.memory = memory;
+        this.goMode = goMode;
+        this.executionAddress = executionAddress;
+    }
+
+    /**
+     * Get memory content
+     *
+     * @return Memory content with checksum
+     */
+    public DeviceMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Get type of GO command
+     *
+     * @return Type of GO command after flash process
+     */
+    public LPCFlash.GoMode getGoMode() {
+        return goMode;
+    }
+
+    /**
+     * Get execution address
+     *
+     * @return Address to jump to
+     */
+    public int getExecutionAddress() {
+        return executionAddress;
+    }
+
+    /**
+     * Get count of bytes transferred to one node
+     *
+     * @return Count of bytes
+     */
+    public int getTransferSize() {
+        int size = 0;
+        for (int s = memory.nextWrittenSector(0); s >= 0; s = memory.nextWrittenSector(s + 1)) {
+            size += memory.getSectorLength(s);
+        }
+        return size;
+    }
+
+    /**
+     * Get sectors to erase. Blank sectors between written sectors are
+     * erased as well, so no data of a previous image remains inside the
+     * range of this image.
+     *
+     * @return Contiguous sector ranges to prepare and erase
+     */
+    public List<DeviceMemory.SectorRange> getEraseRanges() {
+        List<DeviceMemory.SectorRange> ranges = new ArrayList<DeviceMemory.SectorRange>();
+        List<DeviceMemory.SectorRange> written = memory.getWrittenSectorRanges();
+        if (!written.isEmpty()) {
+            ranges.add(new DeviceMemory.SectorRange(written.get(0).getFirst(), written.get(written.size() - 1).getLast()));
+        }
+        return ranges;
+    }
+
+    /**
+     * Get hash of image. It covers number and transferred content of all
+     * written sectors, so it identifies what is programmed into the flash.
+     *
+     * @return SHA-256 of image as hex string
+     */
+    public synchronized String getHash() {
+        if (hash == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                for (int s = memory.nextWrittenSector(0); s >= 0; s = memory.nextWrittenSector(s + 1)) {
+                    md.update(new byte[]{(byte) (s >> 24), (byte) (s >> 16), (byte) (s >> 8), (byte) s});
+                    md.update(memory.getSector(s));
+                }
+                StringBuilder sb = new StringBuilder();
+                for (byte b : md.digest()) {
+                    sb.append(String.format("%02x", b & 0xff));
+                }
+                hash = sb.toString();
+            } catch (NoSuchAlgorithmException ex) {
+                // every Java platform has to support SHA-256
+                throw new IllegalStateException(ex);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get hash of the flash content of one sector after this image is
+     * flashed: the transferred data, padded with erased bytes to the sector
+     * size. Sectors of the erase range without data hash as erased sector.
+     *
+     * @param sector Sector number
+     * @return SHA-256 of sector content as hex string
+     */
+    public synchronized String getSectorHash(int sector) {
+        if (!memory.isSectorWritten(sector)) {
+            if (erasedHash == null) {
+                erasedHash = hashSector(new byte[0]);
+            }
+            return erasedHash;
+        }
+        return hashSector(memory.getSector(sector));
+    }
+
+    /**
+     * Compute hash of sector content
+     *
+     * @param data Data at start of sector, rest is erased
+     * @return SHA-256 as hex string
+     */
+    protected String hashSector(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data);
+            byte[] erased = new byte[memory.getSectorSize() - data.length];
+            java.util.Arrays.fill(erased, DeviceMemory.ERASED);
+            md.update(erased);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of prepared flash images. An entry holds the transferred
+ * content of all written sectors, with reset function and checksum already
+ * inserted, plus GO mode and execution address. Entries are keyed by a hash
+ * of the image file content, the GO options and the load address of raw
+ * binary files, so a changed file never hits a stale entry.
+ *
+ * Entry layout (big endian): magic, GO mode, execution address, flash size,
+ * sector size, count of sectors, then sector number, length and data of
+ * each written sector. Entries are read into a heap buffer on load and the
+ * sector data is copied into the device memory in bulk. Neither entries nor
+ * image files are memory mapped, so they aren't kept locked on Windows and
+ * can be replaced or evicted right after use.
+ *
+ * Loading an entry updates its modification time. After each store, entries
+ * older than maxAge are deleted, and the least recently used ones while the
+ * entries take more than maxSize bytes.
+ *
+ * @author Thomas Fischl
+ */
+public class FlashImageCache {
+
+    /** Magic number and version of entry files ("CFI1") */
+    protected static final int MAGIC = 0x43464931;
+
+    /** File name extension of entries */
+    protected static final String EXTENSION = ".img";
+
+    /** Default total size of all entries in bytes */
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    /** Default time an unused entry is kept in milliseconds (30 days) */
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /** Directory of entry files */
+    protected final File directory;
+
+    /** Total size of all entries in bytes */
+    protected long maxSize = DEFAULT_MAX_SIZE;
+
+    /** Time an unused entry is kept in milliseconds */
+    protected long maxAge = DEFAULT_MAX_AGE;
+
+    /**
+     * Construct cache. The directory is created on first store.
+     *
+     * @param directory Directory of entry files
+     */
+    public FlashImageCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set total size of all entries. Least recently used entries are
+     * deleted to stay below.
+     *
+     * @param maxSize Size in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Set time an unused entry is kept
+     *
+     * @param maxAge Time in milliseconds
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get key of image built from given image file with given options
+     *
+     * @param hexfile Image file
+     * @param gomode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     * @param binaryBase Load address if the file is raw binary
+     * @return Key (SHA-256 as hex string)
+     * @throws IOException Error while reading image file
+     */
+    public String getKey(File hexfile, LPCFlash.GoMode gomode, int executionAddress, int binaryBase) throws IOException {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+
+        InputStream in = new FileInputStream(hexfile);
+        try {
+            byte[] chunk = new byte[8192];
+            int len;
+            while ((len = in.read(chunk)) >= 0) {
+                md.update(chunk, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        md.update((MAGIC + " " + gomode + " " + executionAddress + " " + binaryBase).getBytes("US-ASCII"));
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get entry file of given key
+     *
+     * @param key Key of image
+     * @return Entry file
+     */
+    protected File getFile(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    /**
+     * Load image of given key
+     *
+     * @param key Key of image
+     * @return Image or null if there is no valid entry
+     * @throws IOException Error while reading entry
+     */
+    public FlashImage load(String key) throws IOException {
+
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // keep entries in use from being evicted
+        file.setLastModified(System.currentTimeMillis());
+
+        ByteBuffer buf = ImageLoader.readFile(file);
+        try {
+            if (buf.getInt() != MAGIC) {
+                return null;
+            }
+            LPCFlash.GoMode gomode = LPCFlash.GoMode.values()[buf.getInt()];
+            int executionAddress = buf.getInt();
+            int size = buf.getInt();
+            int sectorSize = buf.getInt();
+            int count = buf.getInt();
+
+            DeviceMemory dm = new DeviceMemory(size, sectorSize);
+            for (int i = 0; i < count; i++) {
+                int sector = buf.getInt();
+                int length = buf.getInt();
+                dm.writeMemoryData(dm.getSectorStartAddress(sector), buf, length);
+            }
+
+            return new FlashImage(dm, gomode, executionAddress);
+
+        } catch (BufferUnderflowException ex) {
+            // truncated entry, e.g. disk full while storing
+            return null;
+        } catch (IllegalArgumentException ex) {
+            // entry of other version or corrupted
+            return null;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // unknown GO mode
+            return null;
+        }
+    }
+
+    /**
+     * Store image under given key. The entry is written to a temporary file
+     * first, so concurrent readers never see a partial entry.
+     *
+     * @param key Key of image
+     * @param image Image to store
+     * @param size Size of flash region of image
+     * @throws IOException Error while writing entry
+     */
+    public void store(String key, FlashImage image, int size) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create cache directory " + directory);
+        }
+
+        DeviceMemory dm = image.getMemory();
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(image.getGoMode().ordinal());
+            out.writeInt(image.getExecutionAddress());
+            out.writeInt(size);
+            out.writeInt(dm.getSectorSize());
+            out.writeInt(dm.getWrittenSectorCount());
+            for (int s = dm.nextWrittenSector(0); s >= 0; s = dm.nextWrittenSector(s + 1)) {
+                byte[] data = dm.getSector(s);
+                out.writeInt(s);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+
+        File file = getFile(key);
+        if (!tmp.renameTo(file)) {
+            // Windows doesn't replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("can't store cache entry " + file);
+            }
+        }
+
+        evict(file);
+    }
+
+    /**
+     * Delete entries older than maxAge and least recently used entries
+     * while all entries take more than maxSize bytes. Entries which can't
+     * be deleted, e.g. because they are in use, are left to the next store.
+     *
+     * @param keep Entry which is never deleted
+     */
+    protected void evict(File keep) {
+
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        // most recently used first
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return modified[a] > modified[b] ? -1 : (modified[a] < modified[b] ? 1 : 0);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        for (int i : order) {
+            File file = files[i];
+            size += file.length();
+            if (file.equals(keep)) {
+                continue;
+            }
+            if ((size > maxSize) || (now - modified[i] > maxAge)) {
+                file.delete();
+            }
+        }
+    }
+}
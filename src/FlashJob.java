@@ -0,0 +1,179 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handle of an asynchronous flash job. The result is available through the
+ * Future interface, the progress in bytes while the job runs.
+ * 
+ * Cancelling with cancel(true) interrupts the job. It stops before the next
+ * SDO frame, closes the adapter and ends with the node in bootloader mode,
+ * so the job can simply be started again. The Future is done as soon as
+ * it is cancelled, the listeners are called when the worker has really
+ * stopped.
+ * 
+ * @author Thomas Fischl
+ */
+public class FlashJob extends FutureTask<Void> {
+
+    /** Flash engine running the job */
+    protected final LPCFlash lpcflash;
+
+    /** List of listeners */
+    protected final CopyOnWriteArrayList<FlashJobListener> listeners = new CopyOnWriteArrayList<FlashJobListener>();
+
+    /** Set when the job was started or cancelled before start */
+    protected final AtomicBoolean started = new AtomicBoolean(false);
+
+    /** Set when the worker has stopped */
+    protected volatile boolean terminated = false;
+
+    /**
+     * Construct job
+     * 
+     * @param lpcflash Flash engine running the job
+     * @param work Work of job
+     */
+    public FlashJob(LPCFlash lpcflash, Callable<Void> work) {
+        super(work);
+        this.lpcflash = lpcflash;
+    }
+
+    /**
+     * Get count of bytes transferred so far
+     * 
+     * @return Count of bytes transferred to or from all nodes
+     */
+    public long getBytesDone() {
+        return lpcflash.getBytesDone();
+    }
+
+    /**
+     * Get count of bytes to transfer
+     * 
+     * @return Count of bytes, 0 until the image is loaded
+     */
+    public long getBytesTotal() {
+        return lpcflash.getBytesTotal();
+    }
+
+    /**
+     * Get error of finished job
+     * 
+     * @return Error, CancellationException if cancelled or null on success
+     *         or if the job isn't finished yet
+     */
+    public Exception getError() {
+        if (!isDone()) {
+            return null;
+        }
+        try {
+            get();
+            return null;
+        } catch (CancellationException ex) {
+            return ex;
+        } catch (ExecutionException ex) {
+            return ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        } catch (InterruptedException ex) {
+            // can't happen, job is done
+            Thread.currentThread().interrupt();
+            return ex;
+        }
+    }
+
+    /**
+     * Check if the worker has stopped. Unlike isDone(), this is false for a
+     * cancelled job until it has closed the adapter.
+     * 
+     * @return true if the job is terminated
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Add listener. If the job is terminated already, the listener is called
+     * immediately.
+     * 
+     * @param listener Listener to add to list
+     */
+    public void addListener(FlashJobListener listener) {
+        listeners.add(listener);
+        if (terminated && listeners.remove(listener)) {
+            listener.jobFinished(this);
+        }
+    }
+
+    /**
+     * Remove listener
+     * 
+     * @param listener Listener to remove from list
+     */
+    public void removeListener(FlashJobListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Run job, unless it was cancelled before
+     */
+    @Override
+    public void run() {
+        if (started.compareAndSet(false, true)) {
+            try {
+                super.run();
+            } finally {
+                terminate();
+            }
+        }
+    }
+
+    /**
+     * Cancel job. A job which didn't start yet terminates immediately.
+     * 
+     * @param mayInterruptIfRunning true to interrupt a running job
+     * @return false if the job couldn't be cancelled
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && started.compareAndSet(false, true)) {
+            terminate();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Mark job as terminated and notify listeners
+     */
+    protected void terminate() {
+        terminated = true;
+        for (FlashJobListener listener : listeners) {
+            if (listeners.remove(listener)) {
+                listener.jobFinished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of compare-verified sectors. Entries are keyed by
+ * device serial number and hold the hash of the image being flashed, so an
+ * interrupted flash process of the same image on the same board can resume
+ * with the first unverified sector. A board holds one image only: a line of
+ * another image discards the sectors of the image before.
+ * 
+ * Each line holds serial, image hash and either a sector number, "start"
+ * for a flash process of another image or "done" for a completed flash
+ * process, which discards the entries before.
+ *
+ * @author Thomas Fischl
+ */
+public class FlashJournal {
+
+    /** Marker of completed flash process */
+    protected static final String DONE = "done";
+
+    /** Marker of flash process of another image than the journaled one */
+    protected static final String START = "start";
+
+    /** Journal size in bytes which triggers rewriting on load */
+    protected static final long COMPACT_SIZE = 256 * 1024;
+
+    /** Journal file */
+    protected final File file;
+
+    /** Verified sectors of unfinished flash processes by serial */
+    protected final Map<String, BitSet> verified = new HashMap<String, BitSet>();
+
+    /** Hash of image of unfinished flash processes by serial */
+    protected final Map<String, String> hashes = new HashMap<String, String>();
+
+    /**
+     * Open journal. Existing entries are loaded, a missing file is created
+     * on first entry.
+     * 
+     * @param file Journal file
+     * @throws IOException Error while reading journal
+     */
+    public FlashJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+            if (file.length() > COMPACT_SIZE) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Read entries of journal file. Malformed lines, e.g. a partly written
+     * last line, are ignored.
+     * 
+     * @throws IOException Error while reading
+     */
+    protected final void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 3) {
+                    continue;
+                }
+                if (fields[2].equals(DONE) || fields[2].equals(START)) {
+                    discard(fields[0]);
+                    continue;
+                }
+                try {
+                    mark(fields[0], fields[1], Integer.parseInt(fields[2]));
+                } catch (NumberFormatException ex) {
+                    // ignore malformed line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrite journal with open entries only
+     * 
+     * @throws IOException Error while writing
+     */
+    protected final void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII");
+        try {
+            for (Map.Entry<String, BitSet> e : verified.entrySet()) {
+                BitSet sectors = e.getValue();
+                for (int s = sectors.nextSetBit(0); s >= 0; s = sectors.nextSetBit(s + 1)) {
+                    w.write(e.getKey() + " " + hashes.get(e.getKey()) + " " + s + "\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("can't replace journal " + file);
+        }
+    }
+
+    /**
+     * Append line to journal and force it to the disk
+     * 
+     * @param line Line to append
+     * @throws IOException Error while writing
+     */
+    protected void append(String line) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write((line + "\n").getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Mark sector as verified. Sectors of another image on this device are
+     * discarded.
+     * 
+     * @param serial Serial number of device
+     * @param imageHash Hash of image
+     * @param sector Verified sector
+     */
+    protected void mark(String serial, String imageHash, int sector) {
+        if (!imageHash.equals(hashes.get(serial))) {
+            hashes.put(serial, imageHash);
+            verified.put(serial, new BitSet());
+        }
+        verified.get(serial).set(sector);
+    }
+
+    /**
+     * Discard verified sectors of given device
+     * 
+     * @param serial Serial number of device
+     */
+    protected void discard(String serial) {
+        verified.remove(serial);
+        hashes.remove(serial);
+    }
+
+    /**
+     * Get verified sectors of unfinished flash process
+     * 
+     * @param serial Serial number of device
+     * @param imageHash Hash of image
+     * @return Verified sectors, empty if there is nothing to resume
+     */
+    public synchronized BitSet getVerified(String serial, String imageHash) {
+        BitSet sectors = verified.get(serial);
+        if ((sectors == null) || !imageHash.equals(hashes.get(serial))) {
+            return new BitSet();
+        }
+        return (BitSet) sectors.clone();
+    }
+
+    /**
+     * Record start of flash process. Verified sectors of another image on
+     * this device are discarded, as the flash process overwrites them.
+     * 
+     * @param serial Serial number of device
+     * @param imageHash Hash of image
+     * @throws IOException Error while writing journal
+     */
+    public synchronized void started(String serial, String imageHash) throws IOException {
+        String hash = hashes.get(serial);
+        if ((hash != null) && !hash.equals(imageHash)) {
+            discard(serial);
+            append(serial + " " + imageHash + " " + START);
+        }
+    }
+
+    /**
+     * Record verified sector
+     * 
+     * @param serial Serial number of device
+     * @param imageHash Hash of image
+     * @param sector Sector which was written and compared successfully
+     * @throws IOException Error while writing journal
+     */
+    public synchronized void sectorVerified(String serial, String imageHash, int sector) throws IOException {
+        append(serial + " " + imageHash + " " + sector);
+        mark(serial, imageHash, sector);
+    }
+
+    /**
+     * Record completed flash process. The next flash process on this device
+     * starts from scratch.
+     * 
+     * @param serial Serial number of device
+     * @param imageHash Hash of image
+     * @throws IOException Error while writing journal
+     */
+    public synchronized void finished(String serial, String imageHash) throws IOException {
+        if (verified.containsKey(serial)) {
+            append(serial + " " + imageHash + " " + DONE);
+            discard(serial);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the measurements of one flash session and writes them as JSON or
+ * CSV report. Round trip times of SDO requests are counted in a histogram
+ * with power of two buckets in microseconds.
+ * 
+ * @author Thomas Fischl
+ */
+public class FlashMetrics implements FlashMetricsListener {
+
+    /** Count of histogram buckets, bucket i counts round trips below 2^i us */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    /** Port name of adapter */
+    protected String port = "";
+
+    /** Node IDs of session */
+    protected int[] nodeIds = new int[0];
+
+    /** Start of session (System.currentTimeMillis()) */
+    protected long startTime = 0;
+
+    /** Duration of session in nanoseconds */
+    protected long duration = 0;
+
+    /** Error which stopped the session or null */
+    protected String error = null;
+
+    /** Count and duration of phases per node: node -> [phase][count, nanos] */
+    protected final Map<Integer, long[][]> phases = new TreeMap<Integer, long[][]>();
+
+    /** Finished sectors: node, sector, bytes, nanos */
+    protected final ArrayList<long[]> sectors = new ArrayList<long[]>();
+
+    /** Round trip histogram */
+    protected final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+    /** Count of sent SDO requests */
+    protected long frames = 0;
+
+    /** Count of answered SDO requests */
+    protected long answered = 0;
+
+    /** Sum of round trip times in nanoseconds */
+    protected long roundTripSum = 0;
+
+    /** Minimum round trip time in nanoseconds */
+    protected long roundTripMin = Long.MAX_VALUE;
+
+    /** Maximum round trip time in nanoseconds */
+    protected long roundTripMax = 0;
+
+    /** Count of transferred bytes */
+    protected long bytes = 0;
+
+    /** Count of retries */
+    protected long retries = 0;
+
+    @Override
+    public synchronized void sessionStarted(String port, int[] nodeIds) {
+        this.port = port;
+        this.nodeIds = nodeIds.clone();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void phaseFinished(int nodeId, Phase phase, long nanos) {
+        long[][] p = phases.get(nodeId);
+        if (p == null) {
+            p = new long[Phase.values().length][2];
+            phases.put(nodeId, p);
+        }
+        p[phase.ordinal()][0]++;
+        p[phase.ordinal()][1] += nanos;
+    }
+
+    @Override
+    public synchronized void sectorFinished(int nodeId, int sector, int bytes, long nanos) {
+        sectors.add(new long[]{nodeId, sector, bytes, nanos});
+        this.bytes += bytes;
+    }
+
+    @Override
+    public synchronized void requestFinished(int nodeId, long nanos, boolean answered) {
+        frames++;
+        if (!answered) {
+            return;
+        }
+        this.answered++;
+        roundTripSum += nanos;
+        if (nanos < roundTripMin) roundTripMin = nanos;
+        if (nanos > roundTripMax) roundTripMax = nanos;
+        histogram[bucket(nanos)]++;
+    }
+
+    @Override
+    public synchronized void retry(int nodeId, String reason) {
+        retries++;
+    }
+
+    @Override
+    public synchronized void sessionFinished(long nanos, Exception error) {
+        this.duration = nanos;
+        this.error = error == null ? null : String.valueOf(error.getMessage());
+    }
+
+    /**
+     * Get histogram bucket of given round trip time
+     * 
+     * @param nanos Round trip time in nanoseconds
+     * @return Bucket index
+     */
+    protected static int bucket(long nanos) {
+        int b = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        return Math.min(b, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Get count of sent SDO requests
+     * 
+     * @return Count of frames
+     */
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Get count of transferred bytes
+     * 
+     * @return Count of bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get count of retries
+     * 
+     * @return Count of retries
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Get total duration of given phase over all nodes
+     * 
+     * @param phase Phase
+     * @return Duration in nanoseconds
+     */
+    public synchronized long getPhaseDuration(Phase phase) {
+        long sum = 0;
+        for (long[][] p : phases.values()) {
+            sum += p[phase.ordinal()][1];
+        }
+        return sum;
+    }
+
+    /**
+     * Get copy of round trip histogram
+     * 
+     * @return Counts per bucket, bucket i counts round trips below 2^i us
+     */
+    public synchronized long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * Write report to given file. Files ending with ".csv" are written as
+     * CSV, all others as JSON.
+     * 
+     * @param file Report file
+     * @throws IOException Error while writing file
+     */
+    public void write(File file) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                writeCSV(w);
+            } else {
+                writeJSON(w);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Write report as JSON object
+     * 
+     * @param w Writer to write to
+     * @throws IOException Error while writing
+     */
+    public synchronized void writeJSON(Writer w) throws IOException {
+
+        w.write("{\n");
+        w.write("  \"port\": " + quote(port) + ",\n");
+        w.write("  \"nodes\": [");
+        for (int i = 0; i < nodeIds.length; i++) {
+            w.write((i > 0 ? ", " : "") + nodeIds[i]);
+        }
+        w.write("],\n");
+        w.write("  \"start\": " + startTime + ",\n");
+        w.write("  \"duration_ms\": " + millis(duration) + ",\n");
+        w.write("  \"error\": " + (error == null ? "null" : quote(error)) + ",\n");
+        w.write("  \"frames\": " + frames + ",\n");
+        w.write("  \"bytes\": " + bytes + ",\n");
+        w.write("  \"retries\": " + retries + ",\n");
+
+        w.write("  \"phases\": [");
+        String sep = "\n";
+        for (Map.Entry<Integer, long[][]> e : phases.entrySet()) {
+            for (Phase phase : Phase.values()) {
+                long[] p = e.getValue()[phase.ordinal()];
+                if (p[0] == 0) continue;
+                w.write(sep + "    {\"node\": " + e.getKey() + ", \"phase\": \"" + phase + "\", \"count\": " + p[0] + ", \"ms\": " + millis(p[1]) + "}");
+                sep = ",\n";
+            }
+        }
+        w.write("\n  ],\n");
+
+        w.write("  \"sectors\": [");
+        sep = "\n";
+        for (long[] s : sectors) {
+            w.write(sep + "    {\"node\": " + s[0] + ", \"sector\": " + s[1] + ", \"bytes\": " + s[2] + ", \"ms\": " + millis(s[3]) + "}");
+            sep = ",\n";
+        }
+        w.write("\n  ],\n");
+
+        w.write("  \"round_trip\": {\"count\": " + answered + ", \"timeouts\": " + (frames - answered));
+        if (answered > 0) {
+            w.write(", \"min_us\": " + micros(roundTripMin) + ", \"mean_us\": " + micros(roundTripSum / answered) + ", \"max_us\": " + micros(roundTripMax));
+        }
+        w.write(", \"histogram_us\": [");
+        sep = "";
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (histogram[i] == 0) continue;
+            w.write(sep + "{\"below\": " + (i == HISTOGRAM_BUCKETS - 1 ? "null" : Long.toString(1L << i)) + ", \"count\": " + histogram[i] + "}");
+            sep = ", ";
+        }
+        w.write("]}\n");
+        w.write("}\n");
+    }
+
+    /**
+     * Write report as CSV table with columns record, node, name, count,
+     * bytes and ms
+     * 
+     * @param w Writer to write to
+     * @throws IOException Error while writing
+     */
+    public synchronized void writeCSV(Writer w) throws IOException {
+
+        w.write("record,node,name,count,bytes,ms\n");
+        w.write("session,," + csv(port) + "," + frames + "," + bytes + "," + millis(duration) + "\n");
+        w.write("retries,,," + retries + ",,\n");
+        if (error != null) {
+            w.write("error,," + csv(error) + ",,,\n");
+        }
+        for (Map.Entry<Integer, long[][]> e : phases.entrySet()) {
+            for (Phase phase : Phase.values()) {
+                long[] p = e.getValue()[phase.ordinal()];
+                if (p[0] == 0) continue;
+                w.write("phase," + e.getKey() + "," + phase + "," + p[0] + ",," + millis(p[1]) + "\n");
+            }
+        }
+        for (long[] s : sectors) {
+            w.write("sector," + s[0] + "," + s[1] + ",1," + s[2] + "," + millis(s[3]) + "\n");
+        }
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (histogram[i] == 0) continue;
+            String name = i == HISTOGRAM_BUCKETS - 1 ? ">=" + (1L << (i - 1)) + "us" : "<" + (1L << i) + "us";
+            w.write("rtt,," + name + "," + histogram[i] + ",,\n");
+        }
+    }
+
+    /**
+     * Format nanoseconds as milliseconds
+     * 
+     * @param nanos Nanoseconds
+     * @return Milliseconds with three decimals
+     */
+    protected static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Format nanoseconds as microseconds
+     * 
+     * @param nanos Nanoseconds
+     * @return Microseconds with one decimal
+     */
+    protected static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+
+    /**
+     * Quote string for JSON
+     * 
+     * @param s String
+     * @return Quoted and escaped string
+     */
+    protected static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Quote string for CSV if necessary
+     * 
+     * @param s String
+     * @return Field value
+     */
+    protected static String csv(String s) {
+        if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) && (s.indexOf('\n') < 0)) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
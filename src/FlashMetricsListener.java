@@ -0,0 +1,88 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Interface to listen to structured measurements of a flash session. Node ID
+ * 0 stands for steps of the whole session, e.g. opening the adapter.
+ * Callbacks of different nodes may come from different threads.
+ * 
+ * @author Thomas Fischl
+ */
+public interface FlashMetricsListener {
+
+    /**
+     * Steps of the flash process
+     */
+    public enum Phase {
+        OPEN, UNLOCK, ERASE, TRANSFER, COPY, COMPARE, GO
+    }
+
+    /**
+     * Flash session started
+     * 
+     * @param port Port name of adapter
+     * @param nodeIds Node IDs to flash
+     */
+    public void sessionStarted(String port, int[] nodeIds);
+
+    /**
+     * One step of the flash process finished
+     * 
+     * @param nodeId Node ID or 0 for the whole session
+     * @param phase Finished step
+     * @param nanos Duration in nanoseconds
+     */
+    public void phaseFinished(int nodeId, Phase phase, long nanos);
+
+    /**
+     * Transfer, copy and compare of one sector finished
+     * 
+     * @param nodeId Node ID
+     * @param sector Sector number
+     * @param bytes Count of transferred bytes
+     * @param nanos Duration in nanoseconds
+     */
+    public void sectorFinished(int nodeId, int sector, int bytes, long nanos);
+
+    /**
+     * SDO request sent and answered or timed out
+     * 
+     * @param nodeId Node ID
+     * @param nanos Time from sending the request to receiving the answer
+     * @param answered false if no answer was received in time
+     */
+    public void requestFinished(int nodeId, long nanos, boolean answered);
+
+    /**
+     * Failed step is retried
+     * 
+     * @param nodeId Node ID
+     * @param reason Error which caused the retry
+     */
+    public void retry(int nodeId, String reason);
+
+    /**
+     * Flash session finished
+     * 
+     * @param nanos Duration in nanoseconds
+     * @param error Error which stopped the session or null
+     */
+    public void sessionFinished(long nanos, Exception error);
+}
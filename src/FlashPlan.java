@@ -0,0 +1,535 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flash sequence of one node as explicit list of SDO operations. The plan
+ * is split into units (erase of a sector range, programming of one sector,
+ * code jump) which are retried as a whole.
+ * 
+ * The optimizer marks parameter writes as redundant if the bootloader
+ * already holds the value. Within one session the bootloader keeps the
+ * object values written before. Whether the bootloader of the LPC11C2x
+ * increments the RAM write address with every program data byte isn't
+ * documented; only the simulator does so. Therefore the RAM write address
+ * is sent before every chunk unless the increment is assumed explicitly.
+ * Commands (prepare, erase, copy, compare, ...)
+ * are never dropped; copy and erase relock the sectors, so every one of
+ * them needs its own prepare. After an error the state of the device is
+ * unknown, so a retried unit is executed with all its operations.
+ * 
+ * @author Thomas Fischl
+ */
+public class FlashPlan {
+
+    /** RAM address the sector data is transferred to */
+    public static final int RAM_ADDRESS = 0x10000800;
+
+    /**
+     * Kinds of units
+     */
+    public enum UnitType {
+        ERASE, SECTOR, GO
+    }
+
+    /**
+     * One SDO operation: expedited write or segmented download
+     */
+    public static class Step {
+
+        /** Step of the flash process this operation belongs to */
+        protected final FlashMetricsListener.Phase phase;
+
+        /** Output message of the group of operations */
+        protected final String label;
+
+        /** Index of transfer chunk within sector, -1 if none */
+        protected final int chunk;
+
+        /** Object index */
+        protected final int index;
+
+        /** Object subindex */
+        protected final int subindex;
+
+        /** Data of write (little endian value) or download */
+        protected final byte[] data;
+
+        /** Position of downloaded data */
+        protected final int offset;
+
+        /** Count of written bytes */
+        protected final int length;
+
+        /** Segmented download instead of expedited write */
+        protected final boolean download;
+
+        /** Write triggers an action on the device, never redundant */
+        protected final boolean command;
+
+        /** Processing time of device in nanoseconds, 0 for none */
+        protected final long processingTime;
+
+        /** Value is known on the device already */
+        protected boolean redundant = false;
+
+        /**
+         * Construct step
+         * 
+         * @param phase Step of the flash process
+         * @param label Output message of group
+         * @param chunk Index of transfer chunk, -1 if none
+         * @param index Object index
+         * @param subindex Object subindex
+         * @param data Data to write
+         * @param offset Position of data
+         * @param length Count of bytes
+         * @param download true for segmented download
+         * @param command true if the write triggers an action
+         * @param processingTime Processing time in nanoseconds
+         */
+        protected Step(FlashMetricsListener.Phase phase, String label, int chunk, int index, int subindex,
+                byte[] data, int offset, int length, boolean download, boolean command, long processingTime) {
+            this.phase = phase;
+            this.label = label;
+            this.chunk = chunk;
+            this.index = index;
+            this.subindex = subindex;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.download = download;
+            this.command = command;
+            this.processingTime = processingTime;
+        }
+
+        public FlashMetricsListener.Phase getPhase() {
+            return phase;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getChunk() {
+            return chunk;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getSubindex() {
+            return subindex;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isDownload() {
+            return download;
+        }
+
+        public boolean isCommand() {
+            return command;
+        }
+
+        public long getProcessingTime() {
+            return processingTime;
+        }
+
+        public boolean isRedundant() {
+            return redundant;
+        }
+
+        /**
+         * Get written value as integer
+         * 
+         * @return Value (little endian)
+         */
+        public int getValue() {
+            int value = 0;
+            for (int i = 0; i < Math.min(length, 4); i++) {
+                value |= (data[offset + i] & 0xff) << (i * 8);
+            }
+            return value;
+        }
+
+        /**
+         * Get count of SDO round trips: one for an expedited write, one for
+         * the initiation plus one per segment of 7 bytes for a download
+         * 
+         * @return Count of round trips
+         */
+        public int getRoundTrips() {
+            if (download) {
+                return 1 + (length + 6) / 7;
+            }
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(redundant ? "- " : "  ");
+            sb.append(String.format("%-8s %04X/%02X ", phase, index, subindex));
+            if (download) {
+                sb.append("download ").append(length).append(" bytes");
+            } else {
+                sb.append(command ? "command  " : "write    ");
+                sb.append(String.format("0x%0" + (length * 2) + "X", getValue()));
+            }
+            if (redundant) {
+                sb.append("  (known)");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Group of operations which is retried as a whole
+     */
+    public static class Unit {
+
+        /** Kind of unit */
+        protected final UnitType type;
+
+        /** First sector */
+        protected final int first;
+
+        /** Last sector */
+        protected final int last;
+
+        /** Operations */
+        protected final List<Step> steps = new ArrayList<Step>();
+
+        /**
+         * Construct unit
+         * 
+         * @param type Kind of unit
+         * @param first First sector, -1 if none
+         * @param last Last sector, -1 if none
+         */
+        protected Unit(UnitType type, int first, int last) {
+            this.type = type;
+            this.first = first;
+            this.last = last;
+        }
+
+        public UnitType getType() {
+            return type;
+        }
+
+        public int getFirst() {
+            return first;
+        }
+
+        public int getLast() {
+            return last;
+        }
+
+        public List<Step> getSteps() {
+            return Collections.unmodifiableList(steps);
+        }
+
+        /**
+         * Get sectors as text, e.g. "3" or "0-4"
+         * 
+         * @return Sector range
+         */
+        public String getRange() {
+            return first == last ? Integer.toString(first) : first + "-" + last;
+        }
+
+        /**
+         * Add expedited write
+         * 
+         * @param phase Step of the flash process
+         * @param label Output message of group
+         * @param index Object index
+         * @param subindex Object subindex
+         * @param value Value
+         * @param length Count of bytes of value
+         * @param command true if the write triggers an action
+         * @param processingTime Processing time in nanoseconds
+         */
+        protected void write(FlashMetricsListener.Phase phase, String label, int index, int subindex,
+                int value, int length, boolean command, long processingTime) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (value >> (i * 8));
+            }
+            steps.add(new Step(phase, label, -1, index, subindex, data, 0, length, false, command, processingTime));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(type).append(' ').append(first >= 0 ? getRange() : "").append('\n');
+            for (Step step : steps) {
+                sb.append("  ").append(step).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Units in order of execution */
+    protected final List<Unit> units = new ArrayList<Unit>();
+
+    /**
+     * Get units
+     * 
+     * @return Units in order of execution
+     */
+    public List<Unit> getUnits() {
+        return Collections.unmodifiableList(units);
+    }
+
+    /**
+     * Build plan for given image
+     * 
+     * @param image Memory image to flash
+     * @param eraseRanges Sectors to erase
+     * @param skip Sectors which are not written, e.g. already verified
+     * @param eraseTimeout Time allowed for erasing one sector in nanoseconds
+     * @param copyTimeout Time allowed for copying RAM to flash in nanoseconds
+     * @return Plan
+     */
+    public static FlashPlan compile(FlashImage image, List<DeviceMemory.SectorRange> eraseRanges, BitSet skip,
+            long eraseTimeout, long copyTimeout) {
+
+        FlashPlan plan = new FlashPlan();
+
+        for (DeviceMemory.SectorRange range : eraseRanges) {
+            plan.units.add(createEraseUnit(range.getFirst(), range.getLast(), eraseTimeout));
+        }
+
+        // only sectors holding data are written, blank sectors are erased only
+        DeviceMemory dm = image.getMemory();
+        for (int s = dm.nextWrittenSector(0); s >= 0; s = dm.nextWrittenSector(s + 1)) {
+            if (!skip.get(s)) {
+                plan.units.add(createSectorUnit(s, dm.getSectorStartAddress(s), dm.getSector(s), copyTimeout));
+            }
+        }
+
+        if (image.getGoMode() != LPCFlash.GoMode.NO) {
+            Unit unit = new Unit(UnitType.GO, -1, -1);
+            String label = "GO to 0x" + String.format("%X", image.getExecutionAddress()) + " ...";
+            unit.write(FlashMetricsListener.Phase.GO, label, LPCFlash.OBJ_IDX_EXECUTION_ADDRESS, LPCFlash.OBJ_SUB_EXECUTION_ADDRESS,
+                    image.getExecutionAddress(), 4, false, 0);
+            unit.write(FlashMetricsListener.Phase.GO, label, LPCFlash.OBJ_IDX_PROGRAM_CONTROL, LPCFlash.OBJ_SUB_PROGRAM_CONTROL,
+                    0x01, 1, true, 0);
+            plan.units.add(unit);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Build unit which erases given sectors
+     * 
+     * @param first First sector
+     * @param last Last sector
+     * @param eraseTimeout Time allowed for erasing one sector in nanoseconds
+     * @return Unit
+     */
+    public static Unit createEraseUnit(int first, int last, long eraseTimeout) {
+        Unit unit = new Unit(UnitType.ERASE, first, last);
+        int sectors = first | (last << 8);
+        unit.write(FlashMetricsListener.Phase.ERASE, "Prepare erase sectors " + unit.getRange() + "...",
+                LPCFlash.OBJ_IDX_PREPARE_SECTORS_FOR_WRITE, 0x00, sectors, 2, true, 0);
+        unit.write(FlashMetricsListener.Phase.ERASE, "Erase sectors " + unit.getRange() + "...",
+                LPCFlash.OBJ_IDX_ERASE_SECTORS, 0x00, sectors, 2, true, (last - first + 1) * eraseTimeout);
+        return unit;
+    }
+
+    /**
+     * Build unit which programs one sector: transfer to RAM in chunks,
+     * prepare, copy to flash and compare
+     * 
+     * @param sector Sector number
+     * @param address Flash address of sector
+     * @param data Sector data, length is a valid copy size
+     * @param copyTimeout Time allowed for copying RAM to flash in nanoseconds
+     * @return Unit
+     */
+    public static Unit createSectorUnit(int sector, int address, byte[] data, long copyTimeout) {
+
+        Unit unit = new Unit(UnitType.SECTOR, sector, sector);
+
+        String label = "  Transfer data...";
+        for (int offset = 0, chunk = 0; offset < data.length; offset += LPCFlash.TRANSFER_CHUNK, chunk++) {
+            int length = Math.min(LPCFlash.TRANSFER_CHUNK, data.length - offset);
+            byte[] ramAddress = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                ramAddress[i] = (byte) ((RAM_ADDRESS + offset) >> (i * 8));
+            }
+            unit.steps.add(new Step(FlashMetricsListener.Phase.TRANSFER, label, chunk,
+                    LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS, 0x00, ramAddress, 0, 4, false, false, 0));
+            unit.steps.add(new Step(FlashMetricsListener.Phase.TRANSFER, label, chunk,
+                    LPCFlash.OBJ_IDX_PROGRAM_DATA, LPCFlash.OBJ_SUB_PROGRAM_AREA, data, offset, length, true, false, 0));
+        }
+
+        unit.write(FlashMetricsListener.Phase.COPY, "  Prepare write...",
+                LPCFlash.OBJ_IDX_PREPARE_SECTORS_FOR_WRITE, 0x00, sector | (sector << 8), 2, true, 0);
+
+        label = "  Copy RAM to flash...";
+        unit.write(FlashMetricsListener.Phase.COPY, label, LPCFlash.OBJ_IDX_COPY_RAM_TO_FLASH, LPCFlash.OBJ_SUB_FLASH_ADDRESS, address, 4, false, 0);
+        unit.write(FlashMetricsListener.Phase.COPY, label, LPCFlash.OBJ_IDX_COPY_RAM_TO_FLASH, LPCFlash.OBJ_SUB_RAM_ADDRESS, RAM_ADDRESS, 4, false, 0);
+        unit.write(FlashMetricsListener.Phase.COPY, label, LPCFlash.OBJ_IDX_COPY_RAM_TO_FLASH, LPCFlash.OBJ_SUB_NUMBER_OF_BYTES, data.length, 2, true, copyTimeout);
+
+        label = "  Compare...";
+        unit.write(FlashMetricsListener.Phase.COMPARE, label, LPCFlash.OBJ_IDX_COMPARE_MEMORY, LPCFlash.OBJ_SUB_ADDRESS1, RAM_ADDRESS, 4, false, 0);
+        unit.write(FlashMetricsListener.Phase.COMPARE, label, LPCFlash.OBJ_IDX_COMPARE_MEMORY, LPCFlash.OBJ_SUB_ADDRESS2, address, 4, false, 0);
+        unit.write(FlashMetricsListener.Phase.COMPARE, label, LPCFlash.OBJ_IDX_COMPARE_MEMORY, LPCFlash.OBJ_SUB_NUMBER_OF_BYTES, data.length, 2, true, 0);
+
+        return unit;
+    }
+
+    /**
+     * Mark parameter writes of values the device holds already as
+     * redundant. The plan is simulated from an unknown device state, e.g.
+     * right after unlocking. The RAM write address is written before every
+     * chunk.
+     * 
+     * @return Count of redundant operations
+     */
+    public int optimize() {
+        return optimize(false);
+    }
+
+    /**
+     * Mark parameter writes of values the device holds already as
+     * redundant. The plan is simulated from an unknown device state, e.g.
+     * right after unlocking.
+     * 
+     * @param addressIncrement true if the device increments the RAM write
+     *        address with every program data byte, so the address write
+     *        between consecutive chunks is dropped
+     * @return Count of redundant operations
+     */
+    public int optimize(boolean addressIncrement) {
+
+        // known object values: index << 8 | subindex -> value
+        Map<Integer, Integer> known = new HashMap<Integer, Integer>();
+        int count = 0;
+
+        for (Unit unit : units) {
+            for (Step step : unit.steps) {
+                step.redundant = false;
+                if (step.download) {
+                    // program data moves the RAM write address
+                    Integer address = known.remove(LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS << 8);
+                    if (addressIncrement && (address != null)) {
+                        known.put(LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS << 8, address + step.length);
+                    }
+                    continue;
+                }
+                if (step.command) {
+                    continue;
+                }
+                Integer key = (step.index << 8) | step.subindex;
+                Integer value = step.getValue();
+                if (value.equals(known.get(key))) {
+                    step.redundant = true;
+                    count++;
+                } else {
+                    known.put(key, value);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Get count of SDO requests
+     * 
+     * @param optimized true to leave out redundant operations
+     * @return Count of expedited writes and downloads
+     */
+    public int getRequestCount(boolean optimized) {
+        int count = 0;
+        for (Unit unit : units) {
+            for (Step step : unit.steps) {
+                if (!optimized || !step.redundant) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get count of SDO round trips
+     * 
+     * @param optimized true to leave out redundant operations
+     * @return Count of request/response frame pairs
+     */
+    public int getRoundTrips(boolean optimized) {
+        int count = 0;
+        for (Unit unit : units) {
+            for (Step step : unit.steps) {
+                if (!optimized || !step.redundant) count += step.getRoundTrips();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get summary, e.g. "412 requests, 2618 round trips, 26 redundant
+     * requests dropped"
+     * 
+     * @return Summary
+     */
+    public String getSummary() {
+        int dropped = getRequestCount(false) - getRequestCount(true);
+        return getRequestCount(true) + " requests, " + getRoundTrips(true) + " round trips, "
+                + dropped + " redundant request(s) dropped";
+    }
+
+    /**
+     * Print plan, one operation per line. Redundant operations are marked
+     * with "-".
+     * 
+     * @return Plan as text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Unit unit : units) {
+            sb.append(unit);
+        }
+        return sb.toString();
+    }
+}
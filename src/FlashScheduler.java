@@ -0,0 +1,502 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs flash jobs on several USBtin adapters in parallel. Each HEX file is
+ * parsed once and the resulting image is shared by all jobs using it.
+ * The options of the jobs are taken from a template LPCFlash, each job may
+ * bring its own.
+ *
+ * @author Thomas Fischl
+ */
+public class FlashScheduler {
+
+    /**
+     * One flash job: image and target nodes behind one USBtin
+     */
+    public static class Job {
+
+        /** Port of USBtin */
+        protected final String port;
+
+        /** Filename of HEX */
+        protected final String hexfile;
+
+        /** Type of GO command after flash process */
+        protected final LPCFlash.GoMode gomode;
+
+        /** Address to jump to */
+        protected final int executionAddress;
+
+        /** Node IDs of bootloaders to flash */
+        protected final int[] nodeIds;
+
+        /** Options of this job or null for the options of the scheduler */
+        protected LPCFlash options = null;
+
+        /**
+         * Construct flash job
+         *
+         * @param port Port of USBtin
+         * @param hexfile Filename of HEX
+         * @param gomode Type of GO command after flash process
+         * @param executionAddress Address to jump to
+         * @param nodeIds Node IDs of bootloaders to flash
+         */
+        public Job(String port, String hexfile, LPCFlash.GoMode gomode, int executionAddress, int[] nodeIds) {
+            this.port = port;
+            this.hexfile = hexfile;
+            this.gomode = gomode;
+            this.executionAddress = executionAddress;
+            this.nodeIds = nodeIds;
+        }
+
+        /**
+         * Get port of USBtin
+         *
+         * @return Port name
+         */
+        public String getPort() {
+            return port;
+        }
+
+        /**
+         * Get node IDs
+         *
+         * @return Node IDs of bootloaders to flash
+         */
+        public int[] getNodeIds() {
+            return nodeIds;
+        }
+
+        /**
+         * Set options of this job, e.g. an own report file. Only the
+         * options are taken, listeners are not used.
+         *
+         * @param options Flash engine holding the options or null for the
+         *                options of the scheduler
+         */
+        public void setOptions(LPCFlash options) {
+            this.options = options;
+        }
+
+        /**
+         * Get key of image; jobs with equal key share one image
+         *
+         * @param binaryBase Load address of raw binary image files
+         * @return Image key
+         */
+        protected String getImageKey(int binaryBase) {
+            return hexfile + "|" + gomode + "|" + executionAddress + "|" + binaryBase;
+        }
+    }
+
+    /**
+     * Outcome of one flash job
+     */
+    public static class Result {
+
+        /** Job this result belongs to */
+        protected final Job job;
+
+        /** Error or null on success */
+        protected final Exception error;
+
+        /** Duration in nanoseconds */
+        protected final long duration;
+
+        /** Count of bytes actually transferred to all nodes */
+        protected final long bytes;
+
+        /**
+         * Construct job result
+         *
+         * @param job Job
+         * @param error Error or null on success
+         * @param duration Duration in nanoseconds
+         * @param bytes Count of bytes actually transferred
+         */
+        public Result(Job job, Exception error, long duration, long bytes) {
+            this.job = job;
+            this.error = error;
+            this.duration = duration;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get job
+         *
+         * @return Job this result belongs to
+         */
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * Get error
+         *
+         * @return Error or null on success
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Get duration
+         *
+         * @return Duration in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Get transferred bytes
+         *
+         * @return Count of bytes actually transferred to all nodes of the
+         *         job, without skipped sectors
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Aggregated outcome of a list of jobs
+     */
+    public static class Report {
+
+        /** Results of all jobs */
+        protected final List<Result> results;
+
+        /** Wall clock time of the whole run in nanoseconds */
+        protected final long elapsed;
+
+        /**
+         * Construct report
+         *
+         * @param results Results of all jobs
+         * @param elapsed Wall clock time in nanoseconds
+         */
+        public Report(List<Result> results, long elapsed) {
+            this.results = results;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Get results
+         *
+         * @return Results of all jobs
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+
+        /**
+         * Get count of successfully flashed boards
+         *
+         * @return Count of nodes of all successful jobs
+         */
+        public int getBoards() {
+            int boards = 0;
+            for (Result result : results) {
+                if (result.getError() == null) {
+                    boards += result.getJob().getNodeIds().length;
+                }
+            }
+            return boards;
+        }
+
+        /**
+         * Get count of failed jobs
+         *
+         * @return Count of failed jobs
+         */
+        public int getFailures() {
+            int failures = 0;
+            for (Result result : results) {
+                if (result.getError() != null) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * Get count of transferred bytes
+         *
+         * @return Count of bytes actually transferred by all jobs, including
+         *         the part of failed ones
+         */
+        public long getBytes() {
+            long bytes = 0;
+            for (Result result : results) {
+                bytes += result.getBytes();
+            }
+            return bytes;
+        }
+
+        /**
+         * Get wall clock time
+         *
+         * @return Time of the whole run in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Get board throughput
+         *
+         * @return Successfully flashed boards per hour
+         */
+        public double getBoardsPerHour() {
+            return elapsed > 0 ? getBoards() * 3600e9 / elapsed : 0;
+        }
+
+        /**
+         * Get data throughput
+         *
+         * @return Transferred bytes per second over all adapters
+         */
+        public double getBytesPerSecond() {
+            return elapsed > 0 ? getBytes() * 1e9 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d jobs, %d boards, %d failures in %.1f s: %.0f boards/h, %.0f bytes/s",
+                    results.size(), getBoards(), getFailures(), elapsed / 1e9, getBoardsPerHour(), getBytesPerSecond());
+        }
+    }
+
+    /**
+     * Listener which prefixes every output line of one job
+     */
+    protected class PrefixListener implements LPCFlashListener {
+
+        /** Prefix of each line */
+        protected final String prefix;
+
+        /** Incomplete line */
+        protected final StringBuilder line = new StringBuilder();
+
+        /**
+         * Construct prefix listener
+         *
+         * @param prefix Prefix of each line
+         */
+        public PrefixListener(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized void outputMessage(String message) {
+            line.append(message);
+            int end;
+            while ((end = line.indexOf("\n")) >= 0) {
+                FlashScheduler.this.outputMessage(prefix + line.substring(0, end + 1));
+                line.delete(0, end + 1);
+            }
+        }
+    }
+
+    /** Maximum count of jobs running at the same time */
+    protected final int maxParallel;
+
+    /** List of listeners */
+    protected ArrayList<LPCFlashListener> listeners = new ArrayList<LPCFlashListener>();
+
+    /** Options of jobs without own options */
+    protected LPCFlash template = new LPCFlash();
+
+    /**
+     * Construct scheduler
+     *
+     * @param maxParallel Maximum count of jobs running at the same time,
+     *                    usually the count of connected adapters
+     */
+    public FlashScheduler(int maxParallel) {
+        this.maxParallel = maxParallel;
+    }
+
+    /**
+     * Set options of all jobs without own options. A report file is written
+     * by every job, so it should be set per job.
+     *
+     * @param template Flash engine holding the options; listeners are not
+     *                 used
+     */
+    public void setTemplate(LPCFlash template) {
+        this.template = template;
+    }
+
+    /**
+     * Get options of given job
+     *
+     * @param job Job
+     * @return Flash engine holding the options
+     */
+    protected LPCFlash getOptions(Job job) {
+        return job.options != null ? job.options : template;
+    }
+
+    /**
+     * Get key of image of given job; jobs with equal key share one image
+     *
+     * @param job Job
+     * @return Image key
+     */
+    protected String getImageKey(Job job) {
+        return job.getImageKey(getOptions(job).binaryBase);
+    }
+
+    /**
+     * Add listener
+     *
+     * @param listener Listener to add to list
+     */
+    public void addListener(LPCFlashListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove listener
+     *
+     * @param listener Listener to remove from list
+     */
+    public void removeListener(LPCFlashListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Output given message to listeners
+     *
+     * @param message Message to print out
+     */
+    protected synchronized void outputMessage(String message) {
+        for (LPCFlashListener listener : listeners) {
+            listener.outputMessage(message);
+        }
+    }
+
+    /**
+     * Run given jobs and wait until all of them are finished. Jobs on the
+     * same port must not be part of the same run.
+     *
+     * @param jobs Jobs to run
+     * @return Report with result of each job
+     * @throws InterruptedException Waiting for jobs was interrupted
+     */
+    public Report run(List<Job> jobs) throws InterruptedException {
+
+        long start = System.nanoTime();
+
+        // parse each image once
+        final HashMap<String, FlashImage> images = new HashMap<String, FlashImage>();
+        final HashMap<String, Exception> imageErrors = new HashMap<String, Exception>();
+        LPCFlash loader = new LPCFlash();
+        loader.addListener(new PrefixListener("[image] "));
+        for (Job job : jobs) {
+            String key = getImageKey(job);
+            if (images.containsKey(key) || imageErrors.containsKey(key)) {
+                continue;
+            }
+            try {
+                loader.copyOptions(getOptions(job));
+                images.put(key, loader.loadImage(job.hexfile, job.gomode, job.executionAddress));
+            } catch (Exception ex) {
+                outputMessage("[image] ERROR: " + ex.getMessage() + "\n");
+                imageErrors.put(key, ex);
+            }
+        }
+
+        ArrayList<Result> results = new ArrayList<Result>();
+        if (jobs.isEmpty()) {
+            return new Report(results, System.nanoTime() - start);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxParallel, jobs.size()));
+        try {
+            ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Job job : jobs) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return runJob(job, images.get(getImageKey(job)), imageErrors.get(getImageKey(job)));
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (java.util.concurrent.ExecutionException ex) {
+                    results.add(new Result(jobs.get(i), new Exception(ex.getCause()), 0, 0));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Report report = new Report(results, System.nanoTime() - start);
+        outputMessage(report + "\n");
+        return report;
+    }
+
+    /**
+     * Run one job in the current thread
+     *
+     * @param job Job to run
+     * @param image Prepared image or null if loading failed
+     * @param imageError Error while loading image
+     * @return Result of job
+     */
+    protected Result runJob(Job job, FlashImage image, Exception imageError) {
+
+        if (image == null) {
+            return new Result(job, imageError, 0, 0);
+        }
+
+        String prefix = "[" + job.getPort() + "] ";
+        LPCFlash lpcflash = new LPCFlash();
+        lpcflash.addListener(new PrefixListener(prefix));
+        lpcflash.copyOptions(getOptions(job));
+
+        long start = System.nanoTime();
+        Exception error = null;
+        try {
+            lpcflash.flashImage(job.getPort(), image, job.getNodeIds());
+            outputMessage(prefix + "Finished.\n");
+        } catch (Exception ex) {
+            error = ex;
+            outputMessage(prefix + "ERROR: " + ex.getMessage() + "\n");
+        }
+
+        return new Result(job, error, System.nanoTime() - start, lpcflash.getBytesTransferred());
+    }
+}
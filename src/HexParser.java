@@ -32,7 +32,22 @@ public class HexParser {
     public static final int RECORD_TYPE_EXT_SEGMENT_ADDRESS = 0x02;
     public static final int RECORD_TYPE_SEGMENT_START_ADDRESS = 0x03;
     public static final int RECORD_TYPE_EXT_LINEAR_ADDRESS = 0x04;
+    public static final int RECORD_TYPE_START_LINEAR_ADDRESS = 0x05;
     public static final int RADIX = 16;
+    
+    /** Value of hex digit characters, -1 for other characters */
+    static final byte[] NIBBLE = new byte[256];
+    
+    static {
+        java.util.Arrays.fill(NIBBLE, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            NIBBLE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLE['A' + i] = (byte) (10 + i);
+            NIBBLE['a' + i] = (byte) (10 + i);
+        }
+    }
 
     /**
      * Read HEX file and parse it
@@ -103,4 +118,108 @@ public class HexParser {
         return endAddress + 1;
     }
 
+    /**
+     * Read HEX file and parse it. The file is read into a heap buffer and
+     * decoded byte by byte in a single pass; the data of each record is
+     * written to the device memory as one block.
+     * 
+     * @param file HEX file
+     * @param dm Target device memory
+     * @return Highest written address + 1
+     * @throws IOException Error while reading file
+     */
+    static int read(File file, DeviceMemory dm) throws IOException {
+
+        return read(ImageLoader.readFile(file), dm);
+    }
+    
+    /**
+     * Parse HEX records from given buffer
+     * 
+     * @param buf Content of HEX file
+     * @param dm Target device memory
+     * @return Highest written address + 1
+     */
+    static int read(java.nio.ByteBuffer buf, DeviceMemory dm) {
+
+        // count, address, type, up to 255 data bytes, checksum
+        byte[] record = new byte[260];
+        int lineNum = 1;
+        int extendedAddress = 0;
+        int segmentAddress = 0;
+        int endAddress = 0;
+        int pos = buf.position();
+        int limit = buf.limit();
+
+        while (pos < limit) {
+
+            byte c = buf.get(pos++);
+            if (c == '\n') {
+                lineNum++;
+                continue;
+            }
+            if ((c == '\r') || (c == ' ') || (c == '\t')) {
+                continue;
+            }
+            
+            if (c != ':') {
+                throw new IllegalArgumentException("invalid record start in line " + lineNum);
+            }
+
+            // decode count first, then the rest of the record
+            int length = 1;
+            byte sum = 0;
+            for (int i = 0; i < length; i++) {
+                if (pos + 2 > limit) {
+                    throw new IllegalArgumentException("truncated record in line " + lineNum);
+                }
+                int hi = NIBBLE[buf.get(pos) & 0xff];
+                int lo = NIBBLE[buf.get(pos + 1) & 0xff];
+                if ((hi | lo) < 0) {
+                    throw new IllegalArgumentException("invalid hex digit in line " + lineNum);
+                }
+                pos += 2;
+                byte value = (byte) ((hi << 4) | lo);
+                record[i] = value;
+                sum += value;
+                if (i == 0) {
+                    length = (value & 0xff) + 5;
+                }
+            }
+            if (sum != 0) {
+                throw new IllegalArgumentException("invalid checksum in line " + lineNum);
+            }
+            
+            int dataLength = record[0] & 0xff;
+            int address = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+            int recordType = record[3] & 0xff;
+
+            switch (recordType) {
+                case RECORD_TYPE_DATA:
+                    if (dataLength > 0) {
+                        int a = address + extendedAddress + segmentAddress;
+                        dm.writeMemoryData(a, record, 4, dataLength);
+                        if (a + dataLength > endAddress) endAddress = a + dataLength;
+                    }
+                    break;
+                case RECORD_TYPE_EOF:
+                    break;
+                case RECORD_TYPE_EXT_LINEAR_ADDRESS:
+                    extendedAddress = (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 16;
+                    break;
+                case RECORD_TYPE_EXT_SEGMENT_ADDRESS:
+                    segmentAddress = (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 4;
+                    break;
+                case RECORD_TYPE_SEGMENT_START_ADDRESS:
+                case RECORD_TYPE_START_LINEAR_ADDRESS:
+                    // ignore start address
+                    break;
+                default:
+                    System.err.println("Unknown record type in line " + lineNum + ": " + String.format("%02x", recordType));
+                    break;
+            }
+        }
+
+        return endAddress;
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream writing the bytes as intel hex records to consecutive
+ * addresses. Nothing is buffered beyond one record, so memory read from a
+ * device can be streamed to a file.
+ *
+ * @author Thomas Fischl
+ */
+public class HexWriter extends OutputStream {
+
+    /** Maximum count of data bytes per record */
+    public static final int RECORD_LENGTH = 16;
+
+    /** Hex digits */
+    private static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+    /** Target stream */
+    protected final OutputStream out;
+
+    /** Address of next byte */
+    protected int address;
+
+    /** Upper 16 bits of address set by last extended linear address record, -1 if none */
+    protected int extendedAddress = -1;
+
+    /** Encoded record: colon, up to 21 bytes as hex digits, line end */
+    protected final byte[] line = new byte[1 + (RECORD_LENGTH + 5) * 2 + 1];
+
+    /**
+     * Construct writer
+     *
+     * @param out Target stream
+     * @param address Address of first byte
+     */
+    public HexWriter(OutputStream out, int address) {
+        this.out = out;
+        this.address = address;
+    }
+
+    /**
+     * Write one byte as data record
+     *
+     * @param b Byte to write
+     * @throws IOException Error while writing
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * Write bytes as data records. A record never crosses a 64 KB boundary.
+     *
+     * @param data Byte field
+     * @param offset Position of first byte
+     * @param length Count of bytes
+     * @throws IOException Error while writing
+     */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+
+        while (length > 0) {
+
+            if ((address >>> 16) != extendedAddress) {
+                extendedAddress = address >>> 16;
+                writeRecord(HexParser.RECORD_TYPE_EXT_LINEAR_ADDRESS, 0, new byte[]{(byte) (extendedAddress >> 8), (byte) extendedAddress}, 0, 2);
+            }
+
+            int n = Math.min(Math.min(length, RECORD_LENGTH), 0x10000 - (address & 0xffff));
+            writeRecord(HexParser.RECORD_TYPE_DATA, address & 0xffff, data, offset, n);
+
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write end of file record and close target stream
+     *
+     * @throws IOException Error while writing
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeRecord(HexParser.RECORD_TYPE_EOF, 0, new byte[0], 0, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Flush target stream
+     *
+     * @throws IOException Error while writing
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Encode and write one record
+     *
+     * @param type Record type
+     * @param offset 16 bit address offset
+     * @param data Byte field
+     * @param pos Position of first data byte
+     * @param length Count of data bytes
+     * @throws IOException Error while writing
+     */
+    protected void writeRecord(int type, int offset, byte[] data, int pos, int length) throws IOException {
+
+        int n = 0;
+        line[n++] = ':';
+        int sum = length + (offset >> 8) + (offset & 0xff) + type;
+        n = hex(length, n);
+        n = hex(offset >> 8, n);
+        n = hex(offset, n);
+        n = hex(type, n);
+        for (int i = 0; i < length; i++) {
+            int b = data[pos + i] & 0xff;
+            sum += b;
+            n = hex(b, n);
+        }
+        n = hex(-sum, n);
+        line[n++] = '\n';
+        out.write(line, 0, n);
+    }
+
+    /**
+     * Encode one byte as two hex digits into the record buffer
+     *
+     * @param value Byte value (lowest 8 bits)
+     * @param n Position in record buffer
+     * @return Next position in record buffer
+     */
+    private int hex(int value, int n) {
+        line[n] = DIGITS[(value >> 4) & 0x0f];
+        line[n + 1] = DIGITS[value & 0x0f];
+        return n + 2;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Load image files into device memory. The file is read into memory once
+ * and its format is detected from the content: ELF magic number, intel hex
+ * record or S-record; anything else is taken as raw binary. All formats
+ * write their data in blocks, not byte by byte.
+ *
+ * @author Thomas Fischl
+ */
+public class ImageLoader {
+
+    /** Supported image file formats */
+    public enum Format {
+        HEX("HEX"), SRECORD("S-record"), ELF("ELF"), BINARY("binary");
+
+        /** Name for log messages */
+        protected final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Detect format of given file content
+     *
+     * @param buf Content of file
+     * @return Detected format
+     */
+    public static Format detect(ByteBuffer buf) {
+
+        if (ElfParser.isElf(buf)) {
+            return Format.ELF;
+        }
+        if (SRecordParser.isSRecord(buf)) {
+            return Format.SRECORD;
+        }
+
+        // colon followed by count, address and type
+        int pos = buf.position();
+        while ((pos < buf.limit()) && Character.isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+        if ((pos + 9 <= buf.limit()) && (buf.get(pos) == ':')) {
+            boolean hex = true;
+            for (int i = 1; i < 9; i++) {
+                hex &= HexParser.NIBBLE[buf.get(pos + i) & 0xff] >= 0;
+            }
+            if (hex) {
+                return Format.HEX;
+            }
+        }
+
+        return Format.BINARY;
+    }
+
+    /**
+     * Read given buffer in given format into device memory
+     *
+     * @param buf Content of file
+     * @param format Format of content
+     * @param dm Target device memory
+     * @param baseAddress Address of first byte of raw binary content
+     * @return Highest written address + 1
+     */
+    public static int read(ByteBuffer buf, Format format, DeviceMemory dm, int baseAddress) {
+
+        switch (format) {
+            case ELF:
+                return ElfParser.read(buf, dm);
+            case SRECORD:
+                return SRecordParser.read(buf, dm);
+            case HEX:
+                return HexParser.read(buf, dm);
+            default:
+                int length = buf.remaining();
+                dm.writeMemoryData(baseAddress, buf, length);
+                return length > 0 ? baseAddress + length : 0;
+        }
+    }
+
+    /**
+     * Read image file into device memory. The format is detected from the
+     * file content.
+     *
+     * @param file Image file
+     * @param dm Target device memory
+     * @param baseAddress Address of first byte if the file is raw binary
+     * @return Detected format
+     * @throws IOException Error while reading file
+     */
+    public static Format read(File file, DeviceMemory dm, int baseAddress) throws IOException {
+
+        ByteBuffer buf = readFile(file);
+        Format format = detect(buf);
+        read(buf, format, dm, baseAddress);
+        return format;
+    }
+
+    /**
+     * Read whole file into a heap buffer. The file isn't memory mapped:
+     * a mapping lives until it is garbage collected and keeps the file
+     * locked on Windows, so it couldn't be replaced or deleted meanwhile.
+     *
+     * @param file File to read
+     * @return Buffer with file content, positioned at its start
+     * @throws IOException Error while reading file
+     */
+    static ByteBuffer readFile(File file) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,928 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process simulation of a CAN bus with LPC11C2x C_CAN ISP bootloaders.
+ * Every node ID answers like a bootloader with 32 KB flash in 4 KB sectors.
+ * Frame timing is derived from the CAN bitrate, an adapter latency per frame
+ * and the erase and program times of the flash.
+ *
+ * The port name selects the simulator and its parameters in microseconds,
+ * e.g. "sim:latency=500,erase=100000,program=1000". "sim:realtime=0" answers
+ * without any delay, e.g. for benchmarks of the host side.
+ * "sim:maxbitrate=500000" lets the nodes ignore frames sent faster than
+ * 500 kbit/s, e.g. to try the bitrate detection. "sim:loss=10" drops 10 of
+ * 1000 frames in each direction, e.g. to try the retries.
+ *
+ * @author Thomas Fischl
+ */
+public class LPCBootloaderSimulator implements CANTransport {
+
+    /** Port name (prefix) which selects the simulator */
+    public static final String PORT_NAME = "sim";
+
+    /** Size of simulated flash */
+    public static final int FLASH_SIZE = 32 * 1024;
+
+    /** Size of one flash sector */
+    public static final int SECTOR_SIZE = 4 * 1024;
+
+    /** Start of simulated RAM */
+    public static final int RAM_START = 0x10000000;
+
+    /** Size of simulated RAM */
+    public static final int RAM_SIZE = 8 * 1024;
+
+    /** Code which unlocks flash and go commands */
+    public static final int UNLOCK_CODE = 0x5a5a;
+
+    /** ISP return codes, reported as SDO abort code ABORT_ISP + code */
+    public static final int ISP_SRC_ADDR_ERROR = 2;
+    public static final int ISP_DST_ADDR_ERROR = 3;
+    public static final int ISP_COUNT_ERROR = 6;
+    public static final int ISP_INVALID_SECTOR = 7;
+    public static final int ISP_SECTOR_NOT_BLANK = 8;
+    public static final int ISP_SECTOR_NOT_PREPARED = 9;
+    public static final int ISP_COMPARE_ERROR = 10;
+    public static final int ISP_PARAM_ERROR = 12;
+    public static final int ISP_ADDR_ERROR = 13;
+    public static final int ISP_CMD_LOCKED = 15;
+    public static final int ISP_INVALID_CODE = 16;
+
+    /** SDO abort codes */
+    public static final int ABORT_ISP = 0x0f000000;
+    public static final int ABORT_TOGGLE = 0x05030000;
+    public static final int ABORT_COMMAND = 0x05040001;
+    public static final int ABORT_WRITE_ONLY = 0x06010001;
+    public static final int ABORT_READ_ONLY = 0x06010002;
+    public static final int ABORT_NO_OBJECT = 0x06020000;
+    public static final int ABORT_NO_SUBINDEX = 0x06090011;
+
+    /**
+     * Simulated bootloader of one node
+     */
+    public class Node {
+
+        /** Node ID */
+        protected final int nodeId;
+
+        /** Flash content */
+        protected final byte[] flash = new byte[FLASH_SIZE];
+
+        /** RAM content */
+        protected final byte[] ram = new byte[RAM_SIZE];
+
+        /** Unlock code was written */
+        protected boolean unlocked = false;
+
+        /** Bit mask of sectors prepared for write */
+        protected int prepared = 0;
+
+        /** Address for next program data write */
+        protected int ramWriteAddress = 0;
+
+        /** Parameters of copy RAM to flash */
+        protected int copyFlashAddress = 0;
+        protected int copyRamAddress = 0;
+
+        /** Parameters and result of compare */
+        protected int compareAddress1 = 0;
+        protected int compareAddress2 = 0;
+        protected int compareMismatch = 0;
+
+        /** Address of first non-blank location of last blank check */
+        protected int firstNonBlank = 0;
+
+        /** Parameters of memory read */
+        protected int readAddress = 0;
+        protected int readLength = 0;
+
+        /** Parameters of GO command */
+        protected int executionAddress = 0;
+        protected int executionMode = 0;
+
+        /** Node left the bootloader and doesn't answer anymore */
+        protected boolean running = false;
+
+        /** Active segmented download or -1 */
+        protected int downloadIndex = -1;
+        protected int downloadSubindex = 0;
+        protected int downloadToggle = 0;
+        protected byte[] downloadData = new byte[SECTOR_SIZE];
+        protected int downloadLength = 0;
+
+        /** Active segmented upload: next address or -1, bytes left, toggle */
+        protected int uploadAddress = -1;
+        protected int uploadLength = 0;
+        protected int uploadToggle = 0;
+
+        /** Processing time of last request in nanoseconds */
+        protected long busyTime = 0;
+
+        /**
+         * Construct simulated bootloader
+         *
+         * @param nodeId Node ID
+         */
+        public Node(int nodeId) {
+            this.nodeId = nodeId;
+            Arrays.fill(flash, (byte) 0xff);
+        }
+
+        /**
+         * Get flash content
+         *
+         * @return Flash content (not a copy)
+         */
+        public byte[] getFlash() {
+            return flash;
+        }
+
+        /**
+         * Check if node was started by GO command
+         *
+         * @return true if node left the bootloader
+         */
+        public boolean isRunning() {
+            return running;
+        }
+
+        /**
+         * Handle one SDO request
+         *
+         * @param req Request data
+         * @return Response data or null if there is no response
+         */
+        protected byte[] handle(byte[] req) {
+
+            busyTime = 0;
+            if (running || req.length < 8) {
+                return null;
+            }
+
+            int cmd = req[0] & 0xff;
+            int index = (req[1] & 0xff) | ((req[2] & 0xff) << 8);
+            int subindex = req[3] & 0xff;
+
+            try {
+                switch (cmd >> 5) {
+                    case 1: // initiate download
+                        if ((cmd & 0x02) != 0) {
+                            int n = (cmd & 0x01) != 0 ? 4 - ((cmd >> 2) & 0x03) : 4;
+                            write(index, subindex, Arrays.copyOfRange(req, 4, 8), n);
+                        } else {
+                            downloadIndex = index;
+                            downloadSubindex = subindex;
+                            downloadToggle = 0;
+                            downloadLength = 0;
+                        }
+                        return response(0x60, index, subindex, 0);
+
+                    case 0: // download segment
+                        if (downloadIndex < 0) {
+                            throw new SDOAbort(ABORT_COMMAND);
+                        }
+                        index = downloadIndex;
+                        subindex = downloadSubindex;
+                        int toggle = (cmd >> 4) & 0x01;
+                        if (toggle != downloadToggle) {
+                            downloadIndex = -1;
+                            throw new SDOAbort(ABORT_TOGGLE);
+                        }
+                        int n = 7 - ((cmd >> 1) & 0x07);
+                        if (downloadLength + n > downloadData.length) {
+                            downloadData = Arrays.copyOf(downloadData, downloadData.length * 2);
+                        }
+                        System.arraycopy(req, 1, downloadData, downloadLength, n);
+                        downloadLength += n;
+                        downloadToggle ^= 1;
+                        if ((cmd & 0x01) != 0) {
+                            downloadIndex = -1;
+                            write(index, subindex, downloadData, downloadLength);
+                        }
+                        return new byte[]{(byte) (0x20 | (toggle << 4)), 0, 0, 0, 0, 0, 0, 0};
+
+                    case 2: // initiate upload
+                        if ((index == LPCFlash.OBJ_IDX_PROGRAM_DATA) && (subindex == LPCFlash.OBJ_SUB_PROGRAM_AREA)) {
+                            // memory read with parameters set before, size indicated
+                            readMemory(readAddress);
+                            uploadAddress = readAddress;
+                            uploadLength = readLength;
+                            uploadToggle = 0;
+                            return response(0x41, index, subindex, readLength);
+                        }
+                        return response(0x43, index, subindex, read(index, subindex));
+
+                    case 3: // upload segment
+                        if (uploadAddress < 0) {
+                            throw new SDOAbort(ABORT_COMMAND);
+                        }
+                        int uploadRequestToggle = (cmd >> 4) & 0x01;
+                        if (uploadRequestToggle != uploadToggle) {
+                            uploadAddress = -1;
+                            throw new SDOAbort(ABORT_TOGGLE);
+                        }
+                        int count = Math.min(7, uploadLength);
+                        byte[] segment = new byte[8];
+                        for (int i = 0; i < count; i++) {
+                            segment[1 + i] = readMemory(uploadAddress + i);
+                        }
+                        uploadAddress += count;
+                        uploadLength -= count;
+                        uploadToggle ^= 1;
+                        segment[0] = (byte) ((uploadRequestToggle << 4) | ((7 - count) << 1));
+                        if (uploadLength == 0) {
+                            segment[0] |= 0x01;
+                            uploadAddress = -1;
+                        }
+                        return segment;
+
+                    case 4: // abort by client
+                        downloadIndex = -1;
+                        uploadAddress = -1;
+                        return null;
+
+                    default:
+                        throw new SDOAbort(ABORT_COMMAND);
+                }
+            } catch (SDOAbort abort) {
+                return response(0x80, index, subindex, abort.code);
+            }
+        }
+
+        /**
+         * Write to object dictionary
+         *
+         * @param index Object index
+         * @param subindex Subindex
+         * @param data Data field
+         * @param length Count of valid bytes in data field
+         * @throws SDOAbort Write rejected
+         */
+        protected void write(int index, int subindex, byte[] data, int length) throws SDOAbort {
+
+            int value = 0;
+            for (int i = 0; i < Math.min(length, 4); i++) {
+                value |= (data[i] & 0xff) << (i * 8);
+            }
+
+            switch (index) {
+                case LPCFlash.OBJ_IDX_UNLOCK_CODE:
+                    unlocked = (value == UNLOCK_CODE);
+                    if (!unlocked) throw new SDOAbort(ABORT_ISP + ISP_INVALID_CODE);
+                    break;
+
+                case LPCFlash.OBJ_IDX_MEMORY_READ_ADDRESS:
+                    readAddress = value;
+                    break;
+
+                case LPCFlash.OBJ_IDX_MEMORY_READ_LENGTH:
+                    readLength = value;
+                    break;
+
+                case LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS:
+                    ramWriteAddress = value;
+                    break;
+
+                case LPCFlash.OBJ_IDX_PREPARE_SECTORS_FOR_WRITE:
+                    prepared |= sectorMask(data[0] & 0xff, data[1] & 0xff);
+                    break;
+
+                case LPCFlash.OBJ_IDX_ERASE_SECTORS: {
+                    checkUnlocked();
+                    int mask = sectorMask(data[0] & 0xff, data[1] & 0xff);
+                    if ((prepared & mask) != mask) throw new SDOAbort(ABORT_ISP + ISP_SECTOR_NOT_PREPARED);
+                    for (int s = 0; s < FLASH_SIZE / SECTOR_SIZE; s++) {
+                        if ((mask & (1 << s)) != 0) {
+                            Arrays.fill(flash, s * SECTOR_SIZE, (s + 1) * SECTOR_SIZE, (byte) 0xff);
+                            busyTime += eraseTime;
+                        }
+                    }
+                    prepared = 0;
+                    break;
+                }
+
+                case LPCFlash.OBJ_IDX_BLANK_CHECK_SECTORS: {
+                    if (subindex != LPCFlash.OBJ_SUB_CHECK_SECTORS) throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    int start = data[0] & 0xff;
+                    int end = data[1] & 0xff;
+                    sectorMask(start, end);
+                    for (int a = start * SECTOR_SIZE; a < (end + 1) * SECTOR_SIZE; a++) {
+                        if (flash[a] != (byte) 0xff) {
+                            firstNonBlank = a;
+                            throw new SDOAbort(ABORT_ISP + ISP_SECTOR_NOT_BLANK);
+                        }
+                    }
+                    break;
+                }
+
+                case LPCFlash.OBJ_IDX_COPY_RAM_TO_FLASH:
+                    if (subindex == LPCFlash.OBJ_SUB_FLASH_ADDRESS) copyFlashAddress = value;
+                    else if (subindex == LPCFlash.OBJ_SUB_RAM_ADDRESS) copyRamAddress = value;
+                    else if (subindex == LPCFlash.OBJ_SUB_NUMBER_OF_BYTES) copyRamToFlash(value);
+                    else throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    break;
+
+                case LPCFlash.OBJ_IDX_COMPARE_MEMORY:
+                    if (subindex == LPCFlash.OBJ_SUB_ADDRESS1) compareAddress1 = value;
+                    else if (subindex == LPCFlash.OBJ_SUB_ADDRESS2) compareAddress2 = value;
+                    else if (subindex == LPCFlash.OBJ_SUB_NUMBER_OF_BYTES) compare(value);
+                    else throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    break;
+
+                case LPCFlash.OBJ_IDX_EXECUTION_ADDRESS:
+                    if (subindex == LPCFlash.OBJ_SUB_EXECUTION_ADDRESS) executionAddress = value;
+                    else if (subindex == LPCFlash.OBJ_SUB_MODE) executionMode = value;
+                    else throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    break;
+
+                case LPCFlash.OBJ_IDX_PROGRAM_DATA: {
+                    checkUnlocked();
+                    int offset = ramWriteAddress - RAM_START;
+                    if ((offset < 0) || (offset + length > RAM_SIZE)) throw new SDOAbort(ABORT_ISP + ISP_DST_ADDR_ERROR);
+                    System.arraycopy(data, 0, ram, offset, length);
+                    ramWriteAddress += length;
+                    break;
+                }
+
+                case LPCFlash.OBJ_IDX_PROGRAM_CONTROL:
+                    checkUnlocked();
+                    if (value == 0x01) running = true;
+                    break;
+
+                case LPCFlash.OBJ_IDX_DEVICE_TYPE:
+                case LPCFlash.OBJ_IDX_IDENTITY_OBJECT:
+                case LPCFlash.OBJ_IDX_SERIAL_NUMBER:
+                    throw new SDOAbort(ABORT_READ_ONLY);
+
+                default:
+                    throw new SDOAbort(ABORT_NO_OBJECT);
+            }
+        }
+
+        /**
+         * Read from object dictionary
+         *
+         * @param index Object index
+         * @param subindex Subindex
+         * @return Value of object
+         * @throws SDOAbort Read rejected
+         */
+        protected int read(int index, int subindex) throws SDOAbort {
+
+            switch (index) {
+                case LPCFlash.OBJ_IDX_DEVICE_TYPE:
+                    return 'L' | ('P' << 8) | ('C' << 16) | ('1' << 24);
+
+                case LPCFlash.OBJ_IDX_IDENTITY_OBJECT:
+                    switch (subindex) {
+                        case 0: return 4;
+                        case 1: return 0x00000001;      // vendor ID
+                        case 2: return 0x1440102b;      // product code
+                        case 3: return 0x00000001;      // revision
+                        case 4: return 0x4c500000 + nodeId; // serial number
+                        default: throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    }
+
+                case LPCFlash.OBJ_IDX_SERIAL_NUMBER:
+                    if (subindex == 0) return 4;
+                    if (subindex > 4) throw new SDOAbort(ABORT_NO_SUBINDEX);
+                    return (0x4c500000 + nodeId) ^ (subindex << 24);
+
+                case LPCFlash.OBJ_IDX_MEMORY_READ_ADDRESS:
+                    return readAddress;
+
+                case LPCFlash.OBJ_IDX_MEMORY_READ_LENGTH:
+                    return readLength;
+
+                case LPCFlash.OBJ_IDX_RAM_WRITE_ADDRESS:
+                    return ramWriteAddress;
+
+                case LPCFlash.OBJ_IDX_BLANK_CHECK_SECTORS:
+                    if (subindex == LPCFlash.OBJ_SUB_FIRST_NONBLANK_LOCATION) return firstNonBlank;
+                    throw new SDOAbort(ABORT_WRITE_ONLY);
+
+                case LPCFlash.OBJ_IDX_COMPARE_MEMORY:
+                    if (subindex == LPCFlash.OBJ_SUB_OFFSET_FIRST_MISMATCH) return compareMismatch;
+                    throw new SDOAbort(ABORT_WRITE_ONLY);
+
+                case LPCFlash.OBJ_IDX_EXECUTION_ADDRESS:
+                    if (subindex == LPCFlash.OBJ_SUB_EXECUTION_ADDRESS) return executionAddress;
+                    if (subindex == LPCFlash.OBJ_SUB_MODE) return executionMode;
+                    throw new SDOAbort(ABORT_NO_SUBINDEX);
+
+                case LPCFlash.OBJ_IDX_UNLOCK_CODE:
+                case LPCFlash.OBJ_IDX_PREPARE_SECTORS_FOR_WRITE:
+                case LPCFlash.OBJ_IDX_ERASE_SECTORS:
+                case LPCFlash.OBJ_IDX_COPY_RAM_TO_FLASH:
+                case LPCFlash.OBJ_IDX_PROGRAM_CONTROL:
+                    throw new SDOAbort(ABORT_WRITE_ONLY);
+
+                default:
+                    throw new SDOAbort(ABORT_NO_OBJECT);
+            }
+        }
+
+        /**
+         * Copy RAM to flash with parameters set before
+         *
+         * @param count Count of bytes
+         * @throws SDOAbort Copy rejected
+         */
+        protected void copyRamToFlash(int count) throws SDOAbort {
+
+            checkUnlocked();
+            if ((count != 256) && (count != 512) && (count != 1024) && (count != 4096)) throw new SDOAbort(ABORT_ISP + ISP_COUNT_ERROR);
+            if ((copyFlashAddress % 256 != 0) || (copyFlashAddress < 0) || (copyFlashAddress + count > FLASH_SIZE)) throw new SDOAbort(ABORT_ISP + ISP_DST_ADDR_ERROR);
+            int offset = copyRamAddress - RAM_START;
+            if ((copyRamAddress % 4 != 0) || (offset < 0) || (offset + count > RAM_SIZE)) throw new SDOAbort(ABORT_ISP + ISP_SRC_ADDR_ERROR);
+
+            int mask = sectorMask(copyFlashAddress / SECTOR_SIZE, (copyFlashAddress + count - 1) / SECTOR_SIZE);
+            if ((prepared & mask) != mask) throw new SDOAbort(ABORT_ISP + ISP_SECTOR_NOT_PREPARED);
+
+            // flash cells can only be programmed from 1 to 0
+            for (int i = 0; i < count; i++) {
+                flash[copyFlashAddress + i] &= ram[offset + i];
+            }
+            busyTime += programTime * (count / 256);
+            prepared = 0;
+        }
+
+        /**
+         * Compare memory with parameters set before
+         *
+         * @param count Count of bytes
+         * @throws SDOAbort Memory differs or parameters invalid
+         */
+        protected void compare(int count) throws SDOAbort {
+
+            if ((count % 4 != 0) || (compareAddress1 % 4 != 0) || (compareAddress2 % 4 != 0)) throw new SDOAbort(ABORT_ISP + ISP_PARAM_ERROR);
+            for (int i = 0; i < count; i++) {
+                if (readMemory(compareAddress1 + i) != readMemory(compareAddress2 + i)) {
+                    compareMismatch = i;
+                    throw new SDOAbort(ABORT_ISP + ISP_COMPARE_ERROR);
+                }
+            }
+        }
+
+        /**
+         * Read one byte of flash or RAM
+         *
+         * @param address Address
+         * @return Memory content
+         * @throws SDOAbort Address not mapped
+         */
+        protected byte readMemory(int address) throws SDOAbort {
+            if ((address >= 0) && (address < FLASH_SIZE)) return flash[address];
+            if ((address >= RAM_START) && (address < RAM_START + RAM_SIZE)) return ram[address - RAM_START];
+            throw new SDOAbort(ABORT_ISP + ISP_ADDR_ERROR);
+        }
+
+        /**
+         * Check if unlock code was written
+         *
+         * @throws SDOAbort Node is locked
+         */
+        protected void checkUnlocked() throws SDOAbort {
+            if (!unlocked) throw new SDOAbort(ABORT_ISP + ISP_CMD_LOCKED);
+        }
+
+        /**
+         * Get bit mask of given sector range
+         *
+         * @param start First sector
+         * @param end Last sector
+         * @return Bit mask
+         * @throws SDOAbort Invalid sector range
+         */
+        protected int sectorMask(int start, int end) throws SDOAbort {
+            if ((start > end) || (end >= FLASH_SIZE / SECTOR_SIZE)) throw new SDOAbort(ABORT_ISP + ISP_INVALID_SECTOR);
+            return ((1 << (end + 1)) - 1) & ~((1 << start) - 1);
+        }
+
+        /**
+         * Build response frame
+         *
+         * @param cmd Command byte
+         * @param index Object index
+         * @param subindex Subindex
+         * @param value Value or abort code
+         * @return Response data
+         */
+        protected byte[] response(int cmd, int index, int subindex, int value) {
+            return new byte[]{(byte) cmd, (byte) (index & 0xff), (byte) ((index >> 8) & 0xff), (byte) subindex,
+                (byte) (value & 0xff), (byte) ((value >> 8) & 0xff), (byte) ((value >> 16) & 0xff), (byte) ((value >> 24) & 0xff)};
+        }
+    }
+
+    /**
+     * Request rejected by simulated SDO server
+     */
+    protected static class SDOAbort extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        /** SDO abort code */
+        final int code;
+
+        SDOAbort(int code) {
+            super(String.format("SDO abort 0x%08X", code));
+            this.code = code;
+        }
+    }
+
+    /**
+     * Frame on its way to the host. A response first waits until the node
+     * finished processing, then for the bus, then for the adapter latency.
+     */
+    protected static class Delivery implements Delayed {
+
+        /** Time (System.nanoTime()) when next stage is reached */
+        final long due;
+
+        /** Frame */
+        final CANMessage msg;
+
+        /** true if frame still has to be transmitted on the bus */
+        final boolean onBus;
+
+        Delivery(long due, CANMessage msg, boolean onBus) {
+            this.due = due;
+            this.msg = msg;
+            this.onBus = onBus;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = due - ((Delivery) o).due;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /** Simulated nodes indexed by node ID, created on first request */
+    protected final Node[] nodes = new Node[128];
+
+    /** Listeners for received messages */
+    protected final CopyOnWriteArrayList<CANMessageListener> listeners = new CopyOnWriteArrayList<CANMessageListener>();
+
+    /** Frames on their way to the host */
+    protected final DelayQueue<Delivery> deliveries = new DelayQueue<Delivery>();
+
+    /** Thread delivering frames */
+    protected Thread deliveryThread = null;
+
+    /** Adapter latency per frame and direction in nanoseconds */
+    protected long latency = 0;
+
+    /** Erase time per sector in nanoseconds */
+    protected long eraseTime = 100L * 1000 * 1000;
+
+    /** Program time per 256 bytes in nanoseconds */
+    protected long programTime = 1000L * 1000;
+
+    /** Simulate bus and processing times */
+    protected boolean realtime = true;
+
+    /** CAN bitrate in bits/second */
+    protected int bitrate = 0;
+
+    /** CAN channel is open in active mode */
+    protected boolean active = false;
+
+    /** CAN channel is open (active or listen only) */
+    protected boolean open = false;
+
+    /** Highest bitrate the nodes detect in bits/second */
+    protected int maxBitrate = 1000000;
+
+    /** Lost frames per 1000 frames in each direction */
+    protected int loss = 0;
+
+    /** Random source for lost frames */
+    protected final Random random = new Random(1);
+
+    /** Time (System.nanoTime()) when the bus gets idle */
+    protected long busFreeAt = 0;
+
+    /** Count of frames sent by the host */
+    protected long framesSent = 0;
+
+    /** Count of frames delivered to the host */
+    protected long framesReceived = 0;
+
+    /**
+     * Check if given port name selects the simulator
+     *
+     * @param port Port name
+     * @return true if port is served by simulator
+     */
+    public static boolean isSimulatorPort(String port) {
+        return port.equals(PORT_NAME) || port.startsWith(PORT_NAME + ":");
+    }
+
+    /**
+     * Set adapter latency
+     *
+     * @param latency Latency per frame and direction in nanoseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Set erase time
+     *
+     * @param eraseTime Erase time per sector in nanoseconds
+     */
+    public void setEraseTime(long eraseTime) {
+        this.eraseTime = eraseTime;
+    }
+
+    /**
+     * Set program time
+     *
+     * @param programTime Program time per 256 bytes in nanoseconds
+     */
+    public void setProgramTime(long programTime) {
+        this.programTime = programTime;
+    }
+
+    /**
+     * Set highest bitrate the simulated nodes detect. Frames sent with a
+     * higher bitrate are not answered.
+     *
+     * @param maxBitrate Bitrate in bits/second
+     */
+    public void setMaxBitrate(int maxBitrate) {
+        this.maxBitrate = maxBitrate;
+    }
+
+    /**
+     * Set frame loss rate. Lost requests don't reach the node, lost
+     * responses don't reach the host.
+     *
+     * @param loss Lost frames per 1000 frames in each direction
+     */
+    public void setLoss(int loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * Enable or disable timing simulation
+     *
+     * @param realtime false to answer without any delay
+     */
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /**
+     * Get simulated node
+     *
+     * @param nodeId Node ID
+     * @return Simulated bootloader of this node
+     */
+    public synchronized Node getNode(int nodeId) {
+        if (nodes[nodeId] == null) {
+            nodes[nodeId] = new Node(nodeId);
+        }
+        return nodes[nodeId];
+    }
+
+    /**
+     * Get count of frames sent by the host
+     *
+     * @return Count of frames
+     */
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * Get count of frames delivered to the host
+     *
+     * @return Count of frames
+     */
+    public synchronized long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Connect to simulator. Parameters given in port name override the
+     * timing settings.
+     *
+     * @param portName Port name, e.g. "sim:latency=500,maxbitrate=500000"
+     * @throws USBtinException Invalid port name
+     */
+    @Override
+    public synchronized void connect(String portName) throws USBtinException {
+
+        if (!isSimulatorPort(portName)) {
+            throw new USBtinException("not a simulator port: " + portName);
+        }
+
+        if (portName.length() > PORT_NAME.length()) {
+            for (String param : portName.substring(PORT_NAME.length() + 1).split(",")) {
+                String[] kv = param.split("=");
+                try {
+                    long micros = Long.parseLong(kv[1].trim());
+                    if (kv[0].trim().equals("maxbitrate")) maxBitrate = (int) micros;
+                    else if (kv[0].trim().equals("loss")) loss = (int) micros;
+                    else if (kv[0].trim().equals("latency")) latency = micros * 1000;
+                    else if (kv[0].trim().equals("erase")) eraseTime = micros * 1000;
+                    else if (kv[0].trim().equals("program")) programTime = micros * 1000;
+                    else if (kv[0].trim().equals("realtime")) realtime = (micros != 0);
+                    else throw new USBtinException("unknown simulator parameter: " + kv[0]);
+                } catch (RuntimeException ex) {
+                    throw new USBtinException("invalid simulator parameter: " + param);
+                }
+            }
+        }
+
+        deliveryThread = new Thread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        }, "LPCBootloaderSimulator");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    @Override
+    public synchronized void disconnect() throws USBtinException {
+        active = false;
+        open = false;
+        if (deliveryThread != null) {
+            deliveryThread.interrupt();
+            deliveryThread = null;
+        }
+        deliveries.clear();
+    }
+
+    @Override
+    public synchronized void openCANChannel(int baudrate, USBtin.OpenMode mode) throws USBtinException {
+        if (deliveryThread == null) {
+            throw new USBtinException("simulator not connected");
+        }
+        this.bitrate = baudrate;
+        this.active = (mode == USBtin.OpenMode.ACTIVE);
+        this.open = true;
+    }
+
+    @Override
+    public synchronized void closeCANChannel() throws USBtinException {
+        active = false;
+        open = false;
+    }
+
+    /**
+     * Set acceptance filter. The simulator only sends SDO responses, so the
+     * filter is ignored.
+     *
+     * @param fc Filter chains
+     */
+    @Override
+    public void setFilter(FilterChain[] fc) {
+    }
+
+    /**
+     * Send frame to simulated bus. The addressed node handles the request
+     * immediately; the response is delivered after the simulated bus and
+     * processing times.
+     *
+     * @param canmsg Message to send
+     * @throws USBtinException CAN channel not open in active mode
+     */
+    @Override
+    public synchronized void send(CANMessage canmsg) throws USBtinException {
+
+        if (!active) {
+            throw new USBtinException("CAN channel not open in active mode");
+        }
+        framesSent++;
+
+        long now = System.nanoTime();
+        long start = realtime ? Math.max(now + latency, busFreeAt) : now;
+        busFreeAt = start + frameTime(canmsg.getData().length);
+
+        int nodeId = canmsg.getId() - USBtinSDO.SDO_REQUEST_BASE;
+        if (canmsg.isExtended() || (nodeId < 1) || (nodeId > 127)) {
+            return;
+        }
+
+        // bitrate too high for the nodes: frame is not understood
+        if ((bitrate > maxBitrate) || lost()) {
+            return;
+        }
+
+        Node node = getNode(nodeId);
+        byte[] response = node.handle(canmsg.getData());
+        if (response != null) {
+            deliveries.add(new Delivery(realtime ? busFreeAt + node.busyTime : now,
+                    new CANMessage(USBtinSDO.SDO_RESPONSE_BASE + nodeId, response), true));
+        }
+    }
+
+    @Override
+    public void addMessageListener(CANMessageListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeMessageListener(CANMessageListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String getFirmwareVersion() {
+        return "sim";
+    }
+
+    @Override
+    public String getHardwareVersion() {
+        return "sim";
+    }
+
+    @Override
+    public String getSerialNumber() {
+        return "0000";
+    }
+
+    /**
+     * Get time a frame occupies the bus (without stuff bits)
+     *
+     * @param dlc Count of data bytes
+     * @return Time in nanoseconds
+     */
+    protected long frameTime(int dlc) {
+        // standard frame: 47 bits overhead plus data, 3 bits interframe space
+        return (50L + 8 * dlc) * 1000000000L / bitrate;
+    }
+
+    /**
+     * Decide if next frame gets lost
+     *
+     * @return true if frame is lost
+     */
+    protected boolean lost() {
+        return (loss > 0) && (random.nextInt(1000) < loss);
+    }
+
+    /**
+     * Deliver frames until the simulator is disconnected
+     */
+    protected void deliver() {
+        try {
+            while (true) {
+                Delivery d = deliveries.take();
+                if (d.onBus) {
+                    synchronized (this) {
+                        long start = realtime ? Math.max(d.due, busFreeAt) : d.due;
+                        busFreeAt = start + frameTime(d.msg.getData().length);
+                        deliveries.add(new Delivery(realtime ? busFreeAt + latency : d.due, d.msg, false));
+                    }
+                } else {
+                    synchronized (this) {
+                        if (!open || lost()) continue;
+                        framesReceived++;
+                    }
+                    for (CANMessageListener listener : listeners) {
+                        listener.receiveCANMessage(d.msg);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // disconnected
+        }
+    }
+}
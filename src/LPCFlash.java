@@ -19,8 +19,22 @@
  */
 
 import de.fischl.usbtin.*;
-import java.io.FileReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides functionality to flash LPC microcontrollers via built-in CAN
@@ -58,6 +72,54 @@ public class LPCFlash {
     public static final int OBJ_SUB_MODE = 0x02;
     public static final int OBJ_IDX_SERIAL_NUMBER = 0x5100;
     
+    /** Size of flash memory in bytes */
+    public static final int FLASH_SIZE = 32 * 1024;
+    
+    /** Size of one flash sector in bytes */
+    public static final int SECTOR_SIZE = 4 * 1024;
+    
+    /** Start address of RAM */
+    public static final int RAM_START = 0x10000000;
+    
+    /** Size of RAM in bytes */
+    public static final int RAM_SIZE = 8 * 1024;
+    
+    /** Typical erase time of one sector in milliseconds */
+    public static final int SECTOR_ERASE_TIME = 100;
+    
+    /** Time allowed for erasing one sector in milliseconds */
+    protected static final int SECTOR_ERASE_TIMEOUT = 400;
+    
+    /** Time allowed for copying RAM to flash in milliseconds */
+    protected static final int COPY_TIMEOUT = 100;
+    
+    /** Time allowed for blank checking one sector in milliseconds */
+    protected static final int BLANK_CHECK_TIMEOUT = 20;
+    
+    /** Count of bytes read from a sector by the spot check */
+    protected static final int SPOT_CHECK_LENGTH = 64;
+    
+    /** Size of data transferred with one segmented download */
+    protected static final int TRANSFER_CHUNK = 1024;
+    
+    /** Default count of retries of a failed transfer, sector or erase */
+    public static final int DEFAULT_RETRIES = 3;
+    
+    /** Bitrate value selecting automatic detection */
+    public static final int BITRATE_AUTO = 0;
+    
+    /** Default CAN bitrate in bits/second */
+    public static final int DEFAULT_BITRATE = 100000;
+    
+    /** CAN bitrates supported by USBtin, fastest first */
+    public static final int[] BITRATES = {1000000, 800000, 500000, 250000, 125000, 100000, 50000, 20000, 10000};
+    
+    /** Time to listen for traffic at each bitrate in milliseconds */
+    protected static final int PROBE_LISTEN_TIME = 50;
+    
+    /** Timeout of probe request in nanoseconds */
+    protected static final long PROBE_TIMEOUT = 100L * 1000 * 1000;
+    
     public enum GoMode {
         NO, ADDRESS, INSERTRESET
     }    
@@ -65,6 +127,327 @@ public class LPCFlash {
     /** List of listeners */
     protected ArrayList<LPCFlashListener> listeners = new ArrayList<LPCFlashListener>();
     
+    /** Blank check sectors and erase only the non-blank ones */
+    protected boolean blankCheck = false;
+    
+    /** CAN bitrate in bits/second or BITRATE_AUTO */
+    protected int bitrate = DEFAULT_BITRATE;
+    
+    /** Send probe requests at each bitrate if the bus is quiet */
+    protected boolean activeProbe = false;
+    
+    /** List of metrics listeners */
+    protected final CopyOnWriteArrayList<FlashMetricsListener> metricsListeners = new CopyOnWriteArrayList<FlashMetricsListener>();
+    
+    /** Forwards measurements to all metrics listeners */
+    protected final FlashMetricsListener metrics = new FlashMetricsListener() {
+        public void sessionStarted(String port, int[] nodeIds) {
+            for (FlashMetricsListener l : metricsListeners) l.sessionStarted(port, nodeIds);
+        }
+        public void phaseFinished(int nodeId, FlashMetricsListener.Phase phase, long nanos) {
+            for (FlashMetricsListener l : metricsListeners) l.phaseFinished(nodeId, phase, nanos);
+        }
+        public void sectorFinished(int nodeId, int sector, int bytes, long nanos) {
+            for (FlashMetricsListener l : metricsListeners) l.sectorFinished(nodeId, sector, bytes, nanos);
+        }
+        public void requestFinished(int nodeId, long nanos, boolean answered) {
+            for (FlashMetricsListener l : metricsListeners) l.requestFinished(nodeId, nanos, answered);
+        }
+        public void retry(int nodeId, String reason) {
+            for (FlashMetricsListener l : metricsListeners) l.retry(nodeId, reason);
+        }
+        public void sessionFinished(long nanos, Exception error) {
+            for (FlashMetricsListener l : metricsListeners) l.sessionFinished(nanos, error);
+        }
+    };
+    
+    /** File to write session report to or null */
+    protected File reportFile = null;
+    
+    /** Count of retries of a failed transfer, sector or erase */
+    protected int retries = DEFAULT_RETRIES;
+    
+    /** Journal of verified sectors for resuming or null */
+    protected FlashJournal journal = null;
+    
+    /** Cache of prepared images or null */
+    protected FlashImageCache imageCache = null;
+    
+    /** Bytes transferred to or from all nodes in current session */
+    protected final AtomicLong bytesDone = new AtomicLong();
+    
+    /** Bytes to transfer to or from all nodes in current session */
+    protected volatile long bytesTotal = 0;
+    
+    /** Bytes of skipped sectors in current session, counted in bytesDone as well */
+    protected final AtomicLong bytesSkipped = new AtomicLong();
+    
+    /** Bytes actually transferred to or from all nodes in last session */
+    protected volatile long bytesTransferred = 0;
+    
+    /** Submitted job which isn't finished yet or null */
+    protected FlashJob job = null;
+    
+    /** Skip writes of values the bootloader holds already */
+    protected boolean optimizePlan = true;
+    
+    /** Bootloader increments the RAM write address with program data */
+    protected boolean addressIncrement = false;
+    
+    /** Database of flash content by device serial number or null */
+    protected DeviceShadow shadow = null;
+    
+    /** Read a sample of sectors skipped because of the device database */
+    protected boolean spotCheck = false;
+    
+    /** Random source of spot check samples */
+    protected final Random random = new Random();
+    
+    /** Load address of raw binary image files */
+    protected int binaryBase = 0;
+    
+    /** Recorder of CAN frames or null */
+    protected CANTrace trace = null;
+    
+    /** Count of frames written to USBtin without acknowledge */
+    protected int batchSize = USBtinTransport.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Get blank check mode
+     * 
+     * @return true if blank sectors are not erased
+     */
+    public boolean isBlankCheck() {
+        return blankCheck;
+    }
+
+    /**
+     * Set blank check mode. If enabled, the sectors to erase are blank
+     * checked first and only the non-blank ones are erased.
+     * 
+     * @param blankCheck true to skip erase of blank sectors
+     */
+    public void setBlankCheck(boolean blankCheck) {
+        this.blankCheck = blankCheck;
+    }
+
+    /**
+     * Enable or disable the optimizer of the flash plan. Without it, every
+     * sector is written with the full sequence of SDO writes.
+     * 
+     * @param optimizePlan true to skip redundant writes
+     */
+    public void setOptimizePlan(boolean optimizePlan) {
+        this.optimizePlan = optimizePlan;
+    }
+
+    /**
+     * Let the optimizer assume that the bootloader increments the RAM write
+     * address with every program data byte, so the address is written only
+     * once per sector. This isn't documented for the LPC11C2x bootloader;
+     * enable it only for a bootloader known to behave so, e.g. the
+     * simulator.
+     * 
+     * @param addressIncrement true to drop the address write between chunks
+     */
+    public void setAddressIncrement(boolean addressIncrement) {
+        this.addressIncrement = addressIncrement;
+    }
+
+    /**
+     * Set database of flash content. Sectors the database knows to hold
+     * the content of the image already are neither erased nor written.
+     * 
+     * @param shadow Database or null to write all sectors
+     */
+    public void setShadow(DeviceShadow shadow) {
+        this.shadow = shadow;
+    }
+
+    /**
+     * Set spot check mode. If enabled, a random sample of every sector
+     * skipped because of the device database is read back and compared.
+     * 
+     * @param spotCheck true to spot check skipped sectors
+     */
+    public void setSpotCheck(boolean spotCheck) {
+        this.spotCheck = spotCheck;
+    }
+
+    /**
+     * Add metrics listener
+     * 
+     * @param listener Listener to add to list
+     */
+    public void addMetricsListener(FlashMetricsListener listener) {
+        metricsListeners.add(listener);
+    }
+    
+    /**
+     * Remove metrics listener
+     * 
+     * @param listener Listener to remove from list
+     */
+    public void removeMetricsListener(FlashMetricsListener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    /**
+     * Set file to write a report of each flash session to. Files ending with
+     * ".csv" get a CSV report, all others a JSON report.
+     * 
+     * @param reportFile Report file or null for no report
+     */
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Set count of retries. A failed segmented transfer is restarted, a
+     * failed sector is erased again if necessary and written again.
+     * 
+     * @param retries Count of retries, 0 to stop on first error
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Set journal of verified sectors. An interrupted flash process of the
+     * same image on the same device resumes with the first unverified
+     * sector.
+     * 
+     * @param journal Journal or null to always flash from scratch
+     */
+    public void setJournal(FlashJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Set cache of prepared images. Loading a HEX file which was prepared
+     * before with the same options skips parsing.
+     * 
+     * @param imageCache Cache or null to always parse the HEX file
+     */
+    public void setImageCache(FlashImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Set load address of raw binary image files. HEX, S-record and ELF
+     * files carry their own addresses.
+     * 
+     * @param binaryBase Address of first byte of binary files
+     */
+    public void setBinaryBase(int binaryBase) {
+        this.binaryBase = binaryBase;
+    }
+
+    /**
+     * Set recorder of CAN frames. All frames sent and received in following
+     * sessions are recorded.
+     * 
+     * @param trace Trace or null to record nothing
+     */
+    public void setTrace(CANTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Set count of frames written to USBtin without waiting for its
+     * acknowledge. Frames of concurrent nodes are written in one batch.
+     * 
+     * @param batchSize Count of frames, 1 to wait for each acknowledge
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get progress of current session
+     * 
+     * @return Count of bytes transferred to or from all nodes
+     */
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    /**
+     * Get size of current session
+     * 
+     * @return Count of bytes to transfer to or from all nodes
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    /**
+     * Get count of bytes actually transferred in the last session. Sectors
+     * skipped because of the journal or the device database aren't counted.
+     * 
+     * @return Count of bytes transferred to or from all nodes
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Get CAN bitrate
+     * 
+     * @return Bitrate in bits/second or BITRATE_AUTO
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Set CAN bitrate
+     * 
+     * @param bitrate Bitrate in bits/second (up to 1 Mbit/s) or BITRATE_AUTO
+     * to probe the supported bitrates
+     */
+    public void setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Allow probe requests during bitrate detection. Without, a request is
+     * only sent at the bitrate other nodes were heard on. With, a quiet bus
+     * is probed at each bitrate, which sends frames at wrong bitrates; only
+     * use it if no other node is connected.
+     * 
+     * @param activeProbe true to probe a quiet bus actively
+     */
+    public void setActiveProbe(boolean activeProbe) {
+        this.activeProbe = activeProbe;
+    }
+
+    /**
+     * Copy the options of given flash engine, e.g. of a template set up once
+     * for several jobs. Listeners are not copied.
+     * 
+     * @param template Flash engine to take the options from
+     */
+    public void copyOptions(LPCFlash template) {
+        blankCheck = template.blankCheck;
+        bitrate = template.bitrate;
+        activeProbe = template.activeProbe;
+        reportFile = template.reportFile;
+        retries = template.retries;
+        journal = template.journal;
+        imageCache = template.imageCache;
+        optimizePlan = template.optimizePlan;
+        addressIncrement = template.addressIncrement;
+        shadow = template.shadow;
+        spotCheck = template.spotCheck;
+        binaryBase = template.binaryBase;
+        trace = template.trace;
+        batchSize = template.batchSize;
+    }
+    
     /**
      * Add listener
      * 
@@ -103,140 +486,1275 @@ public class LPCFlash {
      * @param executionAddress Address to jump to
      */
     public void flash(String usbtinPort, String hexfile, GoMode gomode, int executionAddress) {
+        flash(usbtinPort, hexfile, gomode, executionAddress, new int[]{USBtinSDO.DEFAULT_NODE_ID});
+    }
+    
+    /**
+     * Flash given hex file to all given nodes on the CAN bus of the USBtin
+     * connected to given port. The nodes are programmed concurrently.
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param hexfile Filename of HEX
+     * @param gomode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     * @param nodeIds Node IDs of bootloaders to flash
+     */
+    public void flash(String usbtinPort, String hexfile, GoMode gomode, int executionAddress, int[] nodeIds) {
 
-        USBtinSDO usbtinSDO = new USBtinSDO();
-        
         try {
             
-            DeviceMemory dm = new DeviceMemory(32 * 1024, 4 * 1024);
+            FlashImage image = loadImage(hexfile, gomode, executionAddress);
             
-            outputMessage("Load HEX file... ");
+            flashImage(usbtinPort, image, nodeIds);
             
-            HexParser.read(new FileReader(hexfile), dm);
-
-            outputMessage("range: " + dm.getWroteMin() + "-" + dm.getWroteMax() + " (sectors " +  dm.getWroteSectorMin() + "-" + dm.getWroteSectorMax() + ")\n");
+            outputMessage("Finished.\n");
             
-            if (gomode == GoMode.INSERTRESET) {
+        } catch (Exception ex) {
             
-                byte resetSequence[] = new byte[]{(byte)0xBF, (byte)0xF3, (byte)0x4F, (byte)0x8F, (byte)0x02, (byte)0x4A, (byte)0x03, (byte)0x4B, (byte)0xDA, (byte)0x60, (byte)0xBF, (byte)0xF3, (byte)0x4F, (byte)0x8F, (byte)0xFE, (byte)0xE7, (byte)0x04, (byte)0x00, (byte)0xFA, (byte)0x05, (byte)0x00, (byte)0xED, (byte)0x00, (byte)0xE0};
-                int resetAddress = dm.getWroteMax();
-                if (resetAddress < 0x200) resetAddress = 0x200;
-                resetAddress = resetAddress + (4 - resetAddress % 4); // alignment
-                executionAddress = resetAddress;
-                
-                outputMessage("Place reset function at 0x" + String.format("%X", resetAddress) + "... ");
-
-                for (int i = 0; i < resetSequence.length; i++) {
-                    dm.writeMemoryData(resetAddress + i, resetSequence[i]);
-                }
-                
-                outputMessage("new range: " + dm.getWroteMin() + "-" + dm.getWroteMax() + " (sectors " +  dm.getWroteSectorMin() + "-" + dm.getWroteSectorMax() + ")\n");
+            // this we need because of the System.in.read()
+            outputMessage("ERROR: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Load image file and prepare memory image for flashing. The image can be
+     * flashed any number of times. Intel HEX, S-record, ELF and raw binary
+     * files are detected by their content.
+     * 
+     * @param hexfile Filename of image
+     * @param gomode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     * @return Memory image with checksum
+     * @throws IOException Error while reading hex file
+     */
+    public FlashImage loadImage(String hexfile, GoMode gomode, int executionAddress) throws IOException {
+        
+        String key = null;
+        if (imageCache != null) {
+            key = imageCache.getKey(new File(hexfile), gomode, executionAddress, binaryBase);
+            FlashImage image = imageCache.load(key);
+            if (image != null) {
+                DeviceMemory dm = image.getMemory();
+                outputMessage("Load cached image... sectors " + dm.getWroteSectorMin() + "-" + dm.getWroteSectorMax() + "\n");
+                return image;
             }
+        }
+        
+        DeviceMemory dm = new DeviceMemory(FLASH_SIZE, SECTOR_SIZE);
+        dm.addRegion("RAM", RAM_START, RAM_SIZE, false);
 
-            dm.insertChecksum();
+        outputMessage("Load image file... ");
 
-            
-            outputMessage("Open USBtin... ");
+        ImageLoader.Format format = ImageLoader.read(new File(hexfile), dm, binaryBase);
 
-            usbtinSDO.connect(usbtinPort);
-            
-            usbtinSDO.setFilter(new FilterChain[] {
-                new FilterChain(
-                    new FilterMask(0x7ff, (byte)0x00, (byte)0x00),
-                    new FilterValue[] {
-                        new FilterValue(0x5fd, (byte)0x00, (byte)0x00)
-                    }
-                )
-            });
-            
-            outputMessage(" " + usbtinSDO.getFirmwareVersion() + "/" + usbtinSDO.getHardwareVersion() + " SN:" + usbtinSDO.getSerialNumber() + "\n");
-                        
-            usbtinSDO.openCANChannel(100000, USBtin.OpenMode.ACTIVE);
-
-            // get device type
-            outputMessage("Read device type... ");
-            byte[] result = usbtinSDO.read(OBJ_IDX_DEVICE_TYPE, 0x00);
-            outputMessage(" " + new String(result, "ISO-8859-1") + "\n");            
-            
-            // unlock
-            outputMessage("Unlock device...\n");
-            usbtinSDO.writeExpedited(OBJ_IDX_UNLOCK_CODE, 0x00, new byte[]{0x5a, 0x5a});
-            
-            outputMessage("Prepare erase...\n");
-            // prepare sectors for erase
-            usbtinSDO.writeExpedited(OBJ_IDX_PREPARE_SECTORS_FOR_WRITE, 0x00, new byte[]{(byte)dm.getWroteSectorMin(), (byte)dm.getWroteSectorMax()});
-            
-            outputMessage("Erase sectors...\n");            
-            // erase sectors
-            usbtinSDO.writeExpedited(OBJ_IDX_ERASE_SECTORS, 0x00, new byte[]{(byte)dm.getWroteSectorMin(), (byte)dm.getWroteSectorMax()});
-            
-            for (int s = dm.getWroteSectorMin(); s <= dm.getWroteSectorMax(); s++) {
-
-                outputMessage("Write sector " + s + "\n");            
-
-                // prepare payload fields
-                byte [] ramStartaddress = new byte[]{0x00, 0x08, 0x00, 0x10};
-                byte [] flashStartaddress = new byte[]{
-                    (byte)(dm.getSectorStartAddress(s) & 0xff),
-                    (byte)((dm.getSectorStartAddress(s) >> 8) & 0xff),
-                    (byte)((dm.getSectorStartAddress(s) >> 16) & 0xff),
-                    (byte)((dm.getSectorStartAddress(s) >> 24) & 0xff)};
-                byte [] countOfBytes = new byte[]{
-                    (byte)(dm.getSector(s).length & 0xff),
-                    (byte)((dm.getSector(s).length >> 8) & 0xff)};
-                
-                
-                outputMessage("  Set RAM address...\n");
-                // write ram address 0x10000800
-                usbtinSDO.writeExpedited(OBJ_IDX_RAM_WRITE_ADDRESS, 0x00, ramStartaddress);
-            
-                outputMessage("  Transfer data...\n");
-                // transfer code of this sector
-                usbtinSDO.writeSegmented(OBJ_IDX_PROGRAM_DATA, OBJ_SUB_PROGRAM_AREA, dm.getSector(s));            
-                
-                outputMessage("  Prepare write...\n");
-                // prepare sector for write
-                usbtinSDO.writeExpedited(OBJ_IDX_PREPARE_SECTORS_FOR_WRITE, 0x00, new byte[]{(byte)s, (byte)s});
-                
-                outputMessage("  Copy RAM to flash...\n");
-                // copy RAM to flash
-                usbtinSDO.writeExpedited(OBJ_IDX_COPY_RAM_TO_FLASH, OBJ_SUB_FLASH_ADDRESS, flashStartaddress);
-                usbtinSDO.writeExpedited(OBJ_IDX_COPY_RAM_TO_FLASH, OBJ_SUB_RAM_ADDRESS, ramStartaddress);        
-                usbtinSDO.writeExpedited(OBJ_IDX_COPY_RAM_TO_FLASH, OBJ_SUB_NUMBER_OF_BYTES, countOfBytes);
-                
-                outputMessage("  Compare...\n");
-                // compare
-                usbtinSDO.writeExpedited(OBJ_IDX_COMPARE_MEMORY, OBJ_SUB_ADDRESS1, ramStartaddress);
-                usbtinSDO.writeExpedited(OBJ_IDX_COMPARE_MEMORY, OBJ_SUB_ADDRESS2, flashStartaddress);        
-                usbtinSDO.writeExpedited(OBJ_IDX_COMPARE_MEMORY, OBJ_SUB_NUMBER_OF_BYTES, countOfBytes);
-                        
-            }
-            
-            if (gomode != GoMode.NO) {
-                outputMessage("GO to 0x" + String.format("%X", executionAddress) + " ...\n");
-                usbtinSDO.writeExpedited(OBJ_IDX_EXECUTION_ADDRESS, OBJ_SUB_EXECUTION_ADDRESS, new byte[]{
-                        (byte)(executionAddress & 0xff),
-                        (byte)((executionAddress >> 8) & 0xff),
-                        (byte)((executionAddress >> 16) & 0xff),
-                        (byte)((executionAddress >> 24) & 0xff)});
-                usbtinSDO.writeExpedited(OBJ_IDX_PROGRAM_CONTROL, OBJ_SUB_PROGRAM_CONTROL, new byte[]{0x01}); // write program control 0x01                
+        outputMessage(format + ", range: " + dm.getWroteMin() + "-" + dm.getWroteMax() + " (sectors " +  dm.getWroteSectorMin() + "-" + dm.getWroteSectorMax() + ")\n");
+        for (DeviceMemory.Region region : dm.getDataRegions()) {
+            outputMessage("Skip data in " + region + ", only flash is programmed\n");
+        }
+
+        if (gomode == GoMode.INSERTRESET) {
+
+            byte resetSequence[] = new byte[]{(byte)0xBF, (byte)0xF3, (byte)0x4F, (byte)0x8F, (byte)0x02, (byte)0x4A, (byte)0x03, (byte)0x4B, (byte)0xDA, (byte)0x60, (byte)0xBF, (byte)0xF3, (byte)0x4F, (byte)0x8F, (byte)0xFE, (byte)0xE7, (byte)0x04, (byte)0x00, (byte)0xFA, (byte)0x05, (byte)0x00, (byte)0xED, (byte)0x00, (byte)0xE0};
+            int resetAddress = dm.getWroteMax();
+            if (resetAddress < 0x200) resetAddress = 0x200;
+            resetAddress = resetAddress + (4 - resetAddress % 4); // alignment
+            executionAddress = resetAddress;
+
+            outputMessage("Place reset function at 0x" + String.format("%X", resetAddress) + "... ");
+
+            for (int i = 0; i < resetSequence.length; i++) {
+                dm.writeMemoryData(resetAddress + i, resetSequence[i]);
             }
 
-            
-            // close the CAN channel and close the connection
-            usbtinSDO.closeCANChannel();
-            usbtinSDO.disconnect();
-            
-            outputMessage("Finished.\n");
-            
-        } catch (Exception ex) {
-            
+            outputMessage("new range: " + dm.getWroteMin() + "-" + dm.getWroteMax() + " (sectors " +  dm.getWroteSectorMin() + "-" + dm.getWroteSectorMax() + ")\n");
+        }
+
+        dm.insertChecksum();
+        
+        FlashImage image = new FlashImage(dm, gomode, executionAddress);
+        if (imageCache != null) {
             try {
-                usbtinSDO.disconnect();
-            } catch (Exception ex1) {};
-            
-            // this we need because of the System.in.read()
-            outputMessage("ERROR: " + ex.getMessage());
+                imageCache.store(key, image, FLASH_SIZE);
+            } catch (IOException ex) {
+                outputMessage("Can't store image in cache: " + ex.getMessage() + "\n");
+            }
+        }
+        
+        return image;
+    }
+    
+    /**
+     * Flash prepared image to all given nodes on the CAN bus of the USBtin
+     * connected to given port. The nodes are programmed concurrently.
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param image Memory image to flash
+     * @param nodeIds Node IDs of bootloaders to flash
+     * @throws Exception Error while flashing; on failure of single nodes
+     *         the others are flashed anyway
+     */
+    public void flashImage(String usbtinPort, final FlashImage image, int[] nodeIds) throws Exception {
+
+        runSession(usbtinPort, nodeIds, image.getTransferSize(), new NodeTask() {
+            public void run(SDOClient sdo, String prefix) throws Exception {
+                flashNode(sdo, image, prefix);
+            }
+        });
+    }
+    
+    /**
+     * Flash given hex file asynchronously. Loading and flashing run in the
+     * given executor; errors are delivered by the returned job.
+     * 
+     * @param executor Executor to run the job in
+     * @param usbtinPort Port of USBtin
+     * @param hexfile Filename of HEX
+     * @param gomode Type of GO command after flash process
+     * @param executionAddress Address to jump to
+     * @param nodeIds Node IDs of bootloaders to flash
+     * @return Job handle
+     */
+    public FlashJob submitFlash(ExecutorService executor, final String usbtinPort, final String hexfile, final GoMode gomode, final int executionAddress, final int[] nodeIds) {
+        return submit(executor, new Callable<Void>() {
+            public Void call() throws Exception {
+                flashImage(usbtinPort, loadImage(hexfile, gomode, executionAddress), nodeIds);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Flash prepared image asynchronously
+     * 
+     * @param executor Executor to run the job in
+     * @param usbtinPort Port of USBtin
+     * @param image Memory image to flash
+     * @param nodeIds Node IDs of bootloaders to flash
+     * @return Job handle
+     */
+    public FlashJob submitFlash(ExecutorService executor, final String usbtinPort, final FlashImage image, final int[] nodeIds) {
+        return submit(executor, new Callable<Void>() {
+            public Void call() throws Exception {
+                flashImage(usbtinPort, image, nodeIds);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Verify given hex file asynchronously
+     * 
+     * @param executor Executor to run the job in
+     * @param usbtinPort Port of USBtin
+     * @param hexfile Filename of HEX
+     * @param gomode Type of GO command the image was flashed with
+     * @param executionAddress Address to jump to
+     * @param nodeIds Node IDs of bootloaders to verify
+     * @return Job handle
+     */
+    public FlashJob submitVerify(ExecutorService executor, final String usbtinPort, final String hexfile, final GoMode gomode, final int executionAddress, final int[] nodeIds) {
+        return submit(executor, new Callable<Void>() {
+            public Void call() throws Exception {
+                verifyImage(usbtinPort, loadImage(hexfile, gomode, executionAddress), nodeIds);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Verify prepared image asynchronously
+     * 
+     * @param executor Executor to run the job in
+     * @param usbtinPort Port of USBtin
+     * @param image Memory image to compare with
+     * @param nodeIds Node IDs of bootloaders to verify
+     * @return Job handle
+     */
+    public FlashJob submitVerify(ExecutorService executor, final String usbtinPort, final FlashImage image, final int[] nodeIds) {
+        return submit(executor, new Callable<Void>() {
+            public Void call() throws Exception {
+                verifyImage(usbtinPort, image, nodeIds);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Submit job to executor. The progress is kept per LPCFlash, so only
+     * one job may run at a time; use one LPCFlash per adapter for parallel
+     * jobs.
+     * 
+     * @param executor Executor to run the job in
+     * @param work Work of job
+     * @return Job handle
+     * @throws IllegalStateException Other job of this LPCFlash not finished
+     */
+    protected synchronized FlashJob submit(ExecutorService executor, Callable<Void> work) {
+        if ((job != null) && !job.isTerminated()) {
+            throw new IllegalStateException("flash job already running");
+        }
+        bytesDone.set(0);
+        bytesTotal = 0;
+        job = new FlashJob(this, work);
+        executor.execute(job);
+        return job;
+    }
+    
+    /**
+     * Verify given hex file on all given nodes without programming them.
+     * The flash content is read back sector by sector and compared with
+     * the image; each node stops at its first mismatch.
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param hexfile Filename of HEX
+     * @param gomode Type of GO command the image was flashed with
+     * @param executionAddress Address to jump to
+     * @param nodeIds Node IDs of bootloaders to verify
+     */
+    public void verify(String usbtinPort, String hexfile, GoMode gomode, int executionAddress, int[] nodeIds) {
+
+        try {
+            
+            FlashImage image = loadImage(hexfile, gomode, executionAddress);
+            
+            verifyImage(usbtinPort, image, nodeIds);
+            
+            outputMessage("Verified.\n");
+            
+        } catch (Exception ex) {
+            
+            outputMessage("ERROR: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Verify prepared image on all given nodes without programming them
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param image Memory image to compare with
+     * @param nodeIds Node IDs of bootloaders to verify
+     * @throws VerifyException Flash content differs
+     * @throws Exception Error while reading
+     */
+    public void verifyImage(String usbtinPort, final FlashImage image, int[] nodeIds) throws Exception {
+
+        runSession(usbtinPort, nodeIds, image.getTransferSize(), new NodeTask() {
+            public void run(SDOClient sdo, String prefix) throws Exception {
+                verifyNode(sdo, image, prefix);
+            }
+        });
+    }
+    
+    /**
+     * Read device memory of one node and write it to given file. Files
+     * ending with ".hex" get intel hex records, all others raw binary data.
+     * The memory is streamed to the file chunk by chunk.
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param nodeId Node ID of bootloader
+     * @param address Address of first byte to read
+     * @param length Count of bytes to read
+     * @param file Target file
+     * @throws Exception Error while reading or writing
+     */
+    public void readBack(String usbtinPort, int nodeId, final int address, final int length, final File file) throws Exception {
+
+        runSession(usbtinPort, new int[]{nodeId}, length, new NodeTask() {
+            public void run(SDOClient sdo, String prefix) throws Exception {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                if (file.getName().toLowerCase().endsWith(".hex")) {
+                    out = new HexWriter(out, address);
+                }
+                try {
+                    readNode(sdo, address, length, out, prefix);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Work done on each node of a session
+     */
+    protected interface NodeTask {
+        
+        /**
+         * Run task on one node
+         * 
+         * @param sdo SDO client of node
+         * @param prefix Prefix of output messages
+         * @throws Exception Error while talking to node
+         */
+        void run(SDOClient sdo, String prefix) throws Exception;
+    }
+    
+    /**
+     * Connect to USBtin, run given task on all given nodes concurrently and
+     * disconnect again
+     * 
+     * @param usbtinPort Port of USBtin
+     * @param nodeIds Node IDs of bootloaders
+     * @param bytesPerNode Count of bytes transferred to or from each node
+     * @param task Task to run on each node
+     * @throws Exception Error of session; on failure of single nodes the
+     *         others are finished anyway
+     */
+    protected void runSession(String usbtinPort, int[] nodeIds, long bytesPerNode, final NodeTask task) throws Exception {
+
+        CANTransport transport = createTransport(usbtinPort);
+        USBtinSDO usbtinSDO = new USBtinSDO(transport);
+        usbtinSDO.setTrace(trace);
+        for (int nodeId : nodeIds) {
+            usbtinSDO.getClient(nodeId).setMetricsListener(metrics);
+        }
+        
+        FlashMetrics report = null;
+        if (reportFile != null) {
+            report = new FlashMetrics();
+            metricsListeners.add(report);
+        }
+        long sessionStart = System.nanoTime();
+        bytesTransferred = 0;
+        metrics.sessionStarted(usbtinPort, nodeIds);
+        Exception error = null;
+        
+        try {
+            
+            outputMessage("Open USBtin... ");
+
+            transport.connect(usbtinPort);
+            
+            transport.setFilter(USBtinSDO.createFilter(nodeIds));
+            
+            outputMessage(" " + transport.getFirmwareVersion() + "/" + transport.getHardwareVersion() + " SN:" + transport.getSerialNumber() + "\n");
+                        
+            int rate = bitrate;
+            if (rate == BITRATE_AUTO) {
+                rate = detectBitrate(transport, usbtinSDO.getClient(nodeIds[0]));
+            } else {
+                transport.openCANChannel(rate, USBtin.OpenMode.ACTIVE);
+            }
+            outputMessage("CAN bitrate: " + (rate / 1000) + " kbit/s\n");
+
+            long start = phaseFinished(0, FlashMetricsListener.Phase.OPEN, sessionStart);
+            bytesDone.set(0);
+            bytesSkipped.set(0);
+            bytesTotal = bytesPerNode * nodeIds.length;
+
+            if (nodeIds.length == 1) {
+                
+                task.run(usbtinSDO.getClient(nodeIds[0]), "");
+                
+            } else {
+                
+                // while one node is busy with erase or copy, the others use the bus
+                final Exception[] errors = new Exception[nodeIds.length];
+                Thread[] workers = new Thread[nodeIds.length];
+                for (int n = 0; n < nodeIds.length; n++) {
+                    final int index = n;
+                    final SDOClient client = usbtinSDO.getClient(nodeIds[n]);
+                    workers[n] = new Thread(new Runnable() {
+                        public void run() {
+                            String prefix = "[node 0x" + String.format("%02X", client.getNodeId()) + "] ";
+                            try {
+                                task.run(client, prefix);
+                                outputMessage(prefix + "Done.\n");
+                            } catch (Exception ex) {
+                                errors[index] = ex;
+                                outputMessage(prefix + "ERROR: " + ex.getMessage() + "\n");
+                            }
+                        }
+                    });
+                    workers[n].start();
+                }
+                
+                int failed = 0;
+                int differ = 0;
+                for (int n = 0; n < nodeIds.length; n++) {
+                    joinWorkers(workers, n);
+                    if (errors[n] != null) failed++;
+                    if (errors[n] instanceof VerifyException) differ++;
+                }
+                
+                if ((failed > 0) && (differ == failed)) {
+                    throw new VerifyException(failed + " of " + nodeIds.length + " nodes differ from image");
+                }
+                if (failed > 0) {
+                    throw new USBtinException(failed + " of " + nodeIds.length + " nodes failed");
+                }
+            }
+            
+            long elapsed = System.nanoTime() - start;
+            long bytes = bytesDone.get() - bytesSkipped.get();
+            bytesTransferred = bytes;
+            outputMessage(String.format("Transferred %d bytes in %.1f s at %d kbit/s (%.0f bytes/s)\n",
+                    bytes, elapsed / 1e9, rate / 1000, bytes * 1e9 / elapsed));
+            
+            // close the CAN channel and close the connection
+            transport.closeCANChannel();
+            transport.disconnect();
+            
+        } catch (Exception ex) {
+            
+            error = ex;
+            bytesTransferred = bytesDone.get() - bytesSkipped.get();
+            
+            try {
+                transport.disconnect();
+            } catch (Exception ex1) {};
+            
+            throw ex;
+            
+        } finally {
+            
+            metrics.sessionFinished(System.nanoTime() - sessionStart, error);
+            if (report != null) {
+                metricsListeners.remove(report);
+                try {
+                    report.write(reportFile);
+                } catch (IOException ex) {
+                    outputMessage("Can't write report " + reportFile + ": " + ex.getMessage() + "\n");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Wait for worker thread. If the waiting thread is interrupted, e.g. by
+     * cancelling the job, all workers are interrupted and awaited.
+     * 
+     * @param workers Worker threads
+     * @param n Index of worker to wait for
+     * @throws InterruptedException Waiting thread was interrupted
+     */
+    protected void joinWorkers(Thread[] workers, int n) throws InterruptedException {
+        try {
+            workers[n].join();
+        } catch (InterruptedException ex) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException ex1) {
+                        // keep waiting, the workers stop before their next frame
+                    }
+                }
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Report finished phase to metrics listeners
+     * 
+     * @param nodeId Node ID or 0 for the whole session
+     * @param phase Finished phase
+     * @param start Start of phase (System.nanoTime())
+     * @return Current time (System.nanoTime())
+     */
+    protected long phaseFinished(int nodeId, FlashMetricsListener.Phase phase, long start) {
+        long now = System.nanoTime();
+        metrics.phaseFinished(nodeId, phase, now - start);
+        return now;
+    }
+    
+    /**
+     * Detect CAN bitrate. First the bitrates are scanned from fastest to
+     * slowest in listen only mode. Valid frames of other nodes are received
+     * only at the bus bitrate, so the node is probed there by reading its
+     * device type. If the bus is quiet, the node is probed at each bitrate
+     * only with active probing allowed. The channel stays open with the
+     * first bitrate the node answers on; the throughput of each probe is
+     * reported.
+     * 
+     * @param transport Connected CAN transport
+     * @param sdo SDO client of node to probe
+     * @return Detected bitrate in bits/second
+     * @throws Exception No answer on any bitrate
+     */
+    protected int detectBitrate(CANTransport transport, SDOClient sdo) throws Exception {
+
+        final AtomicInteger heard = new AtomicInteger();
+        CANMessageListener counter = new CANMessageListener() {
+            public void receiveCANMessage(CANMessage canmsg) {
+                heard.incrementAndGet();
+            }
+        };
+
+        long timeout = sdo.getTimeout();
+        transport.addMessageListener(counter);
+        try {
+
+            // listen only, so nothing is sent at a wrong bitrate
+            int busRate = 0;
+            for (int rate : BITRATES) {
+                outputMessage("Listen at " + (rate / 1000) + " kbit/s... ");
+                heard.set(0);
+                transport.openCANChannel(rate, USBtin.OpenMode.LISTENONLY);
+                Thread.sleep(PROBE_LISTEN_TIME);
+                transport.closeCANChannel();
+                if (heard.get() > 0) {
+                    outputMessage(heard.get() + " frames\n");
+                    busRate = rate;
+                    break;
+                }
+                outputMessage("quiet\n");
+            }
+
+            int[] candidates;
+            if (busRate != 0) {
+                candidates = new int[]{busRate};
+            } else if (activeProbe) {
+                candidates = BITRATES;
+            } else {
+                throw new USBtinException("bitrate detection failed: bus is quiet, select bitrate or allow probing");
+            }
+
+            for (int rate : candidates) {
+
+                outputMessage("Probe " + (rate / 1000) + " kbit/s... ");
+
+                transport.openCANChannel(rate, USBtin.OpenMode.ACTIVE);
+                sdo.setTimeout(PROBE_TIMEOUT);
+                long start = System.nanoTime();
+                try {
+                    sdo.read(OBJ_IDX_DEVICE_TYPE, 0x00);
+                    long rtt = System.nanoTime() - start;
+                    // one segment with 7 data bytes per round trip
+                    outputMessage(String.format("answer after %.2f ms, about %.0f bytes/s\n", rtt / 1e6, 7 * 1e9 / rtt));
+                    return rate;
+                } catch (USBtinException ex) {
+                    outputMessage("no answer\n");
+                } finally {
+                    sdo.setTimeout(timeout);
+                }
+                transport.closeCANChannel();
+            }
+
+            if (busRate != 0) {
+                throw new USBtinException("no answer at bus bitrate " + (busRate / 1000) + " kbit/s");
+            }
+        } finally {
+            transport.removeMessageListener(counter);
+        }
+
+        throw new USBtinException("bitrate detection failed: no answer");
+    }
+
+    /**
+     * Create CAN transport for given port name. Ports starting with "sim"
+     * are served by the built-in bootloader simulator.
+     * 
+     * @param port Port name
+     * @return CAN transport, not connected yet
+     */
+    protected CANTransport createTransport(String port) {
+        if (LPCBootloaderSimulator.isSimulatorPort(port)) {
+            return new LPCBootloaderSimulator();
+        }
+        USBtinTransport transport = new USBtinTransport();
+        transport.setBatchSize(batchSize);
+        return transport;
+    }
+    
+    /**
+     * Flash prepared memory image to one node
+     * 
+     * @param sdo SDO client of node
+     * @param image Memory image to flash
+     * @param prefix Prefix of output messages
+     * @throws USBtinException Error while talking to node
+     * @throws UnsupportedEncodingException Device type can't be decoded
+     */
+    protected void flashNode(SDOClient sdo, FlashImage image, String prefix) throws USBtinException, UnsupportedEncodingException {
+
+        DeviceMemory dm = image.getMemory();
+        int nodeId = sdo.getNodeId();
+        long t = System.nanoTime();
+
+        // get device type
+        outputMessage(prefix + "Read device type... ");
+        byte[] result = sdo.read(OBJ_IDX_DEVICE_TYPE, 0x00);
+        outputMessage(" " + new String(result, "ISO-8859-1") + "\n");            
+
+        // unlock
+        outputMessage(prefix + "Unlock device...\n");
+        sdo.writeExpedited(OBJ_IDX_UNLOCK_CODE, 0x00, new byte[]{0x5a, 0x5a});
+        t = phaseFinished(nodeId, FlashMetricsListener.Phase.UNLOCK, t);
+
+        // sectors verified by an interrupted flash process are kept
+        String serial = null;
+        BitSet verified = new BitSet();
+        if ((journal != null) || (shadow != null)) {
+            serial = readSerialNumber(sdo);
+        }
+        if (journal != null) {
+            try {
+                // sectors verified for another image are overwritten now
+                journal.started(serial, image.getHash());
+            } catch (IOException ex) {
+                outputMessage(prefix + "Can't write journal: " + ex.getMessage() + "\n");
+            }
+            verified = journal.getVerified(serial, image.getHash());
+            if (!verified.isEmpty()) {
+                outputMessage(prefix + "Resume flash process, " + verified.cardinality() + " sector(s) already verified\n");
+            }
+        }
+
+        // sectors which hold the content of the image already are kept
+        String identity = null;
+        BitSet unchanged = new BitSet();
+        if (shadow != null) {
+            identity = readIdentity(sdo);
+            outputMessage(prefix + "Device serial " + serial + ", identity " + identity + "\n");
+            unchanged = findUnchangedSectors(sdo, image, serial, identity, prefix);
+        }
+        BitSet skip = (BitSet) verified.clone();
+        skip.or(unchanged);
+
+        List<DeviceMemory.SectorRange> changed = removeSectors(image.getEraseRanges(), skip);
+        List<DeviceMemory.SectorRange> eraseRanges = changed;
+        if (blankCheck) {
+            eraseRanges = removeBlankSectors(sdo, eraseRanges, prefix);
+        }
+
+        FlashPlan plan = createPlan(image, eraseRanges, skip);
+        outputMessage(prefix + "Flash plan: " + plan.getSummary() + "\n");
+
+        // content of changed sectors is unknown until they are written
+        for (DeviceMemory.SectorRange range : changed) {
+            shadowSectors(serial, identity, range.getFirst(), range.getLast(), null, prefix);
+        }
+
+        for (FlashPlan.Unit unit : plan.getUnits()) {
+            if (unit.getType() == FlashPlan.UnitType.ERASE) {
+                t = runUnit(sdo, unit, prefix, t);
+            }
+        }
+        // erase phase is reported even if all sectors were blank
+        if (eraseRanges.isEmpty()) {
+            t = phaseFinished(nodeId, FlashMetricsListener.Phase.ERASE, t);
+        }
+
+        // changed sectors without data are erased now
+        for (DeviceMemory.SectorRange range : changed) {
+            for (int s = range.getFirst(); s <= range.getLast(); s++) {
+                if (!dm.isSectorWritten(s)) {
+                    shadowSectors(serial, identity, s, s, new String[]{image.getSectorHash(s)}, prefix);
+                }
+            }
+        }
+
+        for (int s = skip.nextSetBit(0); s >= 0; s = skip.nextSetBit(s + 1)) {
+            if (verified.get(s)) {
+                outputMessage(prefix + "Sector " + s + " already verified\n");
+                shadowSectors(serial, identity, s, s, new String[]{image.getSectorHash(s)}, prefix);
+            } else {
+                outputMessage(prefix + "Sector " + s + " unchanged\n");
+            }
+            if (dm.isSectorWritten(s)) {
+                bytesDone.addAndGet(dm.getSectorLength(s));
+                bytesSkipped.addAndGet(dm.getSectorLength(s));
+            }
+        }
+
+        for (FlashPlan.Unit unit : plan.getUnits()) {
+            if (unit.getType() == FlashPlan.UnitType.ERASE) {
+                continue;
+            }
+            long unitStart = t;
+            t = runUnit(sdo, unit, prefix, t);
+            if (unit.getType() == FlashPlan.UnitType.SECTOR) {
+                int s = unit.getFirst();
+                metrics.sectorFinished(nodeId, s, dm.getSectorLength(s), t - unitStart);
+                journalSector(serial, image, s, prefix);
+                shadowSectors(serial, identity, s, s, new String[]{image.getSectorHash(s)}, prefix);
+            }
+        }
+
+        if (journal != null) {
+            try {
+                journal.finished(serial, image.getHash());
+            } catch (IOException ex) {
+                outputMessage(prefix + "Can't write journal: " + ex.getMessage() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Build flash plan of given image for a device in unknown state: all
+     * sectors of the image are erased and written
+     * 
+     * @param image Memory image to flash
+     * @return Plan, optimized if enabled
+     */
+    public FlashPlan createPlan(FlashImage image) {
+        return createPlan(image, image.getEraseRanges(), new BitSet());
+    }
+
+    /**
+     * Build flash plan of given image
+     * 
+     * @param image Memory image to flash
+     * @param eraseRanges Sectors to erase
+     * @param skip Sectors which are not written
+     * @return Plan, optimized if enabled
+     */
+    protected FlashPlan createPlan(FlashImage image, List<DeviceMemory.SectorRange> eraseRanges, BitSet skip) {
+        FlashPlan plan = FlashPlan.compile(image, eraseRanges, skip,
+                SECTOR_ERASE_TIMEOUT * 1000000L, COPY_TIMEOUT * 1000000L);
+        if (optimizePlan) {
+            plan.optimize(addressIncrement);
+        }
+        return plan;
+    }
+
+    /**
+     * Read serial number of device
+     * 
+     * @param sdo SDO client of node
+     * @return Serial number as hex string (128 bit)
+     * @throws USBtinException Error while reading
+     */
+    protected String readSerialNumber(SDOClient sdo) throws USBtinException {
+        StringBuilder sb = new StringBuilder();
+        for (int sub = 1; sub <= 4; sub++) {
+            byte[] word = sdo.read(OBJ_IDX_SERIAL_NUMBER, sub);
+            sb.append(String.format("%02X%02X%02X%02X", word[3], word[2], word[1], word[0]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Record verified sector in journal. A failing journal only costs the
+     * ability to resume, so flashing goes on.
+     * 
+     * @param serial Serial number of device
+     * @param image Flashed image
+     * @param sector Verified sector
+     * @param prefix Prefix of output messages
+     */
+    protected void journalSector(String serial, FlashImage image, int sector, String prefix) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.sectorVerified(serial, image.getHash(), sector);
+        } catch (IOException ex) {
+            outputMessage(prefix + "Can't write journal: " + ex.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Read identity object of device
+     * 
+     * @param sdo SDO client of node
+     * @return Vendor ID, product code, revision and serial number as hex,
+     * separated by colons
+     * @throws USBtinException Error while reading
+     */
+    protected String readIdentity(SDOClient sdo) throws USBtinException {
+        StringBuilder sb = new StringBuilder();
+        for (int sub = 1; sub <= 4; sub++) {
+            byte[] word = sdo.read(OBJ_IDX_IDENTITY_OBJECT, sub);
+            if (sub > 1) sb.append(':');
+            sb.append(String.format("%02X%02X%02X%02X", word[3], word[2], word[1], word[0]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find sectors of the image which the device database knows to hold
+     * the content of the image already
+     * 
+     * @param sdo SDO client of node
+     * @param image Memory image to flash
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param prefix Prefix of output messages
+     * @return Unchanged sectors
+     * @throws USBtinException Error while spot checking
+     */
+    protected BitSet findUnchangedSectors(SDOClient sdo, FlashImage image, String serial, String identity, String prefix) throws USBtinException {
+
+        BitSet unchanged = new BitSet();
+        for (DeviceMemory.SectorRange range : image.getEraseRanges()) {
+            for (int s = range.getFirst(); s <= range.getLast(); s++) {
+                if (!image.getSectorHash(s).equals(shadow.getSectorHash(serial, identity, s))) {
+                    continue;
+                }
+                if (spotCheck && !spotCheck(sdo, image, s, prefix)) {
+                    outputMessage(prefix + "Sector " + s + " differs from device database\n");
+                    continue;
+                }
+                unchanged.set(s);
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Compare a random sample of one sector with the image
+     * 
+     * @param sdo SDO client of node
+     * @param image Memory image
+     * @param sector Sector number
+     * @param prefix Prefix of output messages
+     * @return true if the sample matches
+     * @throws USBtinException Error while reading
+     */
+    protected boolean spotCheck(SDOClient sdo, FlashImage image, int sector, String prefix) throws USBtinException {
+
+        DeviceMemory dm = image.getMemory();
+        byte[] expected = new byte[SPOT_CHECK_LENGTH];
+        Arrays.fill(expected, DeviceMemory.ERASED);
+
+        // sample the written part of the sector, it changes between images;
+        // a sample of erased bytes would match a blank device as well
+        int length = dm.getSectorDataLength(sector);
+        int offset;
+        if (length == 0) {
+            offset = random.nextInt(dm.getSectorSize() / SPOT_CHECK_LENGTH) * SPOT_CHECK_LENGTH;
+        } else {
+            byte[] data = dm.getSector(sector);
+            offset = random.nextInt((length + SPOT_CHECK_LENGTH - 1) / SPOT_CHECK_LENGTH) * SPOT_CHECK_LENGTH;
+            if (isErased(data, offset, Math.min(SPOT_CHECK_LENGTH, length - offset))) {
+                // gap within the data, take the block with the last written byte
+                offset = (length - 1) / SPOT_CHECK_LENGTH * SPOT_CHECK_LENGTH;
+            }
+            System.arraycopy(data, offset, expected, 0, Math.min(SPOT_CHECK_LENGTH, data.length - offset));
+        }
+
+        byte[] sample = new byte[SPOT_CHECK_LENGTH];
+        readMemory(sdo, dm.getSectorStartAddress(sector) + offset, sample, SPOT_CHECK_LENGTH, prefix);
+        return Arrays.equals(sample, expected);
+    }
+
+    /**
+     * Check if given part of a buffer holds erased bytes only
+     * 
+     * @param data Buffer
+     * @param offset Offset of first byte
+     * @param length Count of bytes
+     * @return true if all bytes are erased
+     */
+    protected static boolean isErased(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] != DeviceMemory.ERASED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record content of sectors in device database
+     * 
+     * @param serial Serial number of device
+     * @param identity Identity of device
+     * @param first First sector
+     * @param last Last sector
+     * @param hashes Hash of content of each sector or null for unknown
+     * @param prefix Prefix of output messages
+     */
+    protected void shadowSectors(String serial, String identity, int first, int last, String[] hashes, String prefix) {
+        if (shadow == null) {
+            return;
+        }
+        try {
+            shadow.setSectorHashes(serial, identity, first, last, hashes);
+        } catch (IOException ex) {
+            outputMessage(prefix + "Can't write device database: " + ex.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Remove given sectors from list of sector ranges
+     * 
+     * @param ranges Sector ranges
+     * @param sectors Sectors to remove
+     * @return Remaining contiguous sector ranges
+     */
+    protected static List<DeviceMemory.SectorRange> removeSectors(List<DeviceMemory.SectorRange> ranges, BitSet sectors) {
+
+        if (sectors.isEmpty()) {
+            return ranges;
+        }
+
+        List<DeviceMemory.SectorRange> result = new ArrayList<DeviceMemory.SectorRange>();
+        for (DeviceMemory.SectorRange range : ranges) {
+            int first = -1;
+            for (int s = range.getFirst(); s <= range.getLast(); s++) {
+                if (sectors.get(s)) {
+                    if (first >= 0) {
+                        result.add(new DeviceMemory.SectorRange(first, s - 1));
+                        first = -1;
+                    }
+                } else if (first < 0) {
+                    first = s;
+                }
+            }
+            if (first >= 0) {
+                result.add(new DeviceMemory.SectorRange(first, range.getLast()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compare flash content of one node with prepared image. Only the
+     * written part of each written sector is read back.
+     * 
+     * @param sdo SDO client of node
+     * @param image Memory image to compare with
+     * @param prefix Prefix of output messages
+     * @throws VerifyException Flash content differs
+     * @throws USBtinException Error while reading
+     * @throws UnsupportedEncodingException Device type can't be decoded
+     */
+    protected void verifyNode(SDOClient sdo, FlashImage image, String prefix) throws USBtinException, UnsupportedEncodingException {
+
+        DeviceMemory dm = image.getMemory();
+        byte[] chunk = new byte[TRANSFER_CHUNK];
+
+        outputMessage(prefix + "Read device type... ");
+        byte[] result = sdo.read(OBJ_IDX_DEVICE_TYPE, 0x00);
+        outputMessage(" " + new String(result, "ISO-8859-1") + "\n");
+
+        int sectors = 0;
+        for (int s = dm.nextWrittenSector(0); s >= 0; s = dm.nextWrittenSector(s + 1)) {
+
+            outputMessage(prefix + "Verify sector " + s + "\n");
+            byte[] sectorData = dm.getSector(s);
+            int sectorStart = dm.getSectorStartAddress(s);
+
+            for (int offset = 0; offset < sectorData.length; offset += TRANSFER_CHUNK) {
+                int length = Math.min(TRANSFER_CHUNK, sectorData.length - offset);
+                readMemory(sdo, sectorStart + offset, chunk, length, prefix);
+                bytesDone.addAndGet(length);
+                for (int i = 0; i < length; i++) {
+                    if (chunk[i] != sectorData[offset + i]) {
+                        throw new VerifyException(s, sectorStart + offset + i, chunk[i], sectorData[offset + i]);
+                    }
+                }
+            }
+            sectors++;
+        }
+
+        outputMessage(prefix + sectors + " sector(s) match the image\n");
+    }
+
+    /**
+     * Read device memory of one node and write it to given stream
+     * 
+     * @param sdo SDO client of node
+     * @param address Address of first byte
+     * @param length Count of bytes
+     * @param out Target stream
+     * @param prefix Prefix of output messages
+     * @throws USBtinException Error while reading
+     * @throws IOException Error while writing
+     */
+    protected void readNode(SDOClient sdo, int address, int length, OutputStream out, String prefix) throws USBtinException, IOException {
+
+        byte[] chunk = new byte[TRANSFER_CHUNK];
+
+        outputMessage(prefix + "Read device type... ");
+        byte[] result = sdo.read(OBJ_IDX_DEVICE_TYPE, 0x00);
+        outputMessage(" " + new String(result, "ISO-8859-1") + "\n");
+
+        outputMessage(prefix + String.format("Read memory 0x%X-0x%X...\n", address, address + length - 1));
+        for (int offset = 0; offset < length; offset += TRANSFER_CHUNK) {
+            int n = Math.min(TRANSFER_CHUNK, length - offset);
+            readMemory(sdo, address + offset, chunk, n, prefix);
+            bytesDone.addAndGet(n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Read device memory by segmented upload, retry on failure
+     * 
+     * @param sdo SDO client of node
+     * @param address Address of first byte
+     * @param data Byte field to read into
+     * @param length Count of bytes
+     * @param prefix Prefix of output messages
+     * @throws USBtinException Error while reading
+     */
+    protected void readMemory(SDOClient sdo, int address, byte[] data, int length, String prefix) throws USBtinException {
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sdo.writeExpedited(OBJ_IDX_MEMORY_READ_ADDRESS, 0x00, new byte[]{
+                    (byte)(address & 0xff), (byte)((address >> 8) & 0xff), (byte)((address >> 16) & 0xff), (byte)((address >> 24) & 0xff)});
+                sdo.writeExpedited(OBJ_IDX_MEMORY_READ_LENGTH, 0x00, new byte[]{
+                    (byte)(length & 0xff), (byte)((length >> 8) & 0xff), (byte)((length >> 16) & 0xff), (byte)((length >> 24) & 0xff)});
+                int n = sdo.readSegmented(OBJ_IDX_PROGRAM_DATA, OBJ_SUB_PROGRAM_AREA, data, 0, length);
+                if (n != length) {
+                    throw new USBtinException("read " + n + " of " + length + " bytes at 0x" + String.format("%X", address));
+                }
+                return;
+            } catch (USBtinException ex) {
+                if (!isRetryable(ex) || (attempt >= retries)) throw ex;
+                retry(sdo, ex, prefix + "  Retry read at 0x" + String.format("%X", address));
+                // reset upload state of node
+                sdo.abort(OBJ_IDX_PROGRAM_DATA, OBJ_SUB_PROGRAM_AREA, SDOAbortException.ABORT_GENERAL);
+            }
+        }
+    }
+
+    /**
+     * Prepare and erase sectors, retry on failure
+     * 
+     * @param sdo SDO client of node
+     * @param first First sector
+     * @param last Last sector
+     * @param prefix Prefix of output messages
+     * @throws USBtinException Error while erasing
+     */
+    protected void eraseSectors(SDOClient sdo, int first, int last, String prefix) throws USBtinException {
+        runUnit(sdo, FlashPlan.createEraseUnit(first, last, SECTOR_ERASE_TIMEOUT * 1000000L), prefix, System.nanoTime());
+    }
+
+    /**
+     * Execute one unit of the flash plan. Redundant operations are skipped
+     * on the first attempt. A failed unit is retried with all operations,
+     * a sector which may be programmed partly is erased before.
+     * 
+     * @param sdo SDO client of node
+     * @param unit Unit to execute
+     * @param prefix Prefix of output messages
+     * @param t Start of current phase (System.nanoTime())
+     * @return End of last phase of unit
+     * @throws USBtinException Error while executing unit
+     */
+    protected long runUnit(SDOClient sdo, FlashPlan.Unit unit, String prefix, long t) throws USBtinException {
+
+        int nodeId = sdo.getNodeId();
+        List<FlashPlan.Step> steps = unit.getSteps();
+        if (unit.getType() == FlashPlan.UnitType.SECTOR) {
+            outputMessage(prefix + "Write sector " + unit.getFirst() + "\n");
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            boolean full = attempt > 0;
+            long transferred = 0;
+            boolean copied = false;
+            try {
+
+                String label = null;
+                for (int i = 0; i < steps.size(); i++) {
+
+                    FlashPlan.Step step = steps.get(i);
+                    if (!step.getLabel().equals(label)) {
+                        label = step.getLabel();
+                        outputMessage(prefix + label + "\n");
+                    }
+
+                    if (step.getChunk() >= 0) {
+                        // address and data of one transfer chunk are retried on their own
+                        int end = i + 1;
+                        while ((end < steps.size()) && (steps.get(end).getChunk() == step.getChunk())) end++;
+                        transferred += runChunk(sdo, steps.subList(i, end), full, prefix);
+                        i = end - 1;
+                    } else {
+                        if (step.isCommand() && (step.getIndex() == OBJ_IDX_COPY_RAM_TO_FLASH)) {
+                            copied = true;
+                        }
+                        execute(sdo, steps.get(i), full);
+                    }
+
+                    if ((i + 1 == steps.size()) || (steps.get(i + 1).getPhase() != steps.get(i).getPhase())) {
+                        t = phaseFinished(nodeId, steps.get(i).getPhase(), t);
+                    }
+                }
+                return t;
+
+            } catch (USBtinException ex) {
+                // the whole sector is transferred again on retry
+                bytesDone.addAndGet(-transferred);
+                if ((unit.getType() == FlashPlan.UnitType.GO) || !isRetryable(ex) || (attempt >= retries)) throw ex;
+                if (unit.getType() == FlashPlan.UnitType.ERASE) {
+                    retry(sdo, ex, prefix + "Retry erase");
+                } else {
+                    retry(sdo, ex, prefix + "  Retry sector " + unit.getFirst());
+                }
+                // flash may be programmed partly: start from erased sector
+                if (copied) {
+                    eraseSectors(sdo, unit.getFirst(), unit.getLast(), prefix + "  ");
+                }
+                t = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Transfer one chunk of sector data to RAM of node: set RAM address and
+     * download data. A failed chunk is aborted and restarted with all
+     * operations.
+     * 
+     * @param sdo SDO client of node
+     * @param steps Operations of chunk
+     * @param full true to execute redundant operations too
+     * @param prefix Prefix of output messages
+     * @return Count of transferred bytes
+     * @throws USBtinException Error while transferring
+     */
+    protected int runChunk(SDOClient sdo, List<FlashPlan.Step> steps, boolean full, String prefix) throws USBtinException {
+
+        int length = 0;
+        int offset = 0;
+        for (FlashPlan.Step step : steps) {
+            if (step.isDownload()) {
+                length += step.getLength();
+                offset = step.getOffset();
+            }
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                for (FlashPlan.Step step : steps) {
+                    execute(sdo, step, full);
+                }
+                bytesDone.addAndGet(length);
+                return length;
+            } catch (USBtinException ex) {
+                if (!isRetryable(ex) || (attempt >= retries)) throw ex;
+                retry(sdo, ex, prefix + "  Retry transfer at offset " + offset);
+                // reset download state of node, RAM write address is unknown now
+                sdo.abort(OBJ_IDX_PROGRAM_DATA, OBJ_SUB_PROGRAM_AREA, SDOAbortException.ABORT_GENERAL);
+                full = true;
+            }
+        }
+    }
+
+    /**
+     * Execute one operation of the flash plan
+     * 
+     * @param sdo SDO client of node
+     * @param step Operation to execute
+     * @param full true to execute redundant operations too
+     * @throws USBtinException Error while writing
+     */
+    protected void execute(SDOClient sdo, FlashPlan.Step step, boolean full) throws USBtinException {
+        if (step.isRedundant() && !full) {
+            return;
+        }
+        if (step.isDownload()) {
+            sdo.writeSegmented(step.getIndex(), step.getSubindex(), step.getData(), step.getOffset(), step.getLength());
+        } else if (step.getProcessingTime() > 0) {
+            sdo.writeExpedited(step.getIndex(), step.getSubindex(), step.getData(), step.getProcessingTime());
+        } else {
+            sdo.writeExpedited(step.getIndex(), step.getSubindex(), step.getData());
+        }
+    }
+
+    /**
+     * Check if failed request may succeed on a retry
+     * 
+     * @param ex Error of failed request
+     * @return true if request should be retried
+     */
+    protected boolean isRetryable(USBtinException ex) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (ex instanceof SDOAbortException) {
+            return ((SDOAbortException) ex).isRetryable();
+        }
+        // timeout or unexpected answer because of lost frame
+        return true;
+    }
+
+    /**
+     * Report retry of failed request
+     * 
+     * @param sdo SDO client of node
+     * @param ex Error of failed request
+     * @param message Message to output
+     */
+    protected void retry(SDOClient sdo, USBtinException ex, String message) {
+        outputMessage(message + " (" + ex.getMessage() + ")\n");
+        metrics.retry(sdo.getNodeId(), ex.getMessage());
+    }
+
+    /**
+     * Blank check given sectors and remove the blank ones from the list
+     * 
+     * @param sdo SDO client of node
+     * @param ranges Sectors to erase
+     * @param prefix Prefix of output messages
+     * @return Sectors which are not blank
+     */
+    protected List<DeviceMemory.SectorRange> removeBlankSectors(SDOClient sdo, List<DeviceMemory.SectorRange> ranges, String prefix) {
+
+        List<DeviceMemory.SectorRange> result = new ArrayList<DeviceMemory.SectorRange>();
+        int skipped = 0;
+
+        for (DeviceMemory.SectorRange range : ranges) {
+
+            outputMessage(prefix + "Blank check sectors " + range + "...\n");
+            // whole range blank: nothing to erase
+            if (isBlank(sdo, range.getFirst(), range.getLast())) {
+                for (int s = range.getFirst(); s <= range.getLast(); s++) {
+                    outputMessage(prefix + "  Sector " + s + " blank, erase skipped (" + SECTOR_ERASE_TIME + " ms saved)\n");
+                }
+                skipped += range.getCount();
+                continue;
+            }
+            if (range.getCount() == 1) {
+                result.add(range);
+                continue;
+            }
+
+            // check sector by sector, keep contiguous runs of non-blank sectors
+            int first = -1;
+            for (int s = range.getFirst(); s <= range.getLast(); s++) {
+                if (isBlank(sdo, s, s)) {
+                    outputMessage(prefix + "  Sector " + s + " blank, erase skipped (" + SECTOR_ERASE_TIME + " ms saved)\n");
+                    skipped++;
+                    if (first >= 0) {
+                        result.add(new DeviceMemory.SectorRange(first, s - 1));
+                        first = -1;
+                    }
+                } else if (first < 0) {
+                    first = s;
+                }
+            }
+            if (first >= 0) {
+                result.add(new DeviceMemory.SectorRange(first, range.getLast()));
+            }
+        }
+
+        if (skipped > 0) {
+            outputMessage(prefix + "Skipped erase of " + skipped + " blank sector(s), about " + (skipped * SECTOR_ERASE_TIME) + " ms saved\n");
+        }
+
+        return result;
+    }
+
+    /**
+     * Blank check sectors
+     * 
+     * @param sdo SDO client of node
+     * @param first First sector
+     * @param last Last sector
+     * @return true if all sectors are blank, false if not blank or the check
+     * failed
+     */
+    protected boolean isBlank(SDOClient sdo, int first, int last) {
+        try {
+            sdo.writeExpedited(OBJ_IDX_BLANK_CHECK_SECTORS, OBJ_SUB_CHECK_SECTORS, new byte[]{(byte)first, (byte)last},
+                    (last - first + 1) * BLANK_CHECK_TIMEOUT * 1000000L);
+            return true;
+        } catch (USBtinException e) {
+            // device aborts with SECTOR_NOT_BLANK; on any other error erase anyway
+            return false;
         }
     }
 }
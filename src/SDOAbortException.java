@@ -0,0 +1,172 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.USBtinException;
+
+/**
+ * SDO transfer aborted by the server. The LPC11C2x bootloader reports
+ * errors of ISP commands as abort code 0x0F000000 plus ISP return code.
+ * 
+ * @author Thomas Fischl
+ */
+public class SDOAbortException extends USBtinException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Abort code of ISP errors, ISP return code is added */
+    public static final int ABORT_ISP = 0x0f000000;
+    public static final int ABORT_TOGGLE = 0x05030000;
+    public static final int ABORT_TIMEOUT = 0x05040000;
+    public static final int ABORT_COMMAND = 0x05040001;
+    public static final int ABORT_OUT_OF_MEMORY = 0x05040005;
+    public static final int ABORT_UNSUPPORTED_ACCESS = 0x06010000;
+    public static final int ABORT_WRITE_ONLY = 0x06010001;
+    public static final int ABORT_READ_ONLY = 0x06010002;
+    public static final int ABORT_NO_OBJECT = 0x06020000;
+    public static final int ABORT_LENGTH = 0x06070010;
+    public static final int ABORT_NO_SUBINDEX = 0x06090011;
+    public static final int ABORT_GENERAL = 0x08000000;
+
+    /** ISP return codes */
+    public static final int ISP_BUSY = 11;
+    public static final int ISP_COMPARE_ERROR = 10;
+
+    /** Names of ISP return codes */
+    protected static final String[] ISP_ERRORS = {
+        "CMD_SUCCESS", "INVALID_COMMAND", "SRC_ADDR_ERROR", "DST_ADDR_ERROR",
+        "SRC_ADDR_NOT_MAPPED", "DST_ADDR_NOT_MAPPED", "COUNT_ERROR", "INVALID_SECTOR",
+        "SECTOR_NOT_BLANK", "SECTOR_NOT_PREPARED_FOR_WRITE_OPERATION", "COMPARE_ERROR", "BUSY",
+        "PARAM_ERROR", "ADDR_ERROR", "ADDR_NOT_MAPPED", "CMD_LOCKED",
+        "INVALID_CODE", "INVALID_BAUD_RATE", "INVALID_STOP_BIT", "CODE_READ_PROTECTION_ENABLED"
+    };
+
+    /** Object index of aborted transfer */
+    protected final int index;
+
+    /** Subindex of aborted transfer */
+    protected final int subindex;
+
+    /** Abort code */
+    protected final int abortCode;
+
+    /**
+     * Construct abort exception
+     * 
+     * @param index Object index
+     * @param subindex Subindex
+     * @param abortCode Abort code sent by server
+     */
+    public SDOAbortException(int index, int subindex, int abortCode) {
+        super(String.format("SDO abort at 0x%04X/%d: %s (0x%08X)", index, subindex, describe(abortCode), abortCode));
+        this.index = index;
+        this.subindex = subindex;
+        this.abortCode = abortCode;
+    }
+
+    /**
+     * Decode abort frame
+     * 
+     * @param data Data of abort frame (command byte 0x80)
+     * @return Exception with decoded index, subindex and abort code
+     */
+    public static SDOAbortException decode(byte[] data) {
+        int index = (data[1] & 0xff) | ((data[2] & 0xff) << 8);
+        int code = (data[4] & 0xff) | ((data[5] & 0xff) << 8) | ((data[6] & 0xff) << 16) | ((data[7] & 0xff) << 24);
+        return new SDOAbortException(index, data[3] & 0xff, code);
+    }
+
+    /**
+     * Get description of abort code
+     * 
+     * @param abortCode Abort code
+     * @return Text describing the abort code
+     */
+    public static String describe(int abortCode) {
+        if ((abortCode & 0xffff0000) == ABORT_ISP) {
+            int isp = abortCode & 0xffff;
+            return "ISP " + (isp < ISP_ERRORS.length ? ISP_ERRORS[isp] : "error " + isp);
+        }
+        switch (abortCode) {
+            case ABORT_TOGGLE: return "toggle bit not alternated";
+            case ABORT_TIMEOUT: return "SDO protocol timed out";
+            case ABORT_COMMAND: return "command specifier not valid";
+            case ABORT_OUT_OF_MEMORY: return "out of memory";
+            case ABORT_UNSUPPORTED_ACCESS: return "unsupported access";
+            case ABORT_WRITE_ONLY: return "object is write only";
+            case ABORT_READ_ONLY: return "object is read only";
+            case ABORT_NO_OBJECT: return "object does not exist";
+            case ABORT_LENGTH: return "length of parameter does not match";
+            case ABORT_NO_SUBINDEX: return "subindex does not exist";
+            case ABORT_GENERAL: return "general error";
+            default: return "unknown abort code";
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getSubindex() {
+        return subindex;
+    }
+
+    public int getAbortCode() {
+        return abortCode;
+    }
+
+    /**
+     * Check if abort reports an error of an ISP command
+     * 
+     * @return true if abort code holds an ISP return code
+     */
+    public boolean isISPError() {
+        return (abortCode & 0xffff0000) == ABORT_ISP;
+    }
+
+    /**
+     * Get ISP return code
+     * 
+     * @return ISP return code or -1 if abort is no ISP error
+     */
+    public int getISPError() {
+        return isISPError() ? abortCode & 0xffff : -1;
+    }
+
+    /**
+     * Check if a repeated attempt may succeed. This is true for protocol
+     * errors caused by lost frames, a busy bootloader and compare errors
+     * after a corrupted transfer.
+     * 
+     * @return true if transfer can be retried
+     */
+    public boolean isRetryable() {
+        switch (abortCode) {
+            case ABORT_TOGGLE:
+            case ABORT_TIMEOUT:
+            case ABORT_COMMAND:
+            case ABORT_GENERAL:
+            case ABORT_ISP + ISP_BUSY:
+            case ABORT_ISP + ISP_COMPARE_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
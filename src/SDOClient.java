@@ -0,0 +1,500 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.util.Arrays;
+
+/**
+ * SDO client for one CANOpen node. Responses are delivered by the USBtinSDO
+ * connection the client belongs to.
+ * 
+ * @author Thomas Fischl
+ */
+public class SDOClient {
+
+    /** Default timeout for one SDO request in nanoseconds */
+    protected static final long TRANSMIT_TIMEOUT = 1000L * 1000 * 1000;
+
+    /** Lower bound of adaptive timeout in nanoseconds */
+    protected static final long MIN_TIMEOUT = 50L * 1000 * 1000;
+
+    /** Command bytes of download segments [toggle][bytes in last segment] */
+    protected static final byte[][] SEGMENT_HEADER = buildSegmentHeaders();
+
+    /** Expected responses of download segments [toggle] */
+    protected static final int[] SEGMENT_RESPONSE = {0x20, 0x30};
+
+    /** Connection to send requests over */
+    protected final USBtinSDO connection;
+    
+    /** Node ID of SDO server */
+    protected final int nodeId;
+    
+    /** COB-ID of SDO requests (client to server) */
+    protected final int requestId;
+    
+    /** COB-ID of SDO responses (server to client) */
+    protected final int responseId;
+    
+    /** Queue of received SDO responses */
+    protected final SDOMailbox mailbox = new SDOMailbox(16);
+
+    /** Maximum timeout for one SDO request in nanoseconds */
+    protected volatile long timeout = TRANSMIT_TIMEOUT;
+
+    /** Smoothed round trip time in nanoseconds, 0 until first measurement */
+    protected long srtt = 0;
+
+    /** Variation of round trip time in nanoseconds */
+    protected long rttvar = 0;
+
+    /** Count of timeouts since last answer, doubles the adaptive timeout */
+    protected int backoff = 0;
+
+    /** Listener for round trip measurements or null */
+    protected volatile FlashMetricsListener metrics = null;
+    
+    /**
+     * Construct new SDO client
+     * 
+     * @param connection Connection to send requests over
+     * @param nodeId Node ID of SDO server (1..127)
+     */
+    public SDOClient(USBtinSDO connection, int nodeId) {
+        this.connection = connection;
+        this.nodeId = nodeId;
+        this.requestId = USBtinSDO.SDO_REQUEST_BASE + nodeId;
+        this.responseId = USBtinSDO.SDO_RESPONSE_BASE + nodeId;
+    }
+    
+    /**
+     * Get node ID of SDO server
+     * 
+     * @return Node ID
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get maximum timeout of one SDO request
+     * 
+     * @return Timeout in nanoseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set maximum timeout of one SDO request. The timeout actually used
+     * adapts to the measured round trip time, see getAdaptiveTimeout().
+     * 
+     * @param timeout Timeout in nanoseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+    
+    /**
+     * Get timeout derived from measured round trip times: smoothed round
+     * trip time plus four times its variation, doubled on each timeout
+     * since the last answer. Until the first answer, the maximum timeout
+     * is used.
+     * 
+     * @return Timeout in nanoseconds
+     */
+    public long getAdaptiveTimeout() {
+        long max = timeout;
+        if (srtt == 0) {
+            return max;
+        }
+        long rto = Math.max(MIN_TIMEOUT, srtt + 4 * rttvar) << Math.min(backoff, 8);
+        return Math.min(rto, max);
+    }
+
+    /**
+     * Update round trip estimation with new measurement
+     * 
+     * @param rtt Measured round trip time in nanoseconds
+     */
+    protected void updateRoundTrip(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    /**
+     * Set listener for round trip measurements
+     * 
+     * @param metrics Listener or null
+     */
+    public void setMetricsListener(FlashMetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Called by the connection for every response of this node. Runs in
+     * the receive thread of the connection.
+     * 
+     * @param canmsg Received CAN message
+     */
+    public void receive(CANMessage canmsg) {
+
+        if ((canmsg.getId() == responseId) && (canmsg.getData().length >= 1)) {
+            mailbox.offer(canmsg);
+        }
+    }
+    
+    /**
+     * Transmit given CAN messsage, wait for response and check the answer.
+     * 
+     * @param msg CAN message to send
+     * @param expected Expected answer
+     * @return Response
+     * @throws USBtinException Error while transmitting message
+     */
+    public CANMessage transmit(CANMessage msg, int expected)  throws USBtinException {
+        return transmit(msg, expected, 0);
+    }
+
+    /**
+     * Transmit given CAN messsage, wait for response and check the answer.
+     * 
+     * @param msg CAN message to send
+     * @param expected Expected answer
+     * @param processingTime Time the node needs to execute the request in
+     *        nanoseconds, added to the timeout
+     * @return Response
+     * @throws SDOAbortException Node aborted the request
+     * @throws SDOTimeoutException No answer in time
+     * @throws USBtinException Error while transmitting message
+     */
+    public CANMessage transmit(CANMessage msg, int expected, long processingTime)  throws USBtinException {
+        return transmit(msg, expected, 0xff, processingTime);
+    }
+
+    /**
+     * Transmit given CAN messsage, wait for response and check the masked
+     * command byte of the answer.
+     * 
+     * @param msg CAN message to send
+     * @param expected Expected answer
+     * @param mask Bits of command byte to compare with expected answer
+     * @param processingTime Time the node needs to execute the request in
+     *        nanoseconds, added to the timeout
+     * @return Response
+     * @throws SDOAbortException Node aborted the request
+     * @throws SDOTimeoutException No answer in time
+     * @throws USBtinException Error while transmitting message
+     */
+    public CANMessage transmit(CANMessage msg, int expected, int mask, long processingTime)  throws USBtinException {
+
+        // cooperative cancellation: stop between frames
+        if (Thread.currentThread().isInterrupted()) {
+            throw new USBtinException("sdo_transmit: cancelled");
+        }
+
+        // responses of earlier (timed out) requests are not of interest
+        mailbox.clear();
+        connection.send(msg);
+        
+        long sent = System.nanoTime();
+        long wait = getAdaptiveTimeout() + processingTime;
+        
+        try {
+            // skip late responses of earlier requests which arrived after
+            // the mailbox was cleared
+            CANMessage response;
+            do {
+                response = mailbox.poll(sent + wait);
+            } while ((response != null) && !isResponse(msg, response, expected, mask));
+
+            long rtt = System.nanoTime() - sent;
+            FlashMetricsListener m = metrics;
+            if (m != null) {
+                m.requestFinished(nodeId, rtt, response != null);
+            }
+            if (response == null) {
+                backoff++;
+                throw new SDOTimeoutException(wait);
+            }
+            
+            // long running commands would distort the estimation
+            backoff = 0;
+            if (processingTime == 0) {
+                updateRoundTrip(rtt);
+            }
+            
+            if ((response.getData()[0] == (byte) 0x80) && (response.getData().length >= 8)) {
+                throw SDOAbortException.decode(response.getData());
+            }
+            
+            return response;
+            
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new USBtinException("sdo_transmit: interrupted exception ");
+        }
+    }
+    
+    /**
+     * Check if given message answers the request. Aborts are answers as
+     * well. Responses to initiate requests must carry the index and subindex
+     * of the request; segment responses carry no index.
+     * 
+     * @param request Sent request
+     * @param response Received message
+     * @param expected Expected answer
+     * @param mask Bits of command byte to compare with expected answer
+     * @return true if the message answers the request
+     */
+    protected static boolean isResponse(CANMessage request, CANMessage response, int expected, int mask) {
+
+        byte[] req = request.getData();
+        byte[] res = response.getData();
+        boolean abort = (res[0] == (byte) 0x80) && (res.length >= 8);
+        if (!abort && ((res[0] & mask) != expected)) {
+            return false;
+        }
+
+        // initiate download (1) or upload (2) command specifier
+        int ccs = (req[0] >> 5) & 0x07;
+        if ((ccs == 1) || (ccs == 2)) {
+            return (res.length >= 4) && (res[1] == req[1]) && (res[2] == req[2]) && (res[3] == req[3]);
+        }
+        return true;
+    }
+
+    /**
+     * Read object at given index
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @return Content of object
+     * @throws USBtinException Error while reading object
+     */
+    public byte[] read(int obj_idx, int sub_idx) throws USBtinException {
+        
+        CANMessage msg = transmit(
+                new CANMessage(requestId, new byte[]{0x40, (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx, 0x00, 0x00, 0x00, 0x00}),
+                0x43);
+        
+        return Arrays.copyOfRange(msg.getData(), 4, 8);
+    }
+    
+    /**
+     * Read object in segmented mode. Expedited answers of the node are
+     * accepted as well. The segments are received into the given field
+     * directly. Each request gets a frame of its own: after a timeout the
+     * previous frame may still be queued in the transport and resent.
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param data Byte field to read into
+     * @param offset Position of first byte
+     * @param length Maximum count of bytes to read
+     * @return Count of bytes read
+     * @throws USBtinException Error while reading object or object larger
+     *         than given length
+     */
+    public int readSegmented(int obj_idx, int sub_idx, byte[] data, int offset, int length) throws USBtinException {
+
+        CANMessage msg = transmit(
+                new CANMessage(requestId, new byte[]{0x40, (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx, 0x00, 0x00, 0x00, 0x00}),
+                0x40, 0xf0, 0);
+        byte[] response = msg.getData();
+        int cmd = response[0];
+
+        // expedited: up to four bytes in the initiate response
+        if ((cmd & 0x02) != 0) {
+            int n = (cmd & 0x01) != 0 ? 4 - ((cmd >> 2) & 0x03) : 4;
+            if (n > length) {
+                throw new USBtinException("sdo_upload: " + n + " bytes don't fit into " + length + " bytes");
+            }
+            System.arraycopy(response, 4, data, offset, n);
+            return n;
+        }
+
+        if ((cmd & 0x01) != 0) {
+            int size = (response[4] & 0xff) | ((response[5] & 0xff) << 8) | ((response[6] & 0xff) << 16) | ((response[7] & 0xff) << 24);
+            if ((size < 0) || (size > length)) {
+                abort(obj_idx, sub_idx, SDOAbortException.ABORT_OUT_OF_MEMORY);
+                throw new USBtinException("sdo_upload: " + size + " bytes don't fit into " + length + " bytes");
+            }
+        }
+
+        int toggle = 0;
+        int pos = offset;
+        while (true) {
+
+            byte[] request = new byte[8];
+            request[0] = (byte)(0x60 | (toggle << 4));
+            byte[] segment = transmit(new CANMessage(requestId, request), toggle << 4, 0xf0, 0).getData();
+
+            int n = 7 - ((segment[0] >> 1) & 0x07);
+            if (pos + n > offset + length) {
+                abort(obj_idx, sub_idx, SDOAbortException.ABORT_OUT_OF_MEMORY);
+                throw new USBtinException("sdo_upload: more than " + length + " bytes");
+            }
+            System.arraycopy(segment, 1, data, pos, n);
+            pos += n;
+
+            if ((segment[0] & 0x01) != 0) {
+                return pos - offset;
+            }
+            toggle ^= 1;
+        }
+    }
+    
+    /**
+     * Write to object in expedited mode
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param data Byte field to send
+     * @throws USBtinException Error while writing data
+     */
+    public void writeExpedited(int obj_idx, int sub_idx, byte[] data)  throws USBtinException {
+        writeExpedited(obj_idx, sub_idx, data, 0);
+    }
+    
+    /**
+     * Write to object in expedited mode and give the node extra time for
+     * executing the request, e.g. for erasing flash
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param data Byte field to send
+     * @param processingTime Time the node needs in nanoseconds
+     * @throws USBtinException Error while writing data
+     */
+    public void writeExpedited(int obj_idx, int sub_idx, byte[] data, long processingTime)  throws USBtinException {
+        
+        byte[] msgdata = new byte[8];
+            
+        switch (data.length) {
+            case 4: msgdata[0] = 0x23; break;
+            case 2: msgdata[0] = 0x2b; break;
+            case 1: msgdata[0] = 0x2f; break;
+            default: msgdata[0] = 0x22; break;
+        }
+
+        msgdata[1] = (byte)(obj_idx & 0xff);
+        msgdata[2] = (byte)((obj_idx >> 8) & 0xff);
+        msgdata[3] = (byte)sub_idx;
+        for (int i = 0; i < data.length; i++) {
+            msgdata[4 + i] = data[i];
+        }
+
+        transmit(new CANMessage(requestId, msgdata), 0x60, processingTime);        
+    }
+    
+    /**
+     * Abort transfer. No answer is expected; the node resets its transfer
+     * state, so a following download starts from scratch.
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param abortCode Abort code
+     * @throws USBtinException Error while sending
+     */
+    public void abort(int obj_idx, int sub_idx, int abortCode)  throws USBtinException {
+        
+        connection.send(new CANMessage(requestId, new byte[]{(byte) 0x80,
+            (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx,
+            (byte)(abortCode & 0xff), (byte)((abortCode >> 8) & 0xff), (byte)((abortCode >> 16) & 0xff), (byte)((abortCode >> 24) & 0xff)}));
+    }
+    
+    /**
+     * Write data to object in segmented mode
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param data Byte field to write
+     * @throws USBtinException Error while writing data
+     */
+    public void writeSegmented(int obj_idx, int sub_idx, byte[] data)  throws USBtinException{        
+        writeSegmented(obj_idx, sub_idx, data, 0, data.length);
+    }
+    
+    /**
+     * Write part of given byte field to object in segmented mode. The
+     * segments are encoded directly from the given field. Each segment gets
+     * a frame of its own, as CANMessage doesn't copy its data: after a
+     * timeout the previous frame may still be queued in the transport and
+     * must not change when it is resent.
+     * 
+     * @param obj_idx Object index
+     * @param sub_idx Subindex
+     * @param data Byte field to write
+     * @param offset Position of first byte to write
+     * @param length Count of bytes to write
+     * @throws USBtinException Error while writing data
+     */
+    public void writeSegmented(int obj_idx, int sub_idx, byte[] data, int offset, int length)  throws USBtinException{        
+
+        int bytesleft = length;        
+        CANMessage msg = new CANMessage(requestId, new byte[]{0x21, (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx, (byte)(bytesleft & 0xff), (byte)((bytesleft >> 8) & 0xff), 0x00, 0x00});
+        transmit(msg, 0x60);                        
+            
+        int toggle = 0;
+        int pos = offset;
+        while (bytesleft > 0) {
+
+            int sendbyte = bytesleft;
+            int header = 0;
+            if (sendbyte > 7) sendbyte = 7;
+            if (bytesleft <= 7) header = sendbyte;
+            
+            byte[] segmentData = new byte[8];
+            segmentData[0] = SEGMENT_HEADER[toggle][header];
+            System.arraycopy(data, pos, segmentData, 1, sendbyte);
+
+            pos += sendbyte;
+            bytesleft -= sendbyte;                
+
+            transmit(new CANMessage(requestId, segmentData), SEGMENT_RESPONSE[toggle]);
+
+            toggle ^= 1;
+        }
+    }
+    
+    /**
+     * Build table with command bytes of download segments
+     * 
+     * @return Command bytes indexed by toggle bit and count of data bytes of
+     *         last segment (0 for segments which are not the last one)
+     */
+    private static byte[][] buildSegmentHeaders() {
+        byte[][] headers = new byte[2][8];
+        for (int toggle = 0; toggle < 2; toggle++) {
+            headers[toggle][0] = (byte)(toggle << 4);
+            for (int n = 1; n <= 7; n++) {
+                // toggle bit, count of unused bytes, no more segments
+                headers[toggle][n] = (byte)((toggle << 4) | ((7 - n) << 1) | 0x01);
+            }
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016-2017  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.CANMessage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer queue for received SDO responses.
+ * The producer is the serial receive thread, the consumer is the thread
+ * waiting for the answer of a request.
+ *
+ * @author Thomas Fischl
+ */
+public class SDOMailbox {
+
+    /** Number of polls before the consumer parks (spinning needs a second CPU) */
+    protected static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+
+    /** Ring buffer with received messages */
+    protected final CANMessage[] ring;
+
+    /** Index mask for ring buffer */
+    protected final int mask;
+
+    /** Next position to read (written by consumer only) */
+    protected final AtomicLong head = new AtomicLong();
+
+    /** Next position to write (written by producer only) */
+    protected final AtomicLong tail = new AtomicLong();
+
+    /** Thread waiting for a message or null */
+    protected volatile Thread waiter = null;
+
+    /** Count of messages dropped because of full ring */
+    protected volatile int dropped = 0;
+
+    /**
+     * Construct new mailbox
+     *
+     * @param capacity Maximum count of pending messages (power of two)
+     */
+    public SDOMailbox(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.ring = new CANMessage[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Get count of dropped messages
+     *
+     * @return Count of messages which didn't fit into the mailbox
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Put message into mailbox. Must only be called by the producer thread.
+     *
+     * @param msg Received message
+     * @return true if message was queued, false if mailbox is full
+     */
+    public boolean offer(CANMessage msg) {
+        long t = tail.get();
+        if (t - head.get() >= ring.length) {
+            dropped++;
+            return false;
+        }
+        ring[(int) t & mask] = msg;
+        tail.set(t + 1);
+
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Take next message from mailbox. Must only be called by the consumer
+     * thread.
+     *
+     * @param deadline Value of System.nanoTime() when to give up
+     * @return Received message or null on timeout
+     * @throws InterruptedException Waiting thread was interrupted
+     */
+    public CANMessage poll(long deadline) throws InterruptedException {
+
+        int spins = 0;
+        while (true) {
+            long h = head.get();
+            if (h < tail.get()) {
+                int slot = (int) h & mask;
+                CANMessage msg = ring[slot];
+                ring[slot] = null;
+                head.lazySet(h + 1);
+                return msg;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+
+            if (spins < SPIN_TRIES) {
+                spins++;
+                continue;
+            }
+
+            waiter = Thread.currentThread();
+            if (h == tail.get()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waiter = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Discard all pending messages. Must only be called by the consumer
+     * thread.
+     */
+    public void clear() {
+        long h = head.get();
+        long t = tail.get();
+        while (h < t) {
+            ring[(int) h & mask] = null;
+            h++;
+        }
+        head.lazySet(h);
+    }
+}
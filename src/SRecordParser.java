@@ -0,0 +1,145 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parse Motorola S-record files. Data records with 16, 24 and 32 bit
+ * addresses (S1, S2, S3) are supported; header, count and start address
+ * records are ignored.
+ *
+ * @author Thomas Fischl
+ */
+public class SRecordParser {
+
+    /**
+     * Check if given buffer starts with an S-record
+     *
+     * @param buf Content of file
+     * @return true if content looks like an S-record file
+     */
+    static boolean isSRecord(ByteBuffer buf) {
+
+        int pos = buf.position();
+        while ((pos < buf.limit()) && Character.isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+        if (pos + 4 > buf.limit()) {
+            return false;
+        }
+        byte type = buf.get(pos + 1);
+        return (buf.get(pos) == 'S') && (type >= '0') && (type <= '9')
+                && (HexParser.NIBBLE[buf.get(pos + 2) & 0xff] >= 0)
+                && (HexParser.NIBBLE[buf.get(pos + 3) & 0xff] >= 0);
+    }
+
+    /**
+     * Parse S-records from given buffer. The data of each record is written
+     * to the device memory as one block.
+     *
+     * @param buf Content of S-record file
+     * @param dm Target device memory
+     * @return Highest written address + 1
+     */
+    static int read(ByteBuffer buf, DeviceMemory dm) {
+
+        // count, up to 4 address bytes, data, checksum
+        byte[] record = new byte[256];
+        int lineNum = 1;
+        int endAddress = 0;
+        int pos = buf.position();
+        int limit = buf.limit();
+
+        while (pos < limit) {
+
+            byte c = buf.get(pos++);
+            if (c == '\n') {
+                lineNum++;
+                continue;
+            }
+            if ((c == '\r') || (c == ' ') || (c == '\t')) {
+                continue;
+            }
+
+            if ((c != 'S') || (pos >= limit)) {
+                throw new IllegalArgumentException("invalid record start in line " + lineNum);
+            }
+            int recordType = buf.get(pos++) - '0';
+            if ((recordType < 0) || (recordType > 9)) {
+                throw new IllegalArgumentException("invalid record type in line " + lineNum);
+            }
+
+            // decode count first, then the rest of the record
+            int length = 1;
+            int sum = 0;
+            for (int i = 0; i < length; i++) {
+                if (pos + 2 > limit) {
+                    throw new IllegalArgumentException("truncated record in line " + lineNum);
+                }
+                int hi = HexParser.NIBBLE[buf.get(pos) & 0xff];
+                int lo = HexParser.NIBBLE[buf.get(pos + 1) & 0xff];
+                if ((hi | lo) < 0) {
+                    throw new IllegalArgumentException("invalid hex digit in line " + lineNum);
+                }
+                pos += 2;
+                byte value = (byte) ((hi << 4) | lo);
+                record[i] = value;
+                sum += value & 0xff;
+                if (i == 0) {
+                    length = (value & 0xff) + 1;
+                }
+            }
+            if ((sum & 0xff) != 0xff) {
+                throw new IllegalArgumentException("invalid checksum in line " + lineNum);
+            }
+
+            int addressLength;
+            switch (recordType) {
+                case 1:
+                    addressLength = 2;
+                    break;
+                case 2:
+                    addressLength = 3;
+                    break;
+                case 3:
+                    addressLength = 4;
+                    break;
+                default:
+                    // header, count and start address
+                    continue;
+            }
+
+            int dataLength = length - 2 - addressLength;
+            if (dataLength < 0) {
+                throw new IllegalArgumentException("invalid record length in line " + lineNum);
+            }
+            int address = 0;
+            for (int i = 0; i < addressLength; i++) {
+                address = (address << 8) | (record[1 + i] & 0xff);
+            }
+            if (dataLength > 0) {
+                dm.writeMemoryData(address, record, 1 + addressLength, dataLength);
+                if (address + dataLength > endAddress) endAddress = address + dataLength;
+            }
+        }
+
+        return endAddress;
+    }
+}
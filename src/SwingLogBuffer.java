@@ -0,0 +1,123 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.EventQueue;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+/**
+ * Collects log messages from any thread and appends them to a text area
+ * once per frame in the event dispatch thread. A flash process logs every
+ * step; appending each message on its own would relayout and repaint the
+ * text area for every line.
+ * 
+ * @author Thomas Fischl
+ */
+public class SwingLogBuffer implements ActionListener {
+
+    /** Interval of text area updates in milliseconds (25 frames/s) */
+    public static final int FRAME_INTERVAL = 40;
+
+    /** Target text area */
+    protected final JTextArea textArea;
+
+    /** Messages not appended yet (guarded by itself) */
+    protected final StringBuilder pending = new StringBuilder();
+
+    /** Timer which appends pending messages (used in event dispatch thread only) */
+    protected final Timer timer;
+
+    /** Starts the timer in the event dispatch thread */
+    protected final Runnable startTimer = new Runnable() {
+        public void run() {
+            timer.restart();
+        }
+    };
+
+    /**
+     * Construct buffer for given text area
+     * 
+     * @param textArea Text area to append messages to
+     */
+    public SwingLogBuffer(JTextArea textArea) {
+        this.textArea = textArea;
+        timer = new Timer(FRAME_INTERVAL, this);
+        timer.setRepeats(false);
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Add message. Can be called from any thread.
+     * 
+     * @param message Message to append
+     */
+    public void append(String message) {
+        boolean first;
+        synchronized (pending) {
+            first = pending.length() == 0;
+            pending.append(message);
+        }
+        // first message of this frame schedules the update; the timer
+        // is restarted in the event dispatch thread only, restarting it
+        // while it fires loses the event
+        if (first) {
+            EventQueue.invokeLater(startTimer);
+        }
+    }
+
+    /**
+     * Append pending messages to text area. Must be called in the event
+     * dispatch thread.
+     */
+    public void flush() {
+        String text;
+        synchronized (pending) {
+            if (pending.length() == 0) {
+                return;
+            }
+            text = pending.toString();
+            pending.setLength(0);
+        }
+        textArea.append(text);
+    }
+
+    /**
+     * Drop pending messages and clear text area. Must be called in the
+     * event dispatch thread.
+     */
+    public void clear() {
+        synchronized (pending) {
+            pending.setLength(0);
+        }
+        textArea.setText("");
+    }
+
+    /**
+     * Timer expired
+     * 
+     * @param e Timer event
+     */
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        flush();
+    }
+}
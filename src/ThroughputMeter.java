@@ -0,0 +1,172 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of a running flash job. SDO frames are counted as
+ * metrics callbacks, bytes are taken from the job. The rates are smoothed
+ * over the samples, so the display doesn't jump with every sector.
+ * 
+ * Callbacks come from the flash threads, sample() and the getters are
+ * called from one display thread.
+ * 
+ * @author Thomas Fischl
+ */
+public class ThroughputMeter implements FlashMetricsListener {
+
+    /** Weight of newest sample in smoothed rates */
+    protected static final double SMOOTHING = 0.2;
+
+    /** Count of SDO requests sent in current session */
+    protected final AtomicLong frames = new AtomicLong();
+
+    /** Time of last sample in nanoseconds, 0 if none */
+    protected long lastTime = 0;
+
+    /** Count of bytes at last sample */
+    protected long lastBytes = 0;
+
+    /** Count of frames at last sample */
+    protected long lastFrames = 0;
+
+    /** Smoothed bytes per second */
+    protected double bytesPerSecond = 0;
+
+    /** Smoothed frames per second */
+    protected double framesPerSecond = 0;
+
+    /** Bytes left to transfer at last sample */
+    protected long bytesLeft = 0;
+
+    /**
+     * Start new measurement
+     */
+    public void reset() {
+        frames.set(0);
+        lastTime = 0;
+        lastBytes = 0;
+        lastFrames = 0;
+        bytesPerSecond = 0;
+        framesPerSecond = 0;
+        bytesLeft = 0;
+    }
+
+    /**
+     * Take sample of progress and update rates
+     * 
+     * @param bytesDone Count of bytes transferred so far
+     * @param bytesTotal Count of bytes to transfer
+     */
+    public void sample(long bytesDone, long bytesTotal) {
+
+        long now = System.nanoTime();
+        long frameCount = frames.get();
+        bytesLeft = Math.max(0, bytesTotal - bytesDone);
+
+        if (lastTime != 0 && now > lastTime) {
+            double seconds = (now - lastTime) / 1e9;
+            // bytes go back on retries, no negative rates
+            double bytesRate = Math.max(0, bytesDone - lastBytes) / seconds;
+            double framesRate = (frameCount - lastFrames) / seconds;
+            if (bytesPerSecond == 0) {
+                bytesPerSecond = bytesRate;
+                framesPerSecond = framesRate;
+            } else {
+                bytesPerSecond += SMOOTHING * (bytesRate - bytesPerSecond);
+                framesPerSecond += SMOOTHING * (framesRate - framesPerSecond);
+            }
+        }
+
+        lastTime = now;
+        lastBytes = bytesDone;
+        lastFrames = frameCount;
+    }
+
+    /**
+     * Get smoothed byte rate
+     * 
+     * @return Bytes per second
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Get smoothed SDO frame rate
+     * 
+     * @return Frames per second
+     */
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * Get estimated time to transfer the remaining bytes
+     * 
+     * @return Seconds or -1 if unknown
+     */
+    public long getSecondsLeft() {
+        if (bytesPerSecond < 1) {
+            return -1;
+        }
+        return (long) Math.ceil(bytesLeft / bytesPerSecond);
+    }
+
+    /**
+     * Format rates and ETA for display, e.g. "2275 bytes/s, 285 frames/s, ETA 0:07"
+     * 
+     * @return Display text
+     */
+    @Override
+    public String toString() {
+        long eta = getSecondsLeft();
+        return String.format(Locale.ROOT, "%.0f bytes/s, %.0f frames/s, ETA %s",
+                bytesPerSecond, framesPerSecond,
+                eta < 0 ? "-:--" : String.format(Locale.ROOT, "%d:%02d", eta / 60, eta % 60));
+    }
+
+    @Override
+    public void sessionStarted(String port, int[] nodeIds) {
+        frames.set(0);
+    }
+
+    @Override
+    public void phaseFinished(int nodeId, Phase phase, long nanos) {
+    }
+
+    @Override
+    public void sectorFinished(int nodeId, int sector, int bytes, long nanos) {
+    }
+
+    @Override
+    public void requestFinished(int nodeId, long nanos, boolean answered) {
+        frames.incrementAndGet();
+    }
+
+    @Override
+    public void retry(int nodeId, String reason) {
+    }
+
+    @Override
+    public void sessionFinished(long nanos, Exception error) {
+    }
+}
@@ -19,27 +19,99 @@
  */
 
 import de.fischl.usbtin.*;
-import java.util.Arrays;
 
 /**
- * Provides CANOpen functionality for Service Data Object (SDO)
+ * Provides CANOpen functionality for Service Data Object (SDO). One
+ * connection serves SDO clients for several nodes on the same bus; responses
+ * are demultiplexed by their COB-ID.
  * 
  * @author Thomas Fischl
  */
-public class USBtinSDO extends USBtin implements CANMessageListener {
+public class USBtinSDO implements CANMessageListener {
 
-    /** Contains last received message */
-    CANMessage receivedMsg = null;
+    /** Base COB-ID of SDO requests (client to server) */
+    public static final int SDO_REQUEST_BASE = 0x600;
+
+    /** Base COB-ID of SDO responses (server to client) */
+    public static final int SDO_RESPONSE_BASE = 0x580;
+
+    /** Node ID of the LPC11C2x bootloader */
+    public static final int DEFAULT_NODE_ID = 0x7d;
+
+    /** COB-ID of SDO requests to default node */
+    public static final int SDO_REQUEST_ID = SDO_REQUEST_BASE + DEFAULT_NODE_ID;
+
+    /** COB-ID of SDO responses from default node */
+    public static final int SDO_RESPONSE_ID = SDO_RESPONSE_BASE + DEFAULT_NODE_ID;
+    
+    /** CAN bus access */
+    protected final CANTransport transport;
     
-    /** Syncronization object for received message */
-    private final Object syncObj = new Object();
+    /** SDO clients indexed by node ID, replaced on change */
+    protected volatile SDOClient[] clients = new SDOClient[128];
+    
+    /** SDO client of default node */
+    protected final SDOClient defaultClient;
+    
+    /** Recorder of sent and received frames or null */
+    protected volatile CANTrace trace = null;
     
     /**
      * Construct new USBtin with SDO support
      */
     public USBtinSDO() {
-        super();
-        addMessageListener(this);
+        this(new USBtinTransport());
+    }
+    
+    /**
+     * Construct SDO support on top of given CAN transport
+     * 
+     * @param transport CAN bus access
+     */
+    public USBtinSDO(CANTransport transport) {
+        this.transport = transport;
+        defaultClient = getClient(DEFAULT_NODE_ID);
+        transport.addMessageListener(this);
+    }
+    
+    /**
+     * Get CAN transport
+     * 
+     * @return CAN bus access
+     */
+    public CANTransport getTransport() {
+        return transport;
+    }
+    
+    /**
+     * Set recorder of all sent and received frames
+     * 
+     * @param trace Trace or null to record nothing
+     */
+    public void setTrace(CANTrace trace) {
+        this.trace = trace;
+    }
+    
+    /**
+     * Get SDO client for given node. The client is created on first use.
+     * 
+     * @param nodeId Node ID (1..127)
+     * @return SDO client
+     */
+    public synchronized SDOClient getClient(int nodeId) {
+        
+        if ((nodeId < 1) || (nodeId > 127)) {
+            throw new IllegalArgumentException("invalid node ID: " + nodeId);
+        }
+        
+        SDOClient client = clients[nodeId];
+        if (client == null) {
+            SDOClient[] newClients = clients.clone();
+            client = new SDOClient(this, nodeId);
+            newClients[nodeId] = client;
+            clients = newClients;
+        }
+        return client;
     }
     
     /**
@@ -50,14 +122,37 @@ public class USBtinSDO extends USBtin implements CANMessageListener {
     @Override
     public void receiveCANMessage(CANMessage canmsg) {
 
-        synchronized(syncObj) {
-            receivedMsg = canmsg;
-            syncObj.notify();
-        }        
+        CANTrace t = trace;
+        if (t != null) {
+            t.record(false, canmsg);
+        }
+
+        int nodeId = canmsg.getId() - SDO_RESPONSE_BASE;
+        if ((nodeId >= 1) && (nodeId <= 127)) {
+            SDOClient client = clients[nodeId];
+            if (client != null) {
+                client.receive(canmsg);
+            }
+        }
+    }
+    
+    /**
+     * Send given message over the transport
+     * 
+     * @param canmsg Message to send
+     * @throws USBtinException Error while sending message
+     */
+    public void send(CANMessage canmsg) throws USBtinException {
+        CANTrace t = trace;
+        if (t != null) {
+            t.record(true, canmsg);
+        }
+        transport.send(canmsg);
     }
     
     /**
-     * Transmit given CAN messsage, wait for response and check the answer.
+     * Transmit given CAN messsage to default node, wait for response and
+     * check the answer.
      * 
      * @param msg CAN message to send
      * @param expected Expected answer
@@ -65,35 +160,11 @@ public class USBtinSDO extends USBtin implements CANMessageListener {
      * @throws USBtinException Error while transmitting message
      */
     public CANMessage transmit(CANMessage msg, int expected)  throws USBtinException {
-        receivedMsg = null;
-        this.send(msg);
-        
-        long timeout = 1000;
-        
-        try {
-            synchronized(syncObj) {
-                
-                long starttime = System.currentTimeMillis();
-                while ((System.currentTimeMillis() - starttime) < timeout) {
-                    
-                    if ((receivedMsg != null) && (receivedMsg.getData().length >= 1)) {
-                        if (receivedMsg.getData()[0] == expected)
-                            return receivedMsg;
-                        else 
-                            throw new USBtinException("sdo_transmit: not expected answer (is: " + receivedMsg.getData()[0] + ", expected: " + expected + ")");
-                    }
-                    
-                    syncObj.wait(timeout);
-                }                                    
-                throw new USBtinException("sdo_transmit: timeout");
-            }
-        } catch (InterruptedException ie) {
-            throw new USBtinException("sdo_transmit: interrupted exception ");
-        }
+        return defaultClient.transmit(msg, expected);
     }
     
     /**
-     * Read object at given index
+     * Read object of default node at given index
      * 
      * @param obj_idx Object index
      * @param sub_idx Subindex
@@ -101,16 +172,11 @@ public class USBtinSDO extends USBtin implements CANMessageListener {
      * @throws USBtinException Error while reading object
      */
     public byte[] read(int obj_idx, int sub_idx) throws USBtinException {
-        
-        CANMessage msg = transmit(
-                new CANMessage(0x67d, new byte[]{0x40, (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx, 0x00, 0x00, 0x00, 0x00}),
-                0x43);
-        
-        return Arrays.copyOfRange(msg.getData(), 4, 8);
+        return defaultClient.read(obj_idx, sub_idx);
     }
     
     /**
-     * Write to object in expedited mode
+     * Write to object of default node in expedited mode
      * 
      * @param obj_idx Object index
      * @param sub_idx Subindex
@@ -118,28 +184,11 @@ public class USBtinSDO extends USBtin implements CANMessageListener {
      * @throws USBtinException Error while writing data
      */
     public void writeExpedited(int obj_idx, int sub_idx, byte[] data)  throws USBtinException {
-        
-        byte[] msgdata = new byte[8];
-            
-        switch (data.length) {
-            case 4: msgdata[0] = 0x23; break;
-            case 2: msgdata[0] = 0x2b; break;
-            case 1: msgdata[0] = 0x2f; break;
-            default: msgdata[0] = 0x22; break;
-        }
-
-        msgdata[1] = (byte)(obj_idx & 0xff);
-        msgdata[2] = (byte)((obj_idx >> 8) & 0xff);
-        msgdata[3] = (byte)sub_idx;
-        for (int i = 0; i < data.length; i++) {
-            msgdata[4 + i] = data[i];
-        }
-
-        transmit(new CANMessage(0x67d, msgdata), 0x60);        
+        defaultClient.writeExpedited(obj_idx, sub_idx, data);
     }
     
     /**
-     * Write data to object in segmented mode
+     * Write data to object of default node in segmented mode
      * 
      * @param obj_idx Object index
      * @param sub_idx Subindex
@@ -147,47 +196,55 @@ public class USBtinSDO extends USBtin implements CANMessageListener {
      * @throws USBtinException Error while writing data
      */
     public void writeSegmented(int obj_idx, int sub_idx, byte[] data)  throws USBtinException{        
-
-        int bytesleft = data.length;        
-        CANMessage msg = new CANMessage(0x67d, new byte[]{0x21, (byte)(obj_idx & 0xff), (byte)((obj_idx >> 8) & 0xff), (byte)sub_idx, (byte)(bytesleft & 0xff), (byte)((bytesleft >> 8) & 0xff), 0x00, 0x00});
-        transmit(msg, 0x60);                        
-            
-        boolean toggle = false;
-        int pos = 0;
-        while (bytesleft > 0) {
-            receivedMsg = null;
-
-            int sendbyte = bytesleft;
-            if (sendbyte > 7) sendbyte = 7;
-
-            byte[] msgdata = new byte[8];
-
-            if (bytesleft > 7) msgdata[0] = 0;
-            else if (bytesleft == 7) msgdata[0] = 0x01;
-            else if (bytesleft == 6) msgdata[0] = 0x03;
-            else if (bytesleft == 5) msgdata[0] = 0x05;
-            else if (bytesleft == 4) msgdata[0] = 0x07;
-            else if (bytesleft == 3) msgdata[0] = 0x09;
-            else if (bytesleft == 2) msgdata[0] = 0x0B;
-            else if (bytesleft == 1) msgdata[0] = 0x0D;
-
-            if (toggle) msgdata[0] |= 0x10;                
-
-            for (int i = 0; i < sendbyte; i++) {
-                msgdata[1 + i] = data[pos];
-                pos ++;
+        defaultClient.writeSegmented(obj_idx, sub_idx, data);
+    }
+    
+    /**
+     * Create acceptance filter which passes the SDO responses of all given
+     * nodes. Up to six nodes get an exact filter each, for more nodes one
+     * mask covering all of them is used.
+     * 
+     * @param nodeIds Node IDs
+     * @return Filter chains for setFilter()
+     */
+    public static FilterChain[] createFilter(int[] nodeIds) {
+        
+        if (nodeIds.length <= 2) {
+            FilterValue[] values = new FilterValue[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                values[i] = new FilterValue(SDO_RESPONSE_BASE + nodeIds[i], (byte)0x00, (byte)0x00);
             }
-
-            bytesleft -= sendbyte;                
-
-            int expected;
-            if (!toggle) expected = 0x20;
-            else expected = 0x30;
-            
-            msg = new CANMessage(0x67d, msgdata);
-            transmit(msg, expected);
-
-            toggle = !toggle;                        
+            return new FilterChain[] {
+                new FilterChain(new FilterMask(0x7ff, (byte)0x00, (byte)0x00), values)
+            };
+        }
+        
+        if (nodeIds.length <= 6) {
+            FilterValue[] values0 = new FilterValue[2];
+            FilterValue[] values1 = new FilterValue[nodeIds.length - 2];
+            for (int i = 0; i < nodeIds.length; i++) {
+                FilterValue value = new FilterValue(SDO_RESPONSE_BASE + nodeIds[i], (byte)0x00, (byte)0x00);
+                if (i < 2) values0[i] = value;
+                else values1[i - 2] = value;
+            }
+            return new FilterChain[] {
+                new FilterChain(new FilterMask(0x7ff, (byte)0x00, (byte)0x00), values0),
+                new FilterChain(new FilterMask(0x7ff, (byte)0x00, (byte)0x00), values1)
+            };
+        }
+        
+        // only compare bits which are equal in all response IDs
+        int differ = 0;
+        for (int i = 1; i < nodeIds.length; i++) {
+            differ |= nodeIds[i] ^ nodeIds[0];
         }
+        return new FilterChain[] {
+            new FilterChain(
+                new FilterMask(0x7ff & ~differ, (byte)0x00, (byte)0x00),
+                new FilterValue[] {
+                    new FilterValue(SDO_RESPONSE_BASE + nodeIds[0], (byte)0x00, (byte)0x00)
+                }
+            )
+        };
     }
 }
@@ -0,0 +1,358 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.*;
+import java.util.ListIterator;
+import java.util.concurrent.locks.LockSupport;
+import jssc.SerialPortEvent;
+import jssc.SerialPortException;
+
+/**
+ * CAN transport over a USBtin connected to a serial port.
+ *
+ * Frames are sent in batches: up to batchSize frames are written to USBtin
+ * without waiting for its acknowledge. A frame sent to an idle adapter is
+ * written at once. Frames sent while others await their acknowledge are
+ * collected for at most flushLatency and then written together in one
+ * serial write, or earlier if the batch is full. If batchSize frames are in
+ * flight, further frames go with the next acknowledge. The SLCAN lines are
+ * encoded into a reusable buffer.
+ *
+ * USBtin answers each line in order. A frame is only written if no frame
+ * with the same CAN ID is in flight; it and the frames behind it wait for
+ * the acknowledge. If USBtin rejects a frame (BELL), the frame is queued
+ * again ahead of all frames not yet written. So frames of one CAN ID keep
+ * their order, e.g. an SDO abort and the next request of the same node.
+ *
+ * Errors of writes done by the flusher thread or on an acknowledge are
+ * thrown by the next call of send().
+ *
+ * @author Thomas Fischl
+ */
+public class USBtinTransport extends USBtin implements CANTransport {
+
+    /** Default count of frames in flight */
+    public static final int DEFAULT_BATCH_SIZE = 4;
+
+    /** Default time frames are collected before they are written (ns) */
+    public static final long DEFAULT_FLUSH_LATENCY = 200000;
+
+    /** Longest SLCAN line: type, 8 digits ID, length, 16 digits data, CR */
+    protected static final int MAX_LINE_LENGTH = 27;
+
+    /** Hex digits as used by CANMessage.toString() */
+    protected static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    /** Count of frames written to USBtin without acknowledge */
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Time frames are collected before they are written (ns) */
+    protected long flushLatency = DEFAULT_FLUSH_LATENCY;
+
+    /** Time the oldest collected frame was sent (System.nanoTime()) or -1 */
+    protected long queuedSince = -1;
+
+    /** Thread writing collected frames after flushLatency or null */
+    protected Thread flusher = null;
+
+    /** Count of frames at the head of fifoTX which are written, but not acknowledged */
+    protected int inFlight = 0;
+
+    /** Error of a write outside of send() or null */
+    protected USBtinException error = null;
+
+    /** Buffer for encoding SLCAN lines */
+    protected byte[] lineBuffer = new byte[DEFAULT_BATCH_SIZE * MAX_LINE_LENGTH];
+
+    /** Write buffers by length, the serial port takes whole arrays only */
+    protected byte[][] writeBuffers = new byte[DEFAULT_BATCH_SIZE * MAX_LINE_LENGTH + 1][];
+
+    /**
+     * Set count of frames written to USBtin without acknowledge
+     *
+     * @param batchSize Count of frames in flight, 1 to wait for each acknowledge
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+        synchronized (fifoTX) {
+            this.batchSize = batchSize;
+            lineBuffer = new byte[batchSize * MAX_LINE_LENGTH];
+            writeBuffers = new byte[batchSize * MAX_LINE_LENGTH + 1][];
+        }
+    }
+
+    /**
+     * Set time frames are collected before they are written
+     *
+     * @param flushLatency Latency in nanoseconds
+     */
+    public void setFlushLatency(long flushLatency) {
+        synchronized (fifoTX) {
+            this.flushLatency = flushLatency;
+        }
+    }
+
+    /**
+     * Connect to USBtin on given port. Frames of a previous connection are
+     * dropped.
+     *
+     * @param portName Name of port
+     * @throws USBtinException Error while connecting
+     */
+    @Override
+    public void connect(String portName) throws USBtinException {
+        super.connect(portName);
+        synchronized (fifoTX) {
+            fifoTX.clear();
+            inFlight = 0;
+            queuedSince = -1;
+            error = null;
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    flushCollected();
+                }
+            }, "USBtin flush");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Disconnect from USBtin and stop writing collected frames
+     *
+     * @throws USBtinException Error while closing connection
+     */
+    @Override
+    public void disconnect() throws USBtinException {
+        synchronized (fifoTX) {
+            LockSupport.unpark(flusher);
+            flusher = null;
+        }
+        super.disconnect();
+    }
+
+    /**
+     * Loop of flusher thread: write collected frames when the oldest one is
+     * flushLatency old
+     */
+    protected void flushCollected() {
+        while (true) {
+            long wait;
+            synchronized (fifoTX) {
+                if (flusher != Thread.currentThread()) {
+                    return;
+                }
+                wait = queuedSince < 0 ? -1 : queuedSince + flushLatency - System.nanoTime();
+                if ((queuedSince >= 0) && (wait <= 0)) {
+                    try {
+                        flush();
+                    } catch (USBtinException ex) {
+                        error = ex;
+                    }
+                    continue;
+                }
+            }
+            if (wait < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * Send given message. Several SDO clients may send concurrently, so the
+     * transmit FIFO of USBtin is guarded.
+     *
+     * @param canmsg Message to send
+     * @throws USBtinException Error while sending this or a collected message
+     */
+    @Override
+    public void send(CANMessage canmsg) throws USBtinException {
+        synchronized (fifoTX) {
+            if (error != null) {
+                USBtinException ex = error;
+                error = null;
+                throw ex;
+            }
+            fifoTX.add(canmsg);
+            if ((inFlight == 0) || (fifoTX.size() >= batchSize)) {
+                flush();
+            } else if (queuedSince < 0) {
+                queuedSince = System.nanoTime();
+                LockSupport.unpark(flusher);
+            }
+        }
+    }
+
+    /**
+     * Write queued frames in one serial write, as many as fit in the batch.
+     * Stops at the first frame whose CAN ID is in flight already.
+     * Must be called with fifoTX locked.
+     *
+     * @throws USBtinException Error while writing to serial port
+     */
+    protected void flush() throws USBtinException {
+
+        // remaining frames wait for the next acknowledge
+        queuedSince = -1;
+
+        int limit = Math.min(fifoTX.size(), batchSize);
+        int count = 0;
+        int length = 0;
+        ListIterator<CANMessage> it = fifoTX.listIterator(inFlight);
+        while (inFlight + count < limit) {
+            CANMessage canmsg = it.next();
+            if (isInFlight(canmsg.getId(), inFlight + count)) {
+                break;
+            }
+            length = encode(canmsg, lineBuffer, length);
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        byte[] buffer = writeBuffers[length];
+        if (buffer == null) {
+            buffer = new byte[length];
+            writeBuffers[length] = buffer;
+        }
+        System.arraycopy(lineBuffer, 0, buffer, 0, length);
+
+        try {
+            serialPort.writeBytes(buffer);
+        } catch (SerialPortException ex) {
+            throw new USBtinException(ex);
+        }
+        inFlight += count;
+    }
+
+    /**
+     * Check if a frame with given CAN ID is among the first frames of the
+     * transmit FIFO. Must be called with fifoTX locked.
+     *
+     * @param id CAN ID
+     * @param count Count of frames to check
+     * @return true if one of them has the given ID
+     */
+    protected boolean isInFlight(int id, int count) {
+        ListIterator<CANMessage> it = fifoTX.listIterator();
+        for (int i = 0; i < count; i++) {
+            if (it.next().getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode given message as SLCAN line, like CANMessage.toString() plus CR
+     *
+     * @param canmsg Message to encode
+     * @param buffer Target buffer
+     * @param offset Position of line in buffer
+     * @return Position behind line
+     */
+    protected static int encode(CANMessage canmsg, byte[] buffer, int offset) {
+
+        int id = canmsg.getId();
+        byte[] data = canmsg.getData();
+        int digits;
+        if (canmsg.isExtended()) {
+            buffer[offset++] = (byte) (canmsg.isRtr() ? 'R' : 'T');
+            digits = 8;
+        } else {
+            buffer[offset++] = (byte) (canmsg.isRtr() ? 'r' : 't');
+            digits = 3;
+        }
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer[offset++] = HEX_DIGITS[(id >> shift) & 0xf];
+        }
+        buffer[offset++] = HEX_DIGITS[data.length & 0xf];
+        if (!canmsg.isRtr()) {
+            for (byte b : data) {
+                buffer[offset++] = HEX_DIGITS[(b >> 4) & 0xf];
+                buffer[offset++] = HEX_DIGITS[b & 0xf];
+            }
+        }
+        buffer[offset++] = '\r';
+        return offset;
+    }
+
+    /**
+     * Handle serial port event: dispatch received frames and acknowledges.
+     * The transmit FIFO is modified when USBtin acknowledges a frame, so
+     * this is guarded like send().
+     *
+     * @param event Serial port event
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+
+        if (!event.isRXCHAR() || (event.getEventValue() <= 0)) {
+            return;
+        }
+
+        synchronized (fifoTX) {
+            try {
+                byte[] buffer = serialPort.readBytes();
+                for (byte b : buffer) {
+                    if (b == '\r') {
+                        if (incomingMessage.length() > 0) {
+                            char cmd = incomingMessage.charAt(0);
+                            if ((cmd == 't') || (cmd == 'T') || (cmd == 'r') || (cmd == 'R')) {
+                                CANMessage canmsg = new CANMessage(incomingMessage.toString());
+                                for (CANMessageListener listener : listeners) {
+                                    listener.receiveCANMessage(canmsg);
+                                }
+                            } else if ((cmd == 'z') || (cmd == 'Z')) {
+                                if (inFlight > 0) {
+                                    fifoTX.removeFirst();
+                                    inFlight--;
+                                }
+                                flush();
+                            }
+                        }
+                        incomingMessage.setLength(0);
+                    } else if (b == 0x07) {
+                        // frame rejected, queue it again ahead of the frames
+                        // not written yet; none of them has a frame of its
+                        // CAN ID in flight, see flush()
+                        if (inFlight > 0) {
+                            CANMessage canmsg = fifoTX.removeFirst();
+                            inFlight--;
+                            fifoTX.add(inFlight, canmsg);
+                        }
+                        flush();
+                    } else {
+                        incomingMessage.append((char) b);
+                    }
+                }
+            } catch (USBtinException ex) {
+                error = ex;
+            } catch (Exception ex) {
+                error = new USBtinException(ex);
+            }
+        }
+    }
+}
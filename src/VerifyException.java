@@ -0,0 +1,62 @@
+/*
+ * Part of CANFlasherUTNL - Flash tool for NXP LPC11C22/24 devices.
+ * http://www.fischl.de/can/bootloader/canflasherutnl/
+ *
+ * Copyright (C) 2016  Thomas Fischl 
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.fischl.usbtin.USBtinException;
+
+/**
+ * Flash content of a node differs from the image
+ * 
+ * @author Thomas Fischl
+ */
+public class VerifyException extends USBtinException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Address of first differing byte or -1 if not known */
+    protected final int address;
+
+    /**
+     * Construct verify exception for first differing byte
+     * 
+     * @param sector Sector of differing byte
+     * @param address Address of differing byte
+     * @param device Content of device flash
+     * @param image Content of image
+     */
+    public VerifyException(int sector, int address, byte device, byte image) {
+        super(String.format("verify failed in sector %d at 0x%X: device 0x%02X, image 0x%02X",
+                sector, address, device & 0xff, image & 0xff));
+        this.address = address;
+    }
+
+    /**
+     * Construct verify exception without location, e.g. for several nodes
+     * 
+     * @param message Error message
+     */
+    public VerifyException(String message) {
+        super(message);
+        this.address = -1;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+}